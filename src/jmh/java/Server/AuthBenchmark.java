@@ -0,0 +1,111 @@
+package Server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Logins against user stores of growing size, the stores Server.authenticate asks: a
+ * CachingUserStore in front of a HashedUserStore.
+ *
+ *  - hashedLogin: a user whose entry has the server's iteration count, the cost of every first login
+ *  - cachedLogin: the same user once the cache has seen it
+ *  - lookup: users whose entries have a single iteration, so what is left is finding the entry
+ *  - tokenLogin, issueToken: checking and handing out the session token of a reconnecting client
+ *  - load: reading the whole user file, what a server start costs
+ *
+ * The other users are written with a single iteration, so setting up a million of them does not
+ * take hours.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class AuthBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int users;
+
+    private HashedUserStore store;
+    private CachingUserStore cache;
+    private SessionTokens tokens;
+    private String token;
+    private Path file;
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Files.createTempFile("users", ".txt");
+        names = new String[users];
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(HashedUserStore.entry("alice", "correct horse", HashedUserStore.ITERATIONS));
+            writer.newLine();
+            for (int i = 0; i < users; i++) {
+                names[i] = "user" + i;
+                writer.write(HashedUserStore.entry(names[i], "secret", 1));
+                writer.newLine();
+            }
+        }
+        store = HashedUserStore.load(file);
+        cache = new CachingUserStore(store, CachingUserStore.CAPACITY);
+        if (!cache.authenticate("alice", "correct horse")) {
+            throw new IllegalStateException("alice was not let in");
+        }
+        tokens = new SessionTokens(new byte[32], SessionTokens.LIFETIME_MILLIS);
+        token = tokens.issue("alice");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public boolean hashedLogin() {
+        return store.authenticate("alice", "correct horse");
+    }
+
+    @Benchmark
+    public boolean cachedLogin() {
+        return cache.authenticate("alice", "correct horse");
+    }
+
+    @Benchmark
+    public boolean lookup() {
+        next = (next + 7919) % users;
+        return store.authenticate(names[next], "secret");
+    }
+
+    @Benchmark
+    public String tokenLogin() {
+        return tokens.verify(token);
+    }
+
+    @Benchmark
+    public String issueToken() {
+        return tokens.issue("alice");
+    }
+
+    @Benchmark
+    public HashedUserStore load() throws IOException {
+        return HashedUserStore.load(file);
+    }
+}
@@ -0,0 +1,109 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import Shared.EncodedMessage;
+import Shared.Message;
+import Shared.MessageChannel;
+
+/**
+ * One chat message to every member of a room, the way ClientHandler.deliver does it: encode once,
+ * walk the room's members and offer the message to each one's OutboundQueue. The queues drain on
+ * the calling thread into channels that discard the bytes, so the time is the fan-out itself and
+ * the writes, without sockets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int recipients;
+
+    @Param({"false", "true"})
+    public boolean binary;
+
+    // A room member with the same queue and writer as a ClientHandler
+    private static class Member implements Session {
+        final String username;
+        final OutboundQueue outbound;
+
+        Member(String username, boolean binary) {
+            this.username = username;
+            MessageChannel connection = new MessageChannel(new DiscardChannel());
+            connection.setBinary(binary);
+            this.outbound = new OutboundQueue(new OutboundQueue.Sink() {
+                @Override
+                public void write(EncodedMessage message) throws IOException {
+                    connection.send(message);
+                }
+
+                @Override
+                public void disconnect() {
+                }
+            }, Runnable::run);
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+    }
+
+    private static class DiscardChannel implements ByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            return length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            return -1;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private Room<Member> room;
+
+    @Setup
+    public void setUp() {
+        RoomRegistry<Member> rooms = new RoomRegistry<>(1);
+        for (int i = 0; i < recipients; i++) {
+            room = rooms.join(new Member("user" + i, binary), RoomRegistry.LOBBY);
+        }
+    }
+
+    @Benchmark
+    public void broadcast() {
+        EncodedMessage message = new EncodedMessage(Message.CHAT, "alice: the quick brown fox jumps over the lazy dog");
+        for (Member member : room.members(0)) {
+            member.outbound.offer(message);
+        }
+    }
+}
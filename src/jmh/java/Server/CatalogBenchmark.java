@@ -0,0 +1,84 @@
+package Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import Shared.EncodedMessage;
+
+/**
+ * Answering LIST on a directory with many files: scanning the directory (what ClientHandler
+ * used to do), the FileCatalog's full list, which is serialized once and shared until the next
+ * change, and one page of 100 names with a prefix.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CatalogBenchmark {
+
+    @Param({"10000", "100000"})
+    public int files;
+
+    private Path directory;
+    private FileCatalog catalog;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("catalog-benchmark");
+        for (int i = 0; i < files; i++) {
+            Files.createFile(directory.resolve(String.format("track-%06d.mp3", i)));
+        }
+        catalog = new FileCatalog(directory, new BlobStore(directory));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        catalog.close();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    // The old LIST: list the directory and join the names of the regular files
+    @Benchmark
+    public String scan() {
+        StringBuilder names = new StringBuilder();
+        for (File file : directory.toFile().listFiles()) {
+            if (file.isFile()) {
+                if (names.length() > 0) {
+                    names.append(',');
+                }
+                names.append(file.getName());
+            }
+        }
+        return names.toString();
+    }
+
+    @Benchmark
+    public EncodedMessage list() {
+        return catalog.list();
+    }
+
+    @Benchmark
+    public EncodedMessage page() {
+        return catalog.page("track-005", "", FileCatalog.DEFAULT_PAGE_SIZE);
+    }
+}
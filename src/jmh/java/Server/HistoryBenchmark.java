@@ -0,0 +1,92 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The chat history: appending a message to a room's ChatLog, the replay of the last 20 messages a
+ * client gets when it enters the chat, from the RecentMessages ring and from the log, and a
+ * HISTORY page of 100 messages from anywhere in the log. The log has a million messages in 4 MB
+ * segments, so reads cross segment boundaries. Run with "-prof gc" for what adding a message to
+ * the ring allocates (nothing).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+    private static final String TEXT = "alice: the quick brown fox jumps over the lazy dog";
+
+    private Path directory;
+    private ChatLog log;
+    private RecentMessages recent;
+    private long ringOffset;
+    private long readIndex;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("history-benchmark");
+        log = new ChatLog(directory, 4 * 1024 * 1024, Long.MAX_VALUE, Long.MAX_VALUE);
+        recent = new RecentMessages(RecentMessages.CAPACITY);
+        for (int i = 0; i < 1_000_000; i++) {
+            long time = System.currentTimeMillis();
+            recent.add(log.append(time, TEXT), time, TEXT);
+        }
+        ringOffset = log.nextOffset();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        log.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long append() throws IOException {
+        return log.append(System.currentTimeMillis(), TEXT);
+    }
+
+    @Benchmark
+    public ChatLog.Range lastFromLog() {
+        return log.last(20);
+    }
+
+    @Benchmark
+    public ChatLog.Range lastFromRing() {
+        return recent.last(20);
+    }
+
+    @Benchmark
+    public ChatLog.Range pageFromAnywhere() {
+        long first = log.firstOffset();
+        long span = log.nextOffset() - first - 100;
+        readIndex += 7919;
+        return log.read(first + readIndex % span, 100);
+    }
+
+    // Offsets of its own, the ring is only ever given newer messages
+    @Benchmark
+    public void addToRing() {
+        long offset = ringOffset++;
+        recent.add(offset, 1_700_000_000_000L + offset, TEXT);
+    }
+}
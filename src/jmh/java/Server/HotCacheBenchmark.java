@@ -0,0 +1,154 @@
+package Server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Many clients downloading a few popular files at once, with the hot file cache off and with a
+ * budget that holds only some of the files, so the cache also evicts. Popularity is skewed (file
+ * i is picked about twice as often as file i+1). Every download is a chunked one
+ * ("DOWNLOAD|name|0"), which is where the server checksums what it sends.
+ *
+ * The clients run in this JVM, every benchmark thread is one, and do the same work with the cache
+ * off and on. The hit rate and evictions are printed at the end of the run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class HotCacheBenchmark {
+    private static final int FILES = 8;
+    private static final int FILE_SIZE = 16 * 1024 * 1024;
+
+    @Param({"0", "67108864"})
+    public long budget;
+
+    private Path directory;
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private HotFileCache cache;
+
+    @State(Scope.Thread)
+    public static class Client {
+        Socket socket;
+        DataInputStream in;
+        OutputStream out;
+        final byte[] buffer = new byte[64 * 1024];
+        final Random random = new Random();
+
+        @Setup
+        public void connect(HotCacheBenchmark server) throws IOException {
+            socket = new Socket("localhost", server.serverSocket.getLocalPort());
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        @TearDown
+        public void close() throws IOException {
+            out.write("EXIT\n".getBytes(StandardCharsets.UTF_8));
+            socket.close();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("hot-cache-benchmark");
+        System.setProperty("server.files.dir", directory.toString());
+        Random random = new Random(42);
+        byte[] content = new byte[FILE_SIZE];
+        for (int i = 0; i < FILES; i++) {
+            random.nextBytes(content);
+            Files.write(directory.resolve("track-" + i + ".mp3"), content);
+        }
+        cache = new HotFileCache(budget, HotFileCache.ADMIT_AFTER);
+        HotFileCache.setShared(cache);
+
+        serverSocket = Server.openServerSocket(0);
+        executor = Server.newHandlerExecutor("thread");
+        Thread acceptor = new Thread(() -> Server.acceptClients(serverSocket, executor));
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.out.printf("%nhit rate %.0f%%, %d evictions, %d MB cached%n", cache.hitRate() * 100,
+                cache.evictions(), cache.cachedBytes() / (1024 * 1024));
+        serverSocket.close();
+        executor.shutdownNow();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long download(Client client) throws IOException {
+        int file = 0;
+        while (file < FILES - 1 && client.random.nextBoolean()) {
+            file++;
+        }
+        client.out.write(("DOWNLOAD|track-" + file + ".mp3|0\n").getBytes(StandardCharsets.UTF_8));
+        return receiveChunked(client.in, client.buffer);
+    }
+
+    // Reads "FILE_INFO|name|size|0" and the CHUNK lines with their bytes that follow
+    private static long receiveChunked(DataInputStream in, byte[] buffer) throws IOException {
+        String[] info = readLine(in).split("\\|");
+        if (!info[0].equals("FILE_INFO")) {
+            throw new IOException("Unexpected response: " + String.join("|", info));
+        }
+        long size = Long.parseLong(info[2]);
+        long received = 0;
+        while (received < size) {
+            String[] chunk = readLine(in).split("\\|");
+            int length = Integer.parseInt(chunk[2]);
+            for (int read = 0; read < length; ) {
+                int n = Math.min(buffer.length, length - read);
+                in.readFully(buffer, 0, n);
+                read += n;
+            }
+            received += length;
+        }
+        return received;
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("Connection closed");
+            }
+            line.append((char) b);
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,82 @@
+package Server;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import Shared.LatencyHistogram;
+
+/**
+ * What the instrumentation costs a request thread: recording a latency, and a log line through
+ * Log at a disabled level and at an enabled one compared to System.out.println. The histogram is
+ * shared by all benchmark threads, run with "-t 8" to see recording under contention.
+ *
+ * System.out is replaced by a stream that discards everything before Log is first used, so the
+ * log lines measure the logging code and not the terminal. Log drops lines its writer cannot keep
+ * up with, the count is printed at the end.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    // Log-normal latencies around 200 us, with a long tail
+    private final long[] latencies = new long[4096];
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private PrintStream console;
+
+    @State(Scope.Thread)
+    public static class Position {
+        int next;
+    }
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = (long) Math.exp(12.2 + random.nextGaussian());
+        }
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream(), false));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(console);
+        System.out.println("Log dropped " + Log.dropped() + " lines");
+    }
+
+    @Benchmark
+    public void record(Position position) {
+        histogram.record(latencies[position.next++ & (latencies.length - 1)]);
+    }
+
+    @Benchmark
+    public void println(Position position) {
+        System.out.println("Sent file list to user 'user" + (position.next++ & 63) + "'.");
+    }
+
+    @Benchmark
+    public void logDisabled(Position position) {
+        Log.debug("Sent file list to user 'user" + (position.next++ & 63) + "'.");
+    }
+
+    @Benchmark
+    public void logQueued(Position position) {
+        Log.warn("Sent file list to user 'user" + (position.next++ & 63) + "'.");
+    }
+}
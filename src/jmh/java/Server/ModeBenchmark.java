@@ -0,0 +1,179 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The "thread" and "virtual" execution modes compared: one client of a room chats and the time
+ * is until every member of the room has received the message, through a server running in this
+ * JVM over loopback. All clients are read by one selector thread that only counts lines, so the
+ * clients cost the same in both modes. Divide the members by the time per message for the
+ * deliveries per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModeBenchmark {
+    private static final ByteBuffer CHAT = ByteBuffer.wrap("CHAT|the quick brown fox\n".getBytes(StandardCharsets.UTF_8));
+
+    @Param({"thread", "virtual"})
+    public String mode;
+
+    @Param({"100", "1000"})
+    public int connections;
+
+    private Path directory;
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private final List<SocketChannel> sockets = new ArrayList<>();
+    private Selector selector;
+    private Thread reader;
+    private final AtomicLong lines = new AtomicLong();
+    private long linesPerMessage;
+    private long expected;
+
+    @Setup
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("mode-benchmark");
+        System.setProperty("server.files.dir", directory.toString());
+        serverSocket = Server.openServerSocket(0);
+        executor = Server.newHandlerExecutor(mode);
+        Thread acceptor = new Thread(() -> Server.acceptClients(serverSocket, executor));
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        selector = Selector.open();
+        for (int i = 0; i < connections; i++) {
+            SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", serverSocket.getLocalPort()));
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            sockets.add(socket);
+            socket.write(ByteBuffer.wrap(("LOGIN|user" + (1 + i % 5) + "|1234\nJOIN|mode-benchmark\n")
+                    .getBytes(StandardCharsets.UTF_8)));
+            awaitJoined(socket);
+            socket.configureBlocking(false);
+            socket.register(selector, SelectionKey.OP_READ);
+        }
+        reader = new Thread(this::countLines, "line-counter");
+        reader.setDaemon(true);
+        reader.start();
+
+        // Members see each other join, and the sender may or may not get its own message back,
+        // so one message tells how many lines every message gives once the room is quiet
+        Thread.sleep(1000);
+        long before = lines.get();
+        send();
+        Thread.sleep(1000);
+        linesPerMessage = lines.get() - before;
+        if (linesPerMessage < connections - 1) {
+            throw new IOException("Only " + linesPerMessage + " of " + (connections - 1) + " members got the message");
+        }
+        expected = lines.get();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        reader.interrupt();
+        selector.close();
+        for (SocketChannel socket : sockets) {
+            socket.close();
+        }
+        serverSocket.close();
+        executor.shutdownNow();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void chat() throws IOException {
+        expected += linesPerMessage;
+        send();
+        while (lines.get() < expected) {
+            Thread.yield(); // the handlers and the line counter may need this core
+        }
+    }
+
+    private void send() throws IOException {
+        ByteBuffer message = CHAT.duplicate();
+        while (message.hasRemaining()) {
+            sockets.get(0).write(message);
+        }
+    }
+
+    private void countLines() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    buffer.clear();
+                    if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                        key.cancel();
+                        continue;
+                    }
+                    long count = 0;
+                    for (int i = 0; i < buffer.position(); i++) {
+                        if (buffer.get(i) == '\n') {
+                            count++;
+                        }
+                    }
+                    lines.addAndGet(count);
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | RuntimeException e) {
+            // closed by tearDown
+        }
+    }
+
+    // Reads up to the JOINED reply one byte at a time, nothing after it is consumed
+    private static void awaitJoined(SocketChannel socket) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            one.clear();
+            if (socket.read(one) < 0) {
+                throw new IOException("Connection closed before JOINED");
+            }
+            char c = (char) one.get(0);
+            if (c != '\n') {
+                line.append(c);
+            } else if (line.toString().startsWith("JOINED|")) {
+                return;
+            } else {
+                line.setLength(0);
+            }
+        }
+    }
+}
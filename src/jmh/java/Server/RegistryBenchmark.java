@@ -0,0 +1,81 @@
+package Server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Connection churn on the client registry from many threads at once: every operation registers
+ * a few sessions, walks over everybody like a broadcast and removes its sessions again, against
+ * 1000 sessions that stay connected. SessionRegistryTest checks that nothing is left behind.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class RegistryBenchmark {
+
+    private static final class TestSession implements Session {
+        private final String username;
+
+        TestSession(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+    }
+
+    private final SessionRegistry<TestSession> sessions = new SessionRegistry<>();
+
+    private static final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Own {
+        final int thread = threads.getAndIncrement();
+        final TestSession[] sessions = new TestSession[8];
+        int round;
+    }
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < 1000; i++) {
+            TestSession session = new TestSession("idle-" + i);
+            sessions.add(session);
+            sessions.bindUsername(session, null, session.getUsername());
+        }
+    }
+
+    @Benchmark
+    public int churn(Own own) {
+        int round = own.round++;
+        for (int i = 0; i < own.sessions.length; i++) {
+            own.sessions[i] = new TestSession("user-" + own.thread + "-" + round + "-" + i);
+            sessions.add(own.sessions[i]);
+            sessions.bindUsername(own.sessions[i], null, own.sessions[i].getUsername());
+        }
+        int visited = 0;
+        for (TestSession ignored : sessions) {
+            visited++;
+        }
+        for (TestSession session : own.sessions) {
+            sessions.remove(session);
+        }
+        return visited;
+    }
+}
@@ -0,0 +1,131 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import Shared.Message;
+import Shared.MessageChannel;
+
+/**
+ * DOWNLOAD and UPLOAD of one file over loopback, through a server running in this JVM in thread
+ * mode, so the time covers ClientHandler.sendFile and receiveFile with everything they do:
+ * the zero-copy or buffered send, the blob store hashing an upload, the catalog update. The
+ * client side is a binary MessageChannel writing to and reading from a file.
+ *
+ * Divide the file size by the time per operation for the throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+    @Param({"65536", "1048576", "67108864"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean zeroCopy;
+
+    private Path directory;
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private SocketChannel socket;
+    private MessageChannel connection;
+    private FileChannel source;
+    private FileChannel target;
+    private final Message reply = new Message();
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("transfer-benchmark");
+        Path files = Files.createDirectory(directory.resolve("files"));
+        System.setProperty("server.files.dir", files.toString());
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        Files.write(files.resolve("download.bin"), content);
+        Path upload = Files.write(directory.resolve("upload.bin"), content);
+        ClientHandler.zeroCopy = zeroCopy;
+
+        serverSocket = Server.openServerSocket(0);
+        executor = Executors.newCachedThreadPool();
+        executor.execute(() -> Server.acceptClients(serverSocket, executor));
+
+        socket = SocketChannel.open(new InetSocketAddress("localhost", serverSocket.getLocalPort()));
+        connection = new MessageChannel(socket);
+        connection.send(Message.LOGIN, "user1", "1234", Message.BINARY);
+        expect(Message.LOGIN_SUCCESS);
+        connection.setBinary(true);
+
+        source = FileChannel.open(upload, StandardOpenOption.READ);
+        target = FileChannel.open(directory.resolve("received.bin"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        connection.send(Message.EXIT);
+        connection.close();
+        serverSocket.close();
+        executor.shutdownNow();
+        source.close();
+        target.close();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        connection.send(Message.DOWNLOAD, "download.bin");
+        expect(Message.FILE_INFO);
+        long length = Long.parseLong(reply.field(1));
+        target.position(0);
+        if (connection.readFileData(target, length) != length) {
+            throw new IOException("Download ended early");
+        }
+        return length;
+    }
+
+    // Always the same name, the server replaces the file and keeps the content once
+    @Benchmark
+    public long upload() throws IOException {
+        connection.send(Message.UPLOAD_REQUEST, "upload.bin", String.valueOf(size));
+        expect(Message.UPLOAD_READY);
+        connection.send(Message.UPLOAD_START);
+        connection.sendFileData(source, 0, size, zeroCopy);
+        expect(Message.UPLOAD_SUCCESS);
+        return size;
+    }
+
+    private void expect(byte type) throws IOException {
+        if (connection.read(reply) == null || reply.type != type) {
+            throw new IOException("Expected " + Message.name(type) + " but got "
+                    + (reply.type == Message.ERROR ? "ERROR " + reply.field(0) : Message.name(reply.type)));
+        }
+    }
+}
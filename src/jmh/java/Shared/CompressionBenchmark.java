@@ -0,0 +1,135 @@
+package Shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What compression costs the sender on a binary connection: one chat message through the
+ * connection's deflate stream, and a file of server log lines or random bytes sent as chunks,
+ * which are compressed on their own and sent as they are once they stop shrinking. The bytes go
+ * to a channel that discards them; CompressionTest checks what arrives and how much smaller it is.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    private static final String[] USERS = {"alice", "bob", "carol", "dave", "erin", "frank"};
+    private static final String[] WORDS = ("the a to and is it you that of in for on this with are be have not "
+            + "what just so was do get can like but no we if all download file upload room lobby").split(" ");
+    private static final int FILE_SIZE = 16 * 1024 * 1024;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    private static class DiscardChannel implements ByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            return length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            return -1;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private MessageChannel connection;
+    private String[] chat;
+    private int next;
+    private Path directory;
+    private FileChannel log;
+    private FileChannel random;
+
+    @Setup
+    public void setUp() throws IOException {
+        connection = new MessageChannel(new DiscardChannel());
+        connection.setBinary(true);
+        connection.setCompressed(compressed);
+
+        Random words = new Random(42);
+        chat = new String[4096];
+        for (int i = 0; i < chat.length; i++) {
+            StringBuilder line = new StringBuilder(USERS[words.nextInt(USERS.length)]).append(':');
+            int count = 3 + words.nextInt(12);
+            for (int w = 0; w < count; w++) {
+                line.append(' ').append(WORDS[words.nextInt(WORDS.length)]);
+            }
+            chat[i] = line.toString();
+        }
+
+        directory = Files.createTempDirectory("compression-benchmark");
+        Random values = new Random(7);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < FILE_SIZE) {
+            text.append(1_700_000_000_000L + text.length()).append(" INFO  Sent bytes 0-")
+                    .append(values.nextInt(1 << 24)).append(" of song.mp3 to user '")
+                    .append(USERS[values.nextInt(USERS.length)]).append(values.nextInt(100)).append("'.\n");
+        }
+        Path logFile = Files.writeString(directory.resolve("server.log"), text, StandardCharsets.UTF_8);
+        byte[] bytes = new byte[FILE_SIZE];
+        values.nextBytes(bytes);
+        Path randomFile = Files.write(directory.resolve("random.bin"), bytes);
+        log = FileChannel.open(logFile, StandardOpenOption.READ);
+        random = FileChannel.open(randomFile, StandardOpenOption.READ);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        log.close();
+        random.close();
+        Files.delete(directory.resolve("server.log"));
+        Files.delete(directory.resolve("random.bin"));
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void chatMessage() throws IOException {
+        connection.send(Message.CHAT, chat[next++ & (chat.length - 1)]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void logFile() throws IOException {
+        ChunkedTransfer.send(connection, log, 0, FILE_SIZE, false, true);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void randomFile() throws IOException {
+        ChunkedTransfer.send(connection, random, 0, FILE_SIZE, false, true);
+    }
+}
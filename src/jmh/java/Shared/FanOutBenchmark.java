@@ -0,0 +1,101 @@
+package Shared;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One chat message to every recipient, the three ways the server has done it:
+ *  - original: a new PrintWriter and a "CHAT|" + msg string for every recipient
+ *  - perRecipient: every recipient's MessageChannel encodes the message again
+ *  - encodeOnce: one EncodedMessage shared by all recipients, what the server does now
+ *
+ * The recipients write into channels that discard the bytes, so only the fan-out itself is
+ * measured. Run with "-prof gc" for the bytes allocated per broadcast.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+    private static final String MESSAGE = "alice: the quick brown fox jumps over the lazy dog, again and again";
+
+    @Param({"10", "100", "1000", "10000"})
+    public int recipients;
+
+    // Accepts and forgets everything, like a socket whose peer reads infinitely fast
+    private static class DiscardChannel implements ByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            return length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            return -1;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private OutputStream[] streams;
+    private MessageChannel[] channels;
+
+    @Setup
+    public void setUp() {
+        streams = new OutputStream[recipients];
+        channels = new MessageChannel[recipients];
+        for (int i = 0; i < recipients; i++) {
+            streams[i] = OutputStream.nullOutputStream();
+            channels[i] = new MessageChannel(new DiscardChannel());
+        }
+    }
+
+    @Benchmark
+    public void original() {
+        for (OutputStream out : streams) {
+            PrintWriter writer = new PrintWriter(out, true);
+            writer.println("CHAT|" + MESSAGE);
+        }
+    }
+
+    @Benchmark
+    public void perRecipient() throws IOException {
+        for (MessageChannel channel : channels) {
+            channel.send(Message.CHAT, MESSAGE);
+        }
+    }
+
+    @Benchmark
+    public void encodeOnce() throws IOException {
+        EncodedMessage encoded = new EncodedMessage(Message.CHAT, MESSAGE);
+        for (MessageChannel channel : channels) {
+            channel.send(encoded);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package Shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning one request into a command and its fields, three ways: String.split("\\|") like the
+ * nio mode still does, Message.parseLine for the text protocol of the blocking modes, and
+ * decoding a binary frame whose bytes are already in memory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({"CHAT", "UPLOAD_REQUEST", "LIST"})
+    public String command;
+
+    private String line;
+    private ByteBuffer frame;
+    private final Message message = new Message();
+
+    @Setup
+    public void setUp() {
+        String[] fields = switch (command) {
+            case "CHAT" -> new String[]{"the quick brown fox jumps over the lazy dog, again and again"};
+            case "UPLOAD_REQUEST" -> new String[]{"holiday-video.mp4", "734003200", "RESUME",
+                    "SHA256=9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08"};
+            default -> new String[]{"report-", "report-2024-03.pdf", "100"};
+        };
+        byte type = Message.typeOf(command);
+        line = command + "|" + String.join("|", fields);
+        frame = ByteBuffer.allocate(Message.encodedFrameSize(fields));
+        Message.encodeFrame(frame, type, fields);
+        frame.flip();
+    }
+
+    @Benchmark
+    public String[] split() {
+        return line.split("\\|");
+    }
+
+    @Benchmark
+    public Message parseLine() {
+        return message.parseLine(line);
+    }
+
+    @Benchmark
+    public Message decodeFrame() throws IOException {
+        ByteBuffer source = frame.duplicate();
+        byte type = source.get();
+        int length = source.getInt();
+        return message.readPayload(source, type, length);
+    }
+}
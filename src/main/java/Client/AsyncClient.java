@@ -0,0 +1,634 @@
+package Client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import Shared.ChunkedTransfer;
+import Shared.Compression;
+import Shared.ContentHash;
+import Shared.DeltaSync;
+import Shared.Message;
+import Shared.MessageChannel;
+import Shared.PartialFile;
+
+/**
+ * One connection to the server, usable from any thread. Every command returns a
+ * CompletableFuture right away, so several can be in flight at once: a LIST and a few DOWNLOADs
+ * are sent back to back and cost one round trip together rather than one each.
+ *
+ * A single reader thread takes everything off the socket. Chat from other users goes to the
+ * chat listener, every other message is the reply to a request. Each request gets an id and a
+ * place in a queue when it is written; the server answers the requests of a connection in
+ * order, so the oldest waiting request owns the next reply. Replies that carry data, like the
+ * chunks of a download or the records of CHAT_HISTORY, are read by the reader right after them.
+ *
+ * All writes go through one sender thread, which keeps the order of the queue and the order on
+ * the wire the same and never makes a caller wait for the socket. Transfers are driven from
+ * worker threads; uploads take turns because the server keeps one upload per connection.
+ *
+ * Futures complete on the reader thread, callbacks attached without an executor run there and
+ * must not block.
+ */
+public class AsyncClient implements Closeable {
+    // How often a transfer is retried when a chunk arrives damaged
+    private static final int MAX_TRANSFER_ATTEMPTS = 3;
+
+    // Files bigger than this are downloaded over several parallel connections
+    private static final long PARALLEL_THRESHOLD = 16 * 1024 * 1024;
+
+    public record Joined(String room, int online) {
+    }
+
+    public record ChatRecord(long offset, long time, String text) {
+    }
+
+    // Records from first on, next is where the log continues
+    public record HistoryPage(long first, long next, List<ChatRecord> records) {
+    }
+
+    public record FileEntry(String name, long size, long modified, String hash) {
+    }
+
+    // next is the name to continue after, empty on the last page
+    public record FilePage(String next, List<FileEntry> files) {
+    }
+
+    // sent is what actually went over the wire: 0 if the server had the content, less than size
+    // for a resumed or delta upload
+    public record UploadResult(String name, long size, long sent) {
+    }
+
+    @FunctionalInterface
+    private interface ReplyHandler<T> {
+        T handle(Message reply) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    private static final class Request<T> {
+        final long id;
+        final byte type;
+        final ReplyHandler<T> handler;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Request(long id, byte type, ReplyHandler<T> handler) {
+            this.id = id;
+            this.type = type;
+            this.handler = handler;
+        }
+
+        void reply(Message message) throws IOException {
+            if (message.type == Message.ERROR) {
+                future.completeExceptionally(new IOException(message.field(0)));
+            } else {
+                future.complete(handler.handle(message));
+            }
+        }
+    }
+
+    private final InetSocketAddress server;
+    private final boolean binary;
+    private final boolean compress;
+    private final SocketChannel socket;
+    private final MessageChannel connection;
+    private final Message message = new Message(); // the reader's
+    private final ConcurrentLinkedQueue<Request<?>> waiting = new ConcurrentLinkedQueue<>();
+    private final AtomicLong lastId = new AtomicLong();
+    private final ExecutorService sender;
+    private final ExecutorService transfers;
+    private final ReentrantLock uploadLock = new ReentrantLock();
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+    private volatile Consumer<String> chatListener = text -> { };
+    private volatile boolean closing;
+
+    // Set by a successful login, parallel downloads log in again with them
+    private volatile String username;
+    private volatile String password;
+    private volatile String token;
+
+    private AsyncClient(InetSocketAddress server, boolean binary, boolean compress, SocketChannel socket) {
+        this.server = server;
+        this.binary = binary;
+        this.compress = binary && compress;
+        this.socket = socket;
+        this.connection = new MessageChannel(socket);
+        this.sender = Executors.newSingleThreadExecutor(daemon("client-sender"));
+        this.transfers = Executors.newCachedThreadPool(daemon("client-transfer"));
+    }
+
+    /**
+     * Connects and starts the reader. binary and compress are asked for at login.
+     */
+    public static AsyncClient connect(InetSocketAddress server, boolean binary, boolean compress) throws IOException {
+        AsyncClient client = new AsyncClient(server, binary, compress, SocketChannel.open(server));
+        Thread reader = new Thread(client::read, "client-reader");
+        reader.setDaemon(true);
+        reader.start();
+        return client;
+    }
+
+    /**
+     * Receives the text of every chat message from other users, on the reader thread.
+     */
+    public void onChat(Consumer<String> listener) {
+        chatListener = listener;
+    }
+
+    /**
+     * Completes when the connection has ended, exceptionally if it broke.
+     */
+    public CompletableFuture<Void> closed() {
+        return closed;
+    }
+
+    /**
+     * Completes with false if the server refused the name or password. Requests sent after this
+     * one wait for its reply, since it decides whether they go out as text or binary frames.
+     */
+    public CompletableFuture<Boolean> login(String username, String password) {
+        List<String> fields = new ArrayList<>(List.of(username, password));
+        if (binary) {
+            fields.add(Message.BINARY);
+        }
+        if (compress) {
+            fields.add(Message.DEFLATE);
+        }
+        Request<Boolean> request = newRequest(Message.LOGIN, reply -> {
+            if (reply.type != Message.LOGIN_SUCCESS) {
+                return false;
+            }
+            // The server switches after this reply, so must the reader before the next frame.
+            // The sender waits for this request and writes nothing meanwhile
+            connection.setBinary(reply.hasField(Message.BINARY, 0));
+            connection.setCompressed(reply.hasField(Message.DEFLATE, 0));
+            this.username = username;
+            this.password = password;
+            this.token = reply.option(Message.TOKEN, 0);
+            return true;
+        });
+        submit(request, () -> {
+            connection.send(Message.LOGIN, fields.toArray(new String[0]));
+            try {
+                request.future.join();
+            } catch (CompletionException e) {
+                // the caller sees it
+            }
+        });
+        return request.future;
+    }
+
+    /**
+     * Completes when the message has been written; chat has no reply.
+     */
+    public CompletableFuture<Void> chat(String text) {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        execute(written, () -> {
+            connection.send(Message.CHAT, text);
+            written.complete(null);
+        });
+        return written;
+    }
+
+    public CompletableFuture<Joined> join(String room) {
+        return request(AsyncClient::joined, Message.JOIN, room);
+    }
+
+    public CompletableFuture<Joined> leave() {
+        return request(AsyncClient::joined, Message.LEAVE);
+    }
+
+    /**
+     * The last {@code count} messages of the current room.
+     */
+    public CompletableFuture<HistoryPage> history(int count) {
+        return request(this::historyPage, Message.HISTORY, String.valueOf(count));
+    }
+
+    /**
+     * {@code count} messages from {@code offset} on, to page back from an earlier page's first.
+     */
+    public CompletableFuture<HistoryPage> history(int count, long offset) {
+        return request(this::historyPage, Message.HISTORY, String.valueOf(count), String.valueOf(offset));
+    }
+
+    /**
+     * Up to {@code limit} files whose names start with {@code prefix}, after the name
+     * {@code after} (empty for the first page).
+     */
+    public CompletableFuture<FilePage> list(String prefix, String after, int limit) {
+        return request(reply -> {
+            expect(reply, Message.FILE_PAGE);
+            List<FileEntry> files = new ArrayList<>();
+            for (int i = 1; i + 3 < reply.fieldCount(); i += 4) {
+                files.add(new FileEntry(reply.field(i), Long.parseLong(reply.field(i + 1)),
+                        Long.parseLong(reply.field(i + 2)), reply.field(i + 3)));
+            }
+            return new FilePage(reply.field(0), files);
+        }, Message.LIST, prefix, after, String.valueOf(limit));
+    }
+
+    public CompletableFuture<List<String>> stats() {
+        return request(reply -> {
+            expect(reply, Message.STATS);
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < reply.fieldCount(); i++) {
+                lines.add(reply.field(i));
+            }
+            return lines;
+        }, Message.STATS);
+    }
+
+    /**
+     * Downloads the file to {@code target} and completes with its length. The bytes go to
+     * target.part first, which an interrupted download continues from as long as the server's
+     * file is still the version the bytes came from. Files over 16 MB are
+     * fetched over {@code streams} connections at once. {@code progress}, if not null, is told
+     * the bytes that have arrived now and then, from a transfer thread.
+     */
+    public CompletableFuture<Long> download(String name, Path target, int streams, LongConsumer progress) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return downloadFile(name, target, streams, progress);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, transfers);
+    }
+
+    /**
+     * Uploads the file under its own name. Content the server already has is not sent, nor is an
+     * upload's part that arrived before it was interrupted, and for an older version of the file
+     * only the difference.
+     */
+    public CompletableFuture<UploadResult> upload(Path file) {
+        return CompletableFuture.supplyAsync(() -> {
+            uploadLock.lock();
+            try {
+                return uploadFile(file);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            } finally {
+                uploadLock.unlock();
+            }
+        }, transfers);
+    }
+
+    /**
+     * Says goodbye, closes the socket and fails whatever is still waiting for a reply.
+     */
+    @Override
+    public void close() {
+        if (closing) {
+            return;
+        }
+        closing = true;
+        try {
+            sender.submit(() -> {
+                connection.send(Message.EXIT);
+                return null;
+            }).get(1, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            // closing anyway
+        }
+        closeSocket();
+        sender.shutdownNow();
+        transfers.shutdownNow();
+    }
+
+    private long downloadFile(String name, Path target, int streams, LongConsumer progress) throws IOException {
+        Path partPath = target.resolveSibling(target.getFileName() + ".part");
+        for (int attempt = 1; attempt <= MAX_TRANSFER_ATTEMPTS; attempt++) {
+            // The verified part of an earlier attempt is kept in the .part file, ask only for the rest
+            try (PartialFile part = PartialFile.open(partPath)) {
+                long[] received = {part.verified()}; // where the first range has got to
+                long[] start = {part.verified()};
+                ParallelDownload[] rest = new ParallelDownload[1];
+                ReplyHandler<long[]> receive = reply -> {
+                    expect(reply, Message.FILE_INFO);
+                    long fileLength = Long.parseLong(reply.field(1));
+                    if (reply.fieldCount() < 3) {
+                        // Server without resume support, it sends the whole file as raw bytes
+                        part.setVerified(0);
+                        received[0] = receiveRaw(part.channel(), fileLength, progress);
+                        return new long[]{fileLength, received[0]};
+                    }
+                    // The server starts over at 0 if the file has changed since the part was received
+                    long offset = Long.parseLong(reply.field(2));
+                    String version = reply.option(Message.VERSION, 3);
+                    if (offset != start[0]) {
+                        part.setVerified(0);
+                        part.channel().truncate(0);
+                        start[0] = received[0] = offset;
+                    }
+                    part.setVersion(version);
+                    long rangeEnd = streams > 1 ? offset + Long.parseLong(reply.field(3)) : fileLength;
+                    if (rangeEnd < fileLength) {
+                        ParallelDownload.preallocate(part.channel(), fileLength);
+                        rest[0] = ParallelDownload.start(server, username, password, token, binary, compress, name,
+                                version, part.channel(), rangeEnd, fileLength, streams);
+                    }
+                    long verified = ChunkedTransfer.receiveRange(connection, message, part.channel(), offset, rangeEnd,
+                            position -> {
+                                received[0] = position;
+                                if (progress != null) {
+                                    progress.accept(position - offset + (rest[0] == null ? 0 : rest[0].received.get()));
+                                }
+                            });
+                    return new long[]{fileLength, verified, rangeEnd};
+                };
+                List<String> fields = new ArrayList<>(List.of(name, String.valueOf(part.verified())));
+                if (streams > 1) {
+                    fields.add(String.valueOf(PARALLEL_THRESHOLD));
+                }
+                if (part.verified() > 0 && part.version() != null) {
+                    fields.add(Message.VERSION + "=" + part.version());
+                }
+                long[] result = request(receive, Message.DOWNLOAD, fields.toArray(new String[0])).join();
+                long fileLength = result[0];
+                long verified = result[1];
+                String failure = null;
+                if (rest[0] != null) {
+                    ParallelDownload parallel = rest[0];
+                    long restVerified = parallel.await(() -> {
+                        if (progress != null) {
+                            progress.accept(received[0] - start[0] + parallel.received.get());
+                        }
+                    });
+                    received[0] += parallel.received.get();
+                    if (verified == result[2]) {
+                        verified = restVerified;
+                    }
+                    failure = parallel.failure();
+                }
+                part.setVerified(verified);
+
+                if (verified == fileLength) {
+                    Files.move(part.finish(), target, StandardCopyOption.REPLACE_EXISTING);
+                    return fileLength;
+                }
+                part.save();
+                if (received[0] < fileLength) {
+                    throw new IOException("Download of " + name + " stopped after " + verified + " of " + fileLength
+                            + " bytes" + (failure == null ? "" : " (" + failure + ")") + ", download it again to continue.");
+                }
+                // Damaged on the way, the next attempt asks for the rest from the last good chunk
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            }
+        }
+        throw new IOException("Download of " + name + " kept arriving damaged.");
+    }
+
+    // Reads a plain, unchunked download on the reader thread and returns how many bytes arrived
+    private long receiveRaw(FileChannel file, long fileLength, LongConsumer progress) throws IOException {
+        long total = 0;
+        while (total < fileLength) {
+            long read = connection.readFileData(file, total, Math.min(ChunkedTransfer.CHUNK_SIZE, fileLength - total));
+            if (read <= 0) {
+                break;
+            }
+            total += read;
+            if (progress != null) {
+                progress.accept(total);
+            }
+        }
+        return total;
+    }
+
+    private UploadResult uploadFile(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        long size = Files.size(file);
+        // The server skips the transfer if it already stores content with this hash
+        String hashOption = Message.SHA256 + "=" + ContentHash.sha256(file);
+        // The delta is computed over a memory map of the file, which limits it to 2 GB
+        boolean delta = size <= Integer.MAX_VALUE;
+        try {
+            for (int attempt = 1; attempt <= MAX_TRANSFER_ATTEMPTS; attempt++) {
+                String[] fields = delta
+                        ? new String[]{name, String.valueOf(size), Message.RESUME, hashOption, Message.DELTA}
+                        : new String[]{name, String.valueOf(size), Message.RESUME, hashOption};
+                // The signatures of a delta follow their reply and are read with it
+                Request<Object[]> request = newRequest(Message.UPLOAD_REQUEST, r -> new Object[]{r.type,
+                        r.fieldCount() > 0 ? r.field(0) : "",
+                        r.type == Message.SIGNATURES ? DeltaSync.readSignatures(connection, message) : null});
+                Request<String[]> done = newRequest(Message.UPLOAD_START, AsyncClient::uploadOutcome);
+                CompletableFuture<Long> sent = new CompletableFuture<>();
+                boolean askedForDelta = delta;
+                submit(request, () -> {
+                    connection.send(Message.UPLOAD_REQUEST, fields);
+                    if (!askedForDelta) {
+                        return;
+                    }
+                    // The server reads the delta right after its signatures, so the sender waits for
+                    // them like at login and nothing else is written in between
+                    Object[] reply;
+                    try {
+                        reply = request.future.join();
+                    } catch (CompletionException e) {
+                        return; // the caller sees it
+                    }
+                    if ((byte) reply[0] == Message.SIGNATURES) {
+                        waiting.add(done);
+                        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                            sent.complete(DeltaSync.sendDelta(connection, (DeltaSync.Signatures) reply[2], channel));
+                        }
+                    }
+                });
+                Object[] reply = request.future.join();
+                byte type = (byte) reply[0];
+
+                if (type == Message.UPLOAD_SUCCESS) {
+                    return new UploadResult(name, size, 0);
+                } else if (type == Message.UPLOAD_DENIED) {
+                    throw new IOException("Server denied the upload: " + reply[1]);
+                } else if (type == Message.UPLOAD_READY) {
+                    long offset = ((String) reply[1]).isEmpty() ? -1 : Long.parseLong((String) reply[1]);
+                    submit(done, () -> {
+                        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                            connection.send(Message.UPLOAD_START);
+                            // Checksummed chunks from where the server is if it can resume
+                            if (offset >= 0) {
+                                ChunkedTransfer.send(connection, channel, offset, size, true, Compression.isCompressible(name));
+                                sent.complete(size - offset);
+                            } else {
+                                connection.sendFileData(channel, 0, size, true);
+                                sent.complete(size);
+                            }
+                        }
+                    });
+                } else if (type != Message.SIGNATURES) {
+                    throw new IOException("Unexpected reply " + Message.name(type) + " to an upload request");
+                }
+
+                String[] outcome = done.future.join();
+                if (outcome[0].equals(Message.name(Message.UPLOAD_SUCCESS))) {
+                    // The reply can overtake the sender's last step, which is counting what it sent
+                    return new UploadResult(name, size, sent.join());
+                }
+                if (attempt == MAX_TRANSFER_ATTEMPTS) {
+                    throw new IOException("Upload failed: " + outcome[1]);
+                }
+                // A delta the server could not apply is sent whole, damaged chunks from where they broke
+                delta = delta && type != Message.SIGNATURES;
+            }
+            throw new IOException("Upload failed.");
+        } catch (CompletionException e) {
+            // Lets the server drop its half of the upload, sending again continues where it stopped
+            execute(new CompletableFuture<>(), () -> connection.send(Message.UPLOAD_FAILED, name));
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+    }
+
+    private static String[] uploadOutcome(Message reply) {
+        return new String[]{Message.name(reply.type), reply.fieldCount() > 0 ? reply.field(0) : ""};
+    }
+
+    private static Joined joined(Message reply) throws IOException {
+        expect(reply, Message.JOINED);
+        return new Joined(reply.field(0), Integer.parseInt(reply.field(1)));
+    }
+
+    // "CHAT_HISTORY|first|next|length" is followed by length bytes of "offset|time|text\n" records
+    private HistoryPage historyPage(Message reply) throws IOException {
+        expect(reply, Message.CHAT_HISTORY);
+        long first = Long.parseLong(reply.field(0));
+        long next = Long.parseLong(reply.field(1));
+        byte[] data = new byte[Integer.parseInt(reply.field(2))];
+        connection.readData(data);
+        List<ChatRecord> records = new ArrayList<>();
+        if (data.length > 0) {
+            for (String record : new String(data, StandardCharsets.UTF_8).split("\n")) {
+                String[] parts = record.split("\\|", 3);
+                records.add(new ChatRecord(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]));
+            }
+        }
+        return new HistoryPage(first, next, records);
+    }
+
+    private static void expect(Message reply, byte type) throws IOException {
+        if (reply.type != type) {
+            throw new IOException("Expected " + Message.name(type) + " but got " + Message.name(reply.type));
+        }
+    }
+
+    private <T> Request<T> newRequest(byte type, ReplyHandler<T> handler) {
+        return new Request<>(lastId.incrementAndGet(), type, handler);
+    }
+
+    private <T> CompletableFuture<T> request(ReplyHandler<T> handler, byte type, String... fields) {
+        Request<T> request = newRequest(type, handler);
+        submit(request, () -> connection.send(type, fields));
+        return request.future;
+    }
+
+    // Queues the request for its reply and writes it, both on the sender so they happen in the same order
+    private void submit(Request<?> request, Write write) {
+        execute(request.future, () -> {
+            waiting.add(request);
+            write.run();
+        });
+    }
+
+    private void execute(CompletableFuture<?> future, Write write) {
+        if (closing || closed.isDone()) {
+            future.completeExceptionally(new IOException("Connection closed"));
+            return;
+        }
+        try {
+            sender.execute(() -> {
+                try {
+                    write.run();
+                } catch (IOException | RuntimeException e) {
+                    // Whatever was half written, the connection cannot be used any more
+                    future.completeExceptionally(e);
+                    closeSocket();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new IOException("Connection closed"));
+        }
+    }
+
+    private void read() {
+        IOException error = null;
+        try {
+            while (connection.read(message) != null) {
+                if (message.type == Message.CHAT) {
+                    try {
+                        chatListener.accept(message.field(0));
+                    } catch (RuntimeException e) {
+                        // the listener's problem, keep reading
+                    }
+                    continue;
+                }
+                Request<?> request = waiting.poll();
+                if (request == null) {
+                    throw new IOException("Unexpected " + Message.name(message.type) + " without a request"
+                            + (message.fieldCount() > 0 ? ": " + message.field(0) : ""));
+                }
+                try {
+                    request.reply(message);
+                } catch (IOException | RuntimeException e) {
+                    // The reply's data was not read to its end, nothing after it can be trusted
+                    request.future.completeExceptionally(e);
+                    throw new IOException("Request " + request.id + " (" + Message.name(request.type) + ") failed: "
+                            + e.getMessage(), e);
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+        closeSocket();
+        IOException cause = error != null && !closing ? error : new IOException("Connection closed");
+        Request<?> request;
+        while ((request = waiting.poll()) != null) {
+            request.future.completeExceptionally(cause);
+        }
+        if (error != null && !closing) {
+            closed.completeExceptionally(error);
+        } else {
+            closed.complete(null);
+        }
+        sender.shutdown();
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
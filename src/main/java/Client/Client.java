@@ -1,85 +1,129 @@
 package Client;
 
 import java.io.*;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * The console front end. Everything it says to the server goes through one AsyncClient, whose
+ * single reader hands chat to this console and replies to the futures, so the chat and the
+ * menus never read the connection at the same time. Downloads run in the background, several at
+ * once if asked, while the menus and the chat go on.
+ */
 public class Client {
-    private static Socket socket;
-    private static InputStream in;
-    private static OutputStream out;
-    private static BufferedReader reader;
-    private static PrintWriter writer;
-    private static String username;
-    private static String password;
+    // Files bigger than 16 MB are downloaded over -Dclient.streams=N parallel connections (default 4)
+    private static final int DOWNLOAD_STREAMS = Integer.getInteger("client.streams", 4);
 
+    // Files shown per page when choosing a download
+    private static final int LIST_PAGE_SIZE = 20;
 
-    public static void main(String[] args) throws Exception {
+    // Chat messages shown when entering a room and per "/history"
+    private static final int HISTORY_PAGE_SIZE = 20;
 
-        try (Socket socket = new Socket("localhost", 12345)) {
-            // Set up client's streams
-            setupStreams(socket);
+    // Any node of a cluster will do, -Dclient.server=host:port (default localhost:12345)
+    private static final InetSocketAddress SERVER_ADDRESS = serverAddress(System.getProperty("client.server", "localhost:12345"));
 
-            Scanner scanner = new Scanner(System.in);
+    // Ask the server for binary frames unless started with -Dclient.binary=false
+    private static final boolean USE_BINARY = !"false".equals(System.getProperty("client.binary"));
 
-            // --- LOGIN PHASE ---
-            System.out.println("===== Welcome to CS Music Room =====");
+    // Also ask for compression (needs binary frames) unless started with -Dclient.compress=false
+    private static final boolean USE_COMPRESSION = !"false".equals(System.getProperty("client.compress"));
 
+    private static final DateTimeFormatter HISTORY_TIME = DateTimeFormatter.ofPattern("MMM d HH:mm");
 
-            boolean loggedIn = false;
-            while (!loggedIn) {
-                System.out.print("Username: ");
-                username = scanner.nextLine();
-                System.out.print("Password: ");
-                password = scanner.nextLine();
+    private final AsyncClient client;
+    private final Scanner scanner;
+    private String username;
+    private volatile boolean inChat;
 
-                sendLoginRequest(username, password);
+    // Offset of the oldest history message shown, where "/history" continues backwards from
+    private long oldestShown = -1;
 
-                String loginResponse = reader.readLine();
-                if (loginResponse.startsWith("LOGIN-SUCCESS")) {
-                    loggedIn = true;
-                    System.out.println("Logging succesful");
-                    System.out.println("Logged in " + username);
-                } else {
-                    System.out.println("Login failed. Please try again");
-                }
+    private Client(AsyncClient client, Scanner scanner) {
+        this.client = client;
+        this.scanner = scanner;
+    }
+
+    public static void main(String[] args) throws Exception {
+        try (AsyncClient client = AsyncClient.connect(SERVER_ADDRESS, USE_BINARY, USE_COMPRESSION)) {
+            new Client(client, new Scanner(System.in)).run();
+        } catch (IOException e) {
+            System.out.println("Connection error: " + e.getMessage());
+        }
+    }
+
+    // "host:port", or just a host for the default port
+    static InetSocketAddress serverAddress(String value) {
+        int colon = value.lastIndexOf(':');
+        return colon < 0 ? new InetSocketAddress(value, 12345)
+                : new InetSocketAddress(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1)));
+    }
+
+    private void run() throws IOException {
+        client.onChat(text -> {
+            if (inChat) {
+                System.out.println(text);
+            }
+        });
+        client.closed().whenComplete((done, error) -> System.out.println("Disconnected from server."));
+
+        // --- LOGIN PHASE ---
+        System.out.println("===== Welcome to CS Music Room =====");
+
+        boolean loggedIn = false;
+        while (!loggedIn) {
+            System.out.print("Username: ");
+            username = scanner.nextLine();
+            System.out.print("Password: ");
+            String password = scanner.nextLine();
+
+            loggedIn = await(client.login(username, password));
+            if (loggedIn) {
+                System.out.println("Logging succesful");
+                System.out.println("Logged in " + username);
+            } else {
+                System.out.println("Login failed. Please try again");
             }
+        }
 
-            // --- ACTION MENU LOOP ---
-            while (true) {
-                printMenu();
-                System.out.print("Enter choice: ");
-                String choice = scanner.nextLine();
+        // --- ACTION MENU LOOP ---
+        while (true) {
+            printMenu();
+            System.out.print("Enter choice: ");
+            String choice = scanner.nextLine();
 
+            try {
                 switch (choice) {
-                    case "1" -> enterChat(scanner);
-                    case "2" -> uploadFile(scanner);
-                    case "3" -> requestDownload(scanner);
+                    case "1" -> enterChat();
+                    case "2" -> uploadFile();
+                    case "3" -> requestDownload();
                     case "0" -> {
                         System.out.println("Exiting...");
-                        writer.println("EXIT");
                         return;
                     }
                     default -> System.out.println("Invalid choice.");
                 }
+            } catch (IOException e) {
+                System.out.println("Error: " + e.getMessage());
+                if (client.closed().isDone()) {
+                    return;
+                }
             }
-
-        } catch (IOException e) {
-            System.out.println("Connection error: " + e.getMessage());
         }
     }
 
-    private static void setupStreams(Socket socket) throws IOException {
-        in = socket.getInputStream();
-        out = socket.getOutputStream();
-        reader = new BufferedReader(new InputStreamReader(in));
-        writer = new PrintWriter(out, true);
-    }
-
-    private static void printMenu() {
+    private void printMenu() {
         System.out.println("\n--- Main Menu ---");
         System.out.println("1. Enter chat box");
         System.out.println("2. Upload a file");
@@ -87,51 +131,108 @@ public class Client {
         System.out.println("0. Exit");
     }
 
-    private static void sendLoginRequest(String username, String password) {
-        writer.println("LOGIN|" + username + "|" + password);
-    }
-
-    private static void enterChat(Scanner scanner) throws IOException {
-        System.out.print("You have entered the chat ");
-
-        // Start a thread to listen for incoming messages from the server
-        ClientReceiver receiver = new ClientReceiver(in, reader);
-        Thread receiverThread = new Thread(receiver);
-        receiverThread.start();
-        receiver.setInChat(true);
+    private void enterChat() throws IOException {
+        System.out.print("You have entered the chat (/join <room> to switch rooms, /leave for the lobby, "
+                + "/history for earlier messages, /stats for server statistics, /exit to leave) ");
+        inChat = true;
+        try {
+            // Show what was said before this client came in
+            printHistory(historyOrEmpty(client.history(HISTORY_PAGE_SIZE)));
+
+            String message_string = "";
+            while (!message_string.equalsIgnoreCase("/exit")){
+                message_string = scanner.nextLine();
+                try {
+                    chatCommand(message_string);
+                } catch (IOException e) {
+                    // A refused command leaves the client in the chat, a lost connection does not
+                    if (client.closed().isDone()) {
+                        throw e;
+                    }
+                    System.out.println("Error: " + e.getMessage());
+                }
+            }
 
-        String message_string = "";
-        while (!message_string.equalsIgnoreCase("/exit")){
-            message_string = scanner.nextLine();
+            System.out.println("You have left the chat.");
+        } finally {
+            inChat = false;
+        }
+    }
 
-            if (!message_string.equalsIgnoreCase("/exit") && !(message_string == "")){
+    private void chatCommand(String message_string) throws IOException {
+        // The history of the new room is asked for right behind the switch, both in one round trip
+        if (message_string.toLowerCase().startsWith("/join ")) {
+            CompletableFuture<AsyncClient.Joined> joined = client.join(message_string.substring("/join ".length()).trim());
+            CompletableFuture<AsyncClient.HistoryPage> history = client.history(HISTORY_PAGE_SIZE);
+            printJoined(await(joined));
+            printHistory(historyOrEmpty(history));
+        } else if (message_string.equalsIgnoreCase("/leave")) {
+            CompletableFuture<AsyncClient.Joined> joined = client.leave();
+            CompletableFuture<AsyncClient.HistoryPage> history = client.history(HISTORY_PAGE_SIZE);
+            printJoined(await(joined));
+            printHistory(historyOrEmpty(history));
+        } else if (message_string.equalsIgnoreCase("/stats")) {
+            System.out.println("--- Server statistics ---");
+            for (String line : await(client.stats())) {
+                System.out.println(line);
+            }
+        } else if (message_string.equalsIgnoreCase("/history")) {
+            // The page before the oldest message shown so far
+            if (oldestShown > 0) {
+                long count = Math.min(HISTORY_PAGE_SIZE, oldestShown);
+                printHistory(historyOrEmpty(client.history((int) count, oldestShown - count)));
+            } else {
+                System.out.println("(no earlier messages)");
+            }
+        } else if (!message_string.equalsIgnoreCase("/exit") && !message_string.isEmpty()) {
+            client.chat(message_string); // Sends the message to the server
+        }
+    }
 
-                sendChatMessage(message_string); // Sends the message to the server
+    // Servers without a chat history (the nio mode) answer HISTORY with an ERROR, which is shown
+    // like a room nobody has written in yet
+    private AsyncClient.HistoryPage historyOrEmpty(CompletableFuture<AsyncClient.HistoryPage> history) throws IOException {
+        try {
+            return await(history);
+        } catch (IOException e) {
+            if (client.closed().isDone()) {
+                throw e;
             }
+            return new AsyncClient.HistoryPage(0, 0, List.of());
         }
+    }
 
-        System.out.println("You have left the chat.");
-        receiver.setInChat(false);
+    private static void printJoined(AsyncClient.Joined joined) {
+        System.out.println("You are now in room '" + joined.room() + "' (" + joined.online() + " online)");
     }
 
-    private static void sendChatMessage(String message_to_send) throws IOException {
-        String formattedMessage = "CHAT|" + message_to_send;
-        writer.println(formattedMessage);
+    private void printHistory(AsyncClient.HistoryPage page) {
+        if (page.records().isEmpty()) {
+            System.out.println("(no earlier messages)");
+            return;
+        }
+        for (AsyncClient.ChatRecord record : page.records()) {
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(record.time()), ZoneId.systemDefault());
+            System.out.println("[" + HISTORY_TIME.format(time) + "] " + record.text());
+        }
+        oldestShown = page.first();
+        if (page.first() > 0) {
+            System.out.println("(/history for older messages)");
+        }
     }
 
-    private static void uploadFile(Scanner scanner) throws IOException {
+    private void uploadFile() throws IOException {
 
         // List all available files in client directory
-        String userDir = System.getProperty("user.dir");  // Current working directory
-        String path = userDir + "/src/main/resources/Client." + username.trim();
-        File clientDir = new File(path);
+        File clientDir = userDir().toFile();
 
         if (!clientDir.exists() || !clientDir.isDirectory()) {
             System.out.println("Client directory not found.");
             return;
         }
 
-        File[] files = clientDir.listFiles();
+        // Unfinished downloads are not offered
+        File[] files = clientDir.listFiles((dir, name) -> !name.endsWith(".part") && !name.endsWith(".part.offset"));
         if (files == null || files.length == 0) {
             System.out.println("No files to upload.");
             return;
@@ -162,130 +263,129 @@ public class Client {
             }
         }
 
+        File file = files[choice];
         try {
-            // 1. Send metadata first
-            writer.println("UPLOAD_REQUEST|" + files[choice].getName() + "|" + files[choice].length());
-
-            // 2. Wait for server to say UPLOAD_READY
-            String response = reader.readLine();
-
-            if (response.startsWith("UPLOAD_DENIED")) {
-                System.out.println("Server denied the upload: " + response.split("\\|", 2)[1]);
-                return;
-            } else if (response.equals("UPLOAD_READY")) {
-
-                // 3. Try to open the file
-                FileInputStream fileInputStream = new FileInputStream(files[choice]);
-
-                // 4. If that succeeded, notify server to begin receiving
-                writer.println("UPLOAD_START");
-
-                // 5. Send raw bytes
-                BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(out);
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                    bufferedOutputStream.write(buffer, 0, bytesRead);
-                }
-
-                bufferedOutputStream.flush();
-                fileInputStream.close();
+            AsyncClient.UploadResult result = await(client.upload(file.toPath()));
+            if (result.sent() == 0) {
+                System.out.println("Upload complete, the server already had this content.");
+            } else if (result.sent() < result.size()) {
+                System.out.println("Upload complete, sent " + result.sent() + " of " + result.size()
+                        + " bytes, the rest was already on the server.");
+            } else {
                 System.out.println("Upload complete.");
             }
-
         } catch (IOException e) {
             System.out.println("Failed to upload file: " + e.getMessage());
-
-            try {
-                writer.println("UPLOAD_FAILED|" + files[choice].getName());
-            } catch (Exception ex) {
-                System.out.println("Could not notify server about upload failure.");
-            }
+            System.out.println("Upload it again to continue where it stopped.");
         }
     }
 
-    private static void requestDownload(Scanner scanner) throws IOException {
-        // Step 1 : Request a list of available files
-        writer.println("LIST");
-
-        String fileListResponse = reader.readLine();
-        if (fileListResponse == null || !fileListResponse.startsWith("FILE_LIST|")) {
-            System.out.println("Failed to get file list from server.");
-            return;
-        }
+    private void requestDownload() throws IOException {
+        // Step 1 : Request the first page of available files
+        String prefix = "";
+        String after = "";
+        List<String> selected = null;
+        while (selected == null) {
+            AsyncClient.FilePage page = await(client.list(prefix, after, LIST_PAGE_SIZE));
+
+            // Step 2 : Display the page
+            List<AsyncClient.FileEntry> files = page.files();
+            if (files.isEmpty()) {
+                if (prefix.isEmpty()) {
+                    System.out.println("No files available on the server.");
+                    return;
+                }
+                System.out.println("No files starting with '" + prefix + "'.");
+                prefix = "";
+                after = "";
+                continue;
+            }
 
-        // Step 2 : Parse and display file list
-        String[] parts = fileListResponse.split("\\|", 2);
-        String[] files = parts[1].split(",");
+            System.out.println("Available files:");
+            for (int i = 0; i < files.size(); i++) {
+                System.out.printf("%d. %s (%,d bytes)%n", i + 1, files.get(i).name(), files.get(i).size());
+            }
 
-        if (files.length == 0 || files[0].isEmpty()) {
-            System.out.println("No files available on the server.");
-            return;
+            // Step 3 : Prompt user to choose files, see more of the list or search it
+            System.out.println("Enter the numbers of the files to download (e.g. 1 3 4)"
+                    + (page.next().isEmpty() ? "" : ", 'n' for more files") + " or the start of a file name to search for: ");
+            while (true) {
+                String input = scanner.nextLine().trim();
+                if (input.isEmpty()) {
+                    System.out.println("Invalid choice. Please try again.");
+                    continue;
+                }
+                if (input.equals("n") && !page.next().isEmpty()) {
+                    after = page.next();
+                    break;
+                }
+                List<String> chosen = choose(input, files);
+                if (chosen == null) {
+                    prefix = input;
+                    after = "";
+                    break;
+                }
+                if (!chosen.isEmpty()) {
+                    selected = chosen;
+                    break;
+                }
+                System.out.println("Invalid choice. Please try again.");
+            }
         }
 
-        System.out.println("Available files:");
-        for (int i = 0; i < files.length; i++) {
-            System.out.println((i + 1) + ". " + files[i]);
+        // Step 4 : All of them at once, the requests go out back to back and the replies stream in
+        Path dir = userDir();
+        Files.createDirectories(dir);
+        for (String name : selected) {
+            Path savePath = dir.resolve(Paths.get(name).getFileName().toString());
+            long start = System.nanoTime();
+            client.download(name, savePath, DOWNLOAD_STREAMS, null).whenComplete((length, error) -> {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    System.out.println("Download of " + name + " failed: " + cause.getMessage());
+                    return;
+                }
+                double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+                System.out.printf("File downloaded and saved to: %s (%d bytes in %.2f s, %.1f MB/s)%n", savePath,
+                        length, seconds, length / seconds / (1024 * 1024));
+            });
         }
+        System.out.println("Downloading " + selected.size() + (selected.size() == 1 ? " file" : " files")
+                + " in the background.");
+    }
 
-        // Step 3 : Prompt user to choose a file
-        System.out.println("Enter the number of the file to download: ");
-        int choice;
-
-        // Handle invalid input
-        while (true) {
-            choice = scanner.nextInt();
-            scanner.nextLine(); // Clear newline
-
-            if (choice >= 1 && choice <= files.length) {
-                break;
+    // The files with the numbers in input, empty if a number is out of range, null if input is not numbers
+    private static List<String> choose(String input, List<AsyncClient.FileEntry> files) {
+        List<String> chosen = new ArrayList<>();
+        for (String number : input.split("[\\s,]+")) {
+            int choice;
+            try {
+                choice = Integer.parseInt(number);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (choice < 1 || choice > files.size()) {
+                return List.of();
+            }
+            String name = files.get(choice - 1).name();
+            if (!chosen.contains(name)) {
+                chosen.add(name);
             }
-            System.out.println("Invalid choice. Please try again.");
-        }
-
-        String selectedFile = files[choice - 1];
-        writer.println("DOWNLOAD|" + selectedFile);
-
-        // Step 4 : Receive file info
-        String fileInfo = reader.readLine();
-        if (fileInfo == null || !fileInfo.startsWith("FILE_INFO|")) {
-            System.out.println("Failed to receive file info from server.");
-            return;
         }
+        return chosen;
+    }
 
-        String[] fileInfoParts = fileInfo.split("\\|");
-        String fileName = fileInfoParts[1];
-        int fileLength = Integer.parseInt(fileInfoParts[2]);
-
-        // Step 5 : Receive file bytes
-        byte[] buffer = new byte[4096];
-        int totalRead = 0;
-        byte[] fileData = new byte[fileLength];
-
-        while (totalRead < fileLength) {
-            int bytesRead = in.read(buffer, 0, Math.min(buffer.length, fileLength - totalRead));
-            if (bytesRead == -1) break;
-
-            System.arraycopy(buffer, 0, fileData, totalRead, bytesRead);
-            totalRead += bytesRead;
-        }
+    // Get the base project directory, then base/src/main/resources/Client.username
+    private Path userDir() {
+        return Paths.get(System.getProperty("user.dir"), "src", "main", "resources", "Client." + username.trim());
+    }
 
-        if (totalRead != fileLength) {
-            System.out.println("Warning: File received is incomplete (" + totalRead + "/" + fileLength + " bytes).");
-            System.out.println("Please try again.");
-            return;
+    // Waits for a reply of the server, its failure comes back as the IOException it was
+    private static <T> T await(CompletableFuture<T> reply) throws IOException {
+        try {
+            return reply.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
         }
-
-        // Step 6 : Save file to user's folder
-        // Get the base project directory (absolute path)
-        String baseDir = System.getProperty("user.dir");  // e.g., C:/Users/Notebook/Ap-course/Seventh-Assignment-Socket-Programming
-
-        // Build the full path: base/resources/Client.username
-        Path userDir = Paths.get(baseDir, "src", "main", "resources", "Client." + username.trim());
-
-        Path savePath = userDir.resolve(fileName);
-        Files.write(savePath, fileData);
-
-        System.out.println("File downloaded and saved to: " + savePath);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,598 @@
+package Client;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import Shared.ChunkedTransfer;
+import Shared.LatencyHistogram;
+import Shared.Message;
+import Shared.MessageChannel;
+
+/**
+ * Puts a server under the load of many users at once, without a console, for soak and capacity
+ * tests on one machine.
+ *
+ * Every simulated user logs in on its own connection, joins one of the rooms and chats at a
+ * random (Poisson) rate, while a reader per user takes the chat of the others off its socket.
+ * Uploads and downloads go over extra connections that log in with the user's session token,
+ * like parallel downloads do, one transfer per user at a time. Uploaded files are named
+ * load-<user>.bin, so each user keeps one file on the server, downloads pick any file the server
+ * listed at the start or that was uploaded since.
+ *
+ * Chat latency is the time from sending a message until another member of the room receives it,
+ * which works because sender and receivers share this JVM's clock. The other latencies are
+ * login until LOGIN_SUCCESS and a whole transfer including its login. Every few seconds a
+ * progress line is printed, at the end throughput, p50/p99/p99.9 and errors per operation.
+ *
+ * Usage: java [options] Client.LoadGenerator, with
+ *   -Dload.server=host:port        the server (default localhost:12345)
+ *   -Dload.users=N                 simulated users (1000)
+ *   -Dload.duration=S              seconds of load after the ramp-up (60)
+ *   -Dload.rampUp=S                seconds over which the users log in (10)
+ *   -Dload.rooms=N                 rooms the users are spread over (10)
+ *   -Dload.chatRate=R              chat messages per user and second (0.5)
+ *   -Dload.chatLength=N            characters per chat message (100)
+ *   -Dload.uploadRate=R            uploads per user and second (0.01)
+ *   -Dload.downloadRate=R          downloads per user and second (0.02)
+ *   -Dload.fileSizes=64K:80,...    upload sizes with their weights (64K:80,1M:18,16M:2)
+ *   -Dload.accounts=a:pw,b:pw      accounts the users log in as, in turn, or @file with one
+ *                                  "name:password" per line (the five built-in users)
+ *   -Dload.binary=false            text protocol instead of binary frames
+ *   -Dload.compress=true           also ask for compression
+ *
+ * Thousands of users need as many sockets, raise the open file limit (ulimit -n) for both sides.
+ * On Java 21 the readers are virtual threads, before that platform threads with small stacks.
+ */
+public class LoadGenerator {
+    private static final InetSocketAddress SERVER = Client.serverAddress(System.getProperty("load.server", "localhost:12345"));
+    private static final int USERS = Integer.getInteger("load.users", 1000);
+    private static final long DURATION_SECONDS = Long.getLong("load.duration", 60);
+    private static final long RAMP_UP_SECONDS = Long.getLong("load.rampUp", 10);
+    private static final int ROOMS = Integer.getInteger("load.rooms", 10);
+    private static final double CHAT_RATE = Double.parseDouble(System.getProperty("load.chatRate", "0.5"));
+    private static final int CHAT_LENGTH = Integer.getInteger("load.chatLength", 100);
+    private static final double UPLOAD_RATE = Double.parseDouble(System.getProperty("load.uploadRate", "0.01"));
+    private static final double DOWNLOAD_RATE = Double.parseDouble(System.getProperty("load.downloadRate", "0.02"));
+    private static final String FILE_SIZES = System.getProperty("load.fileSizes", "64K:80,1M:18,16M:2");
+    private static final String ACCOUNTS = System.getProperty("load.accounts",
+            "user1:1234,user2:1234,user3:1234,user4:1234,user5:1234");
+    private static final boolean USE_BINARY = !"false".equals(System.getProperty("load.binary"));
+    private static final boolean USE_COMPRESSION = USE_BINARY && "true".equals(System.getProperty("load.compress"));
+
+    private static final long PROGRESS_SECONDS = 5;
+    private static final int LIST_PAGE_SIZE = 1000;
+
+    // Put in front of the send time in every chat message, the server adds "username: " before it
+    private static final String MARKER = ": @";
+
+    private enum Operation {
+        LOGIN, CHAT, UPLOAD, DOWNLOAD;
+
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        volatile String lastError;
+
+        void failed(String error) {
+            errors.increment();
+            lastError = error;
+        }
+    }
+
+    private static final class User {
+        final int id;
+        final String username;
+        final String password;
+        final String room;
+        volatile SocketChannel socket;
+        volatile MessageChannel connection;
+        volatile String token;
+
+        User(int id, String username, String password, String room) {
+            this.id = id;
+            this.username = username;
+            this.password = password;
+            this.room = room;
+        }
+    }
+
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder chatsSent = new LongAdder();
+    private static final LongAdder connectionsLost = new LongAdder();
+    private static final AtomicInteger online = new AtomicInteger();
+    private static volatile boolean stopping;
+
+    // Files that can be downloaded, with their sizes
+    private static final ConcurrentHashMap<String, Long> files = new ConcurrentHashMap<>();
+
+    private static long[] sizes;
+    private static int[] cumulativeWeights;
+    private static ByteBuffer content; // random bytes that every upload is cut from
+    private static String padding;
+    private static Path downloadDir;
+
+    private static ScheduledExecutorService scheduler;
+    private static ExecutorService workers;
+
+    public static void main(String[] args) throws Exception {
+        List<String[]> accounts = readAccounts(ACCOUNTS);
+        parseSizes(FILE_SIZES);
+        long largest = 0;
+        for (long size : sizes) {
+            largest = Math.max(largest, size);
+        }
+        if (largest > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Upload sizes are limited to 2 GB");
+        }
+        byte[] random = new byte[(int) largest];
+        new Random(42).nextBytes(random);
+        content = ByteBuffer.allocateDirect(random.length).put(random).flip();
+        padding = "x".repeat(Math.max(0, CHAT_LENGTH - 22));
+        downloadDir = Files.createTempDirectory("load-downloads");
+
+        System.out.printf("%d users against %s, %d rooms, for %d s after a %d s ramp-up%n", USERS, SERVER, ROOMS,
+                DURATION_SECONDS, RAMP_UP_SECONDS);
+        System.out.printf("per user and second: %.3f chats, %.4f uploads (%s), %.4f downloads; %s%s%n", CHAT_RATE,
+                UPLOAD_RATE, FILE_SIZES, DOWNLOAD_RATE, USE_BINARY ? "binary" : "text",
+                USE_COMPRESSION ? ", compressed" : "");
+
+        listFiles(accounts.get(0));
+
+        scheduler = Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        workers = newWorkerExecutor();
+        List<User> users = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < USERS; i++) {
+            String[] account = accounts.get(i % accounts.size());
+            User user = new User(i, account[0], account[1], "load-" + (i % ROOMS));
+            users.add(user);
+            long delay = RAMP_UP_SECONDS * 1_000_000_000L * i / USERS;
+            scheduler.schedule(() -> execute(() -> run(user)), delay, TimeUnit.NANOSECONDS);
+        }
+
+        // Progress until the time is up
+        long end = start + (RAMP_UP_SECONDS + DURATION_SECONDS) * 1_000_000_000L;
+        long[] last = new long[4];
+        long lastNanos = start;
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(PROGRESS_SECONDS * 1000, Math.max(1, (end - System.nanoTime()) / 1_000_000)));
+            long now = System.nanoTime();
+            printProgress(now - start, now - lastNanos, last);
+            lastNanos = now;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        stopping = true;
+        scheduler.shutdownNow();
+        for (User user : users) {
+            disconnect(user);
+        }
+        workers.shutdownNow();
+        workers.awaitTermination(5, TimeUnit.SECONDS);
+        printReport(elapsed);
+        deleteDownloads();
+    }
+
+    // One user: log in, join the room, start the chat and transfers, then read until disconnected
+    private static void run(User user) {
+        if (stopping) {
+            return;
+        }
+        long start = System.nanoTime();
+        Message message = new Message();
+        try {
+            user.socket = SocketChannel.open(SERVER);
+            user.connection = channel(user.socket);
+            Message reply = login(user.connection, message, user.username, user.password, null);
+            if (reply == null || reply.type != Message.LOGIN_SUCCESS) {
+                throw new IOException("Login failed for " + user.username);
+            }
+            Operation.LOGIN.latency.record(System.nanoTime() - start);
+            user.token = reply.option(Message.TOKEN, 0);
+            user.connection.send(Message.JOIN, user.room);
+        } catch (IOException e) {
+            Operation.LOGIN.failed(e.getMessage());
+            close(user.socket);
+            return;
+        }
+
+        online.incrementAndGet();
+        schedule(() -> chat(user), CHAT_RATE);
+        schedule(() -> upload(user), UPLOAD_RATE);
+        schedule(() -> download(user), DOWNLOAD_RATE);
+        try {
+            while (user.connection.read(message) != null) {
+                if (message.type == Message.CHAT) {
+                    received(message.field(0));
+                } else if (message.type == Message.ERROR) {
+                    Operation.CHAT.failed(message.field(0));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // counted below
+        }
+        online.decrementAndGet();
+        if (!stopping) {
+            connectionsLost.increment();
+        }
+    }
+
+    private static void chat(User user) {
+        try {
+            user.connection.send(Message.CHAT, "@" + System.nanoTime() + " " + padding);
+            chatsSent.increment();
+        } catch (IOException e) {
+            return; // the reader notices the lost connection
+        }
+        schedule(() -> chat(user), CHAT_RATE);
+    }
+
+    // A chat message of another load user, the time it took to get here is recorded
+    private static void received(String text) {
+        int marker = text.indexOf(MARKER);
+        if (marker < 0) {
+            return; // someone else's chat
+        }
+        int from = marker + MARKER.length();
+        int to = text.indexOf(' ', from);
+        try {
+            long sent = Long.parseLong(text, from, to < 0 ? text.length() : to, 10);
+            Operation.CHAT.latency.record(System.nanoTime() - sent);
+        } catch (NumberFormatException e) {
+            // not one of ours
+        }
+    }
+
+    private static void upload(User user) {
+        long size = randomSize();
+        String name = "load-" + user.id + ".bin";
+        long start = System.nanoTime();
+        Message message = new Message();
+        try (SocketChannel socket = SocketChannel.open(SERVER)) {
+            MessageChannel connection = channel(socket);
+            loginWithToken(connection, message, user);
+
+            connection.send(Message.UPLOAD_REQUEST, name, String.valueOf(size), Message.RESUME);
+            Message reply = readReply(connection, message);
+            if (reply == null || reply.type != Message.UPLOAD_READY) {
+                throw new IOException("Upload refused: " + describe(reply));
+            }
+            long offset = reply.fieldCount() > 0 ? Long.parseLong(reply.field(0)) : 0;
+            connection.send(Message.UPLOAD_START);
+            ChunkedTransfer.send(connection, content, offset, size, null);
+            reply = readReply(connection, message);
+            if (reply == null || reply.type != Message.UPLOAD_SUCCESS) {
+                throw new IOException("Upload failed: " + describe(reply));
+            }
+            connection.send(Message.EXIT);
+            Operation.UPLOAD.latency.record(System.nanoTime() - start);
+            files.put(name, size);
+        } catch (IOException | RuntimeException e) {
+            if (!stopping) {
+                Operation.UPLOAD.failed(e.getMessage());
+            }
+        }
+        schedule(() -> upload(user), UPLOAD_RATE);
+    }
+
+    private static void download(User user) {
+        String name = randomFile();
+        if (name != null) {
+            long start = System.nanoTime();
+            Message message = new Message();
+            Path target = null;
+            try (SocketChannel socket = SocketChannel.open(SERVER)) {
+                MessageChannel connection = channel(socket);
+                loginWithToken(connection, message, user);
+
+                connection.send(Message.DOWNLOAD, name, "0");
+                Message reply = readReply(connection, message);
+                if (reply == null || reply.type != Message.FILE_INFO) {
+                    throw new IOException("No file info for " + name + ": " + describe(reply));
+                }
+                long size = Long.parseLong(reply.field(1));
+                boolean chunked = reply.fieldCount() >= 3;
+
+                // Every download has its own file, the checksums are computed from what was written
+                target = Files.createTempFile(downloadDir, "download", ".part");
+                long received;
+                try (FileChannel file = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    received = chunked
+                            ? ChunkedTransfer.receiveRange(connection, message, file, 0, size, null)
+                            : receiveRaw(connection, file, size);
+                }
+                if (received != size) {
+                    throw new IOException("Download of " + name + " ended after " + received + " of " + size + " bytes");
+                }
+                connection.send(Message.EXIT);
+                Operation.DOWNLOAD.latency.record(System.nanoTime() - start);
+            } catch (IOException | RuntimeException e) {
+                if (!stopping) {
+                    Operation.DOWNLOAD.failed(e.getMessage());
+                }
+            } finally {
+                if (target != null) {
+                    try {
+                        Files.deleteIfExists(target);
+                    } catch (IOException e) {
+                        // deleted with the directory at the end
+                    }
+                }
+            }
+        }
+        schedule(() -> download(user), DOWNLOAD_RATE);
+    }
+
+    private static long receiveRaw(MessageChannel connection, FileChannel file, long size) throws IOException {
+        long total = 0;
+        while (total < size) {
+            long read = connection.readFileData(file, total, size - total);
+            if (read <= 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    // Runs the task on a worker after a random wait, so that it happens rate times a second on
+    // average. The scheduler only keeps time, a send that blocks never delays another user
+    private static void schedule(Runnable task, double rate) {
+        if (stopping || rate <= 0) {
+            return;
+        }
+        double seconds = -Math.log(1 - ThreadLocalRandom.current().nextDouble()) / rate;
+        try {
+            scheduler.schedule(() -> execute(task), (long) (seconds * 1e9), TimeUnit.NANOSECONDS);
+        } catch (RuntimeException e) {
+            // shut down meanwhile
+        }
+    }
+
+    private static void execute(Runnable task) {
+        try {
+            workers.execute(task);
+        } catch (RuntimeException e) {
+            // shut down meanwhile
+        }
+    }
+
+    private static MessageChannel channel(SocketChannel socket) throws IOException {
+        socket.socket().setTcpNoDelay(true);
+        MessageChannel connection = new MessageChannel(socket);
+        connection.countBytes(bytesIn, bytesOut);
+        return connection;
+    }
+
+    private static Message login(MessageChannel connection, Message message, String username, String password,
+                                 String token) throws IOException {
+        List<String> fields = new ArrayList<>(List.of(username, password));
+        if (token != null) {
+            fields.add(Message.TOKEN + "=" + token);
+        }
+        if (USE_BINARY) {
+            fields.add(Message.BINARY);
+        }
+        if (USE_COMPRESSION) {
+            fields.add(Message.DEFLATE);
+        }
+        connection.send(Message.LOGIN, fields.toArray(new String[0]));
+        Message reply = readReply(connection, message);
+        if (reply != null && reply.type == Message.LOGIN_SUCCESS) {
+            connection.setBinary(reply.hasField(Message.BINARY, 0));
+            connection.setCompressed(reply.hasField(Message.DEFLATE, 0));
+        }
+        return reply;
+    }
+
+    private static void loginWithToken(MessageChannel connection, Message message, User user) throws IOException {
+        Message reply = login(connection, message, user.username, user.password, user.token);
+        if (reply == null || reply.type != Message.LOGIN_SUCCESS) {
+            throw new IOException("Login failed for " + user.username + ": " + describe(reply));
+        }
+    }
+
+    // Chat of the lobby may arrive before the reply
+    private static Message readReply(MessageChannel connection, Message message) throws IOException {
+        Message reply;
+        do {
+            reply = connection.read(message);
+        } while (reply != null && reply.type == Message.CHAT);
+        return reply;
+    }
+
+    private static String describe(Message reply) {
+        if (reply == null) {
+            return "connection closed";
+        }
+        return Message.name(reply.type) + (reply.fieldCount() > 0 ? " " + reply.field(0) : "");
+    }
+
+    private static void disconnect(User user) {
+        MessageChannel connection = user.connection;
+        if (connection != null) {
+            try {
+                connection.send(Message.EXIT);
+            } catch (IOException e) {
+                // closed anyway
+            }
+        }
+        close(user.socket);
+    }
+
+    private static void close(SocketChannel socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    // The files already on the server can be downloaded from the start
+    private static void listFiles(String[] account) throws IOException {
+        Message message = new Message();
+        try (SocketChannel socket = SocketChannel.open(SERVER)) {
+            MessageChannel connection = channel(socket);
+            Message reply = login(connection, message, account[0], account[1], null);
+            if (reply == null || reply.type != Message.LOGIN_SUCCESS) {
+                throw new IOException("Cannot log in as " + account[0] + ": " + describe(reply));
+            }
+            connection.send(Message.LIST, "", "", String.valueOf(LIST_PAGE_SIZE));
+            reply = readReply(connection, message);
+            if (reply != null && reply.type == Message.FILE_PAGE) {
+                for (int i = 1; i + 1 < reply.fieldCount(); i += 4) {
+                    files.put(reply.field(i), Long.parseLong(reply.field(i + 1)));
+                }
+            }
+            connection.send(Message.EXIT);
+        }
+        System.out.println(files.size() + " files on the server to download");
+    }
+
+    private static String randomFile() {
+        Object[] names = files.keySet().toArray();
+        return names.length == 0 ? null : (String) names[ThreadLocalRandom.current().nextInt(names.length)];
+    }
+
+    private static long randomSize() {
+        int pick = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        int i = 0;
+        while (pick >= cumulativeWeights[i]) {
+            i++;
+        }
+        return sizes[i];
+    }
+
+    // "64K:80,1M:18,16M:2", a size without weight counts once
+    private static void parseSizes(String spec) {
+        String[] parts = spec.split(",");
+        sizes = new long[parts.length];
+        cumulativeWeights = new int[parts.length];
+        int total = 0;
+        for (int i = 0; i < parts.length; i++) {
+            String[] sizeAndWeight = parts[i].trim().split(":");
+            sizes[i] = parseSize(sizeAndWeight[0]);
+            total += sizeAndWeight.length > 1 ? Integer.parseInt(sizeAndWeight[1]) : 1;
+            cumulativeWeights[i] = total;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("No file sizes in " + spec);
+        }
+    }
+
+    private static long parseSize(String size) {
+        String value = size.trim().toUpperCase();
+        long unit = switch (value.isEmpty() ? ' ' : value.charAt(value.length() - 1)) {
+            case 'K' -> 1024;
+            case 'M' -> 1024 * 1024;
+            case 'G' -> 1024 * 1024 * 1024;
+            default -> 1;
+        };
+        return Long.parseLong(unit == 1 ? value : value.substring(0, value.length() - 1)) * unit;
+    }
+
+    private static List<String[]> readAccounts(String spec) throws IOException {
+        List<String> entries = spec.startsWith("@")
+                ? Files.readAllLines(Paths.get(spec.substring(1)))
+                : List.of(spec.split(","));
+        List<String[]> accounts = new ArrayList<>();
+        for (String entry : entries) {
+            int colon = entry.indexOf(':');
+            if (colon > 0) {
+                accounts.add(new String[]{entry.substring(0, colon).trim(), entry.substring(colon + 1).trim()});
+            }
+        }
+        if (accounts.isEmpty()) {
+            throw new IllegalArgumentException("No accounts in " + spec);
+        }
+        return accounts;
+    }
+
+    // Virtual threads where the JDK has them, looked up reflectively like the server does
+    private static ExecutorService newWorkerExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(null, task, "load-" + count.incrementAndGet(), 256 * 1024);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // "t s: online users, per second since the last line: chats sent and received, transfers, errors"
+    private static void printProgress(long elapsed, long interval, long[] last) {
+        Operation[] operations = Operation.values();
+        double seconds = interval / 1e9;
+        long sent = chatsSent.sum();
+        long errors = connectionsLost.sum();
+        for (Operation operation : operations) {
+            errors += operation.errors.sum();
+        }
+        long delivered = Operation.CHAT.latency.count();
+        long uploads = Operation.UPLOAD.latency.count();
+        long downloads = Operation.DOWNLOAD.latency.count();
+        System.out.printf("%4d s: %d/%d online, chats %.0f/s sent %.0f/s received, uploads %.1f/s, downloads %.1f/s, "
+                        + "%d errors%n", elapsed / 1_000_000_000L, online.get(), USERS, (sent - last[0]) / seconds,
+                (delivered - last[1]) / seconds, (uploads - last[2]) / seconds, (downloads - last[3]) / seconds, errors);
+        last[0] = sent;
+        last[1] = delivered;
+        last[2] = uploads;
+        last[3] = downloads;
+    }
+
+    private static void printReport(long elapsed) {
+        double seconds = elapsed / 1e9;
+        System.out.println();
+        System.out.printf("%-9s %10s %10s %8s %10s %10s %10s %10s%n", "operation", "count", "per s", "errors",
+                "p50 (ms)", "p99 (ms)", "p99.9 (ms)", "max (ms)");
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram latency = operation.latency;
+            System.out.printf("%-9s %10d %10.1f %8d %10.2f %10.2f %10.2f %10.2f%n", operation, latency.count(),
+                    latency.count() / seconds, operation.errors.sum(), latency.percentile(50) / 1e6,
+                    latency.percentile(99) / 1e6, latency.percentile(99.9) / 1e6, latency.max() / 1e6);
+        }
+        System.out.println("(CHAT counts deliveries to other members of the room, from sending to receiving)");
+        System.out.printf("%d chat messages sent, %d connections lost%n", chatsSent.sum(), connectionsLost.sum());
+        System.out.printf("sent %.1f MB (%.1f MB/s), received %.1f MB (%.1f MB/s) in %.0f s%n",
+                bytesOut.sum() / 1048576.0, bytesOut.sum() / 1048576.0 / seconds,
+                bytesIn.sum() / 1048576.0, bytesIn.sum() / 1048576.0 / seconds, seconds);
+        for (Operation operation : Operation.values()) {
+            if (operation.lastError != null) {
+                System.out.println("last " + operation + " error: " + operation.lastError);
+            }
+        }
+    }
+
+    private static void deleteDownloads() throws IOException {
+        try (var leftovers = Files.list(downloadDir)) {
+            for (Path file : (Iterable<Path>) leftovers::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(downloadDir);
+    }
+}
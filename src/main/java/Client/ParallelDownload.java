@@ -0,0 +1,185 @@
+package Client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import Shared.ChunkedTransfer;
+import Shared.Message;
+import Shared.MessageChannel;
+
+/**
+ * Downloads byte ranges of one file over several extra connections at the same time.
+ *
+ * Every stream logs in on its own socket, asks for its range of the version the first reply
+ * named with "DOWNLOAD|name|offset|length|VERSION=v" and writes the checksummed chunks straight
+ * to their place in the (already sized) target file with positional writes, so the streams
+ * never wait for each other. On a link with high latency a single TCP connection is limited by
+ * its window, several of them together fill the link.
+ */
+class ParallelDownload {
+    private final ExecutorService executor;
+    private final List<Future<Long>> streams = new ArrayList<>();
+    private final List<long[]> ranges = new ArrayList<>();
+    private final long start;
+
+    // Bytes that arrived over all streams, for the progress display
+    final AtomicLong received = new AtomicLong();
+
+    // Why the first stream that stopped early did, null while none has
+    private volatile String failure;
+
+    private ParallelDownload(int streamCount, long start) {
+        this.executor = Executors.newFixedThreadPool(streamCount);
+        this.start = start;
+    }
+
+    /**
+     * Starts fetching bytes {@code start} to {@code end} of that version of the file (null if the
+     * server did not name one), split over {@code streamCount} connections.
+     */
+    static ParallelDownload start(InetSocketAddress server, String username, String password, String token,
+                                  boolean binary, boolean compress, String fileName, String version, FileChannel target,
+                                  long start, long end, int streamCount) {
+        ParallelDownload download = new ParallelDownload(streamCount, start);
+
+        // Ranges are whole chunks, only the last one may be shorter
+        long chunks = (end - start + ChunkedTransfer.CHUNK_SIZE - 1) / ChunkedTransfer.CHUNK_SIZE;
+        long chunksPerStream = (chunks + streamCount - 1) / streamCount;
+        for (long rangeStart = start; rangeStart < end; ) {
+            long rangeEnd = Math.min(end, rangeStart + chunksPerStream * ChunkedTransfer.CHUNK_SIZE);
+            long from = rangeStart;
+            download.ranges.add(new long[]{from, rangeEnd});
+            download.streams.add(download.executor.submit(
+                    () -> download.fetch(server, username, password, token, binary, compress, fileName, version, target,
+                            from, rangeEnd)));
+            rangeStart = rangeEnd;
+        }
+        download.executor.shutdown();
+        return download;
+    }
+
+    /**
+     * Waits until every stream is done, calling {@code onTick} about four times a second, and
+     * returns where the verified data that starts at the first range ends.
+     */
+    long await(Runnable onTick) throws IOException {
+        long verified = start;
+        boolean contiguous = true;
+        for (int i = 0; i < streams.size(); i++) {
+            long rangeVerified = waitFor(streams.get(i), onTick);
+            long[] range = ranges.get(i);
+            if (contiguous) {
+                verified = rangeVerified;
+                contiguous = rangeVerified == range[1];
+            }
+        }
+        return verified;
+    }
+
+    /**
+     * Why a stream stopped before the end of its range, null if none did. Its verified part is
+     * still counted by await, so the download can continue from there.
+     */
+    String failure() {
+        return failure;
+    }
+
+    // Makes the target file its final size up front, so every stream can write anywhere in it
+    static void preallocate(FileChannel target, long size) throws IOException {
+        if (size > 0 && target.size() < size) {
+            target.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        }
+    }
+
+    private long waitFor(Future<Long> stream, Runnable onTick) throws IOException {
+        while (true) {
+            try {
+                return stream.get(250, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                onTick.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while downloading.");
+            } catch (ExecutionException e) {
+                throw new IOException("Range download failed: " + e.getCause().getMessage());
+            }
+        }
+    }
+
+    // One stream: log in, ask for the range, receive it. Returns the end of the verified part
+    private long fetch(InetSocketAddress server, String username, String password, String token, boolean binary,
+                       boolean compress, String fileName, String version, FileChannel target, long from, long to) {
+        Message message = new Message();
+        try (SocketChannel socketChannel = SocketChannel.open(server)) {
+            MessageChannel connection = new MessageChannel(socketChannel);
+
+            // The token spares the server hashing the password once per stream, the password is
+            // the fallback should it have expired
+            List<String> login = new ArrayList<>(List.of(username, password));
+            if (token != null) {
+                login.add(Message.TOKEN + "=" + token);
+            }
+            if (binary) {
+                login.add(Message.BINARY);
+            }
+            if (compress) {
+                login.add(Message.DEFLATE);
+            }
+            connection.send(Message.LOGIN, login.toArray(new String[0]));
+            Message reply = readReply(connection, message);
+            if (reply == null || reply.type != Message.LOGIN_SUCCESS) {
+                throw new IOException("Login failed");
+            }
+            connection.setBinary(reply.hasField(Message.BINARY, 0));
+            connection.setCompressed(reply.hasField(Message.DEFLATE, 0));
+
+            if (version != null) {
+                connection.send(Message.DOWNLOAD, fileName, String.valueOf(from), String.valueOf(to - from),
+                        Message.VERSION + "=" + version);
+            } else {
+                connection.send(Message.DOWNLOAD, fileName, String.valueOf(from), String.valueOf(to - from));
+            }
+            reply = readReply(connection, message);
+            if (reply == null || reply.type != Message.FILE_INFO || reply.fieldCount() < 4) {
+                throw new IOException("Server did not send the range");
+            }
+            // The server starts at 0 instead if the file was replaced since the first reply
+            if (Long.parseLong(reply.field(2)) != from) {
+                throw new IOException("the file changed on the server during the download");
+            }
+
+            long[] last = {from};
+            long verified = ChunkedTransfer.receiveRange(connection, message, target, from, to, position -> {
+                received.addAndGet(position - last[0]);
+                last[0] = position;
+            });
+            connection.send(Message.EXIT);
+            return verified;
+        } catch (IOException | RuntimeException e) {
+            if (failure == null) {
+                failure = "stream for bytes " + from + "-" + to + " failed: " + e.getMessage();
+            }
+            return from;
+        }
+    }
+
+    // Chat of other users may arrive on the stream before the reply, it is not shown here
+    private static Message readReply(MessageChannel connection, Message message) throws IOException {
+        Message reply;
+        do {
+            reply = connection.read(message);
+        } while (reply != null && reply.type == Message.CHAT);
+        return reply;
+    }
+}
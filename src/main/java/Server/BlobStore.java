@@ -0,0 +1,243 @@
+package Server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import Shared.ContentHash;
+
+/**
+ * Content-addressed storage behind Server.Files.
+ *
+ * Every distinct content is kept once, as ".blobs/<first two hex digits>/<sha-256>". A shared
+ * file name is a hard link to its blob, so listing, downloading (sendfile included) and the nio
+ * mode keep working on plain files while identical uploads under different names take the disk
+ * space only once. Names are only ever replaced by renaming a new link over them, never written
+ * in place, so replacing one name never changes the content of another.
+ *
+ * ".blobs/manifest" maps names to hashes with "name<TAB>hash" lines. It is a journal: every
+ * published name appends a line, a later line for a name replaces an earlier one and "name<TAB>"
+ * without a hash removes it, so an upload writes one line instead of the whole manifest. Once
+ * at least 1024 lines and twice as many as there are names have piled up, it is rewritten with
+ * one line per name. The number of names per hash is the blob's reference count; a blob is
+ * deleted when its last name goes away. Files that got into the directory some other way simply
+ * have no manifest entry and are not deduplicated.
+ */
+class BlobStore {
+    private static final String BLOBS_DIRECTORY = ".blobs";
+    private static final String MANIFEST = "manifest";
+    private static final int COMPACT_LINES = 1024;
+
+    private final Path directory;
+    private final Path blobs;
+    private final Path manifest;
+
+    // Guards the maps, the manifest and the links. Hashing happens before it is taken
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, String> hashByName = new HashMap<>();
+    private final Map<String, Integer> references = new HashMap<>();
+    private int manifestLines;
+
+    BlobStore(Path directory) throws IOException {
+        this.directory = directory;
+        this.blobs = directory.resolve(BLOBS_DIRECTORY);
+        this.manifest = blobs.resolve(MANIFEST);
+        Files.createDirectories(blobs);
+        load();
+    }
+
+    boolean isFor(Path directory) {
+        return this.directory.equals(directory);
+    }
+
+    /**
+     * Publishes {@code name} as another name of an already stored blob, without any bytes being
+     * sent. Returns false if there is no blob with that hash and size.
+     */
+    boolean linkExisting(String hash, long size, String name) throws IOException {
+        lock.lock();
+        try {
+            Path blob = blobPath(hash);
+            if (!references.containsKey(hash) || !Files.exists(blob) || Files.size(blob) != size) {
+                return false;
+            }
+            publish(name, hash, blob);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The hash of the content behind {@code name}, null if the name is not a link to a stored
+     * blob (any more), e.g. because the file was replaced by hand.
+     */
+    String hashOf(String name) {
+        lock.lock();
+        try {
+            String hash = hashByName.get(name);
+            if (hash == null || !Files.isSameFile(directory.resolve(name), blobPath(hash))) {
+                return null;
+            }
+            return hash;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores a completely received upload under {@code name}, replacing an earlier file of that
+     * name. If the same content is stored already, the upload is dropped and the blob reused.
+     * {@code hash} is the upload's SHA-256 if the caller has it, null to compute it here.
+     */
+    File store(Path upload, String name, String hash) throws IOException {
+        if (hash == null) {
+            hash = ContentHash.sha256(upload);
+        }
+
+        lock.lock();
+        try {
+            Path blob = blobPath(hash);
+            if (Files.exists(blob)) {
+                Files.delete(upload);
+            } else {
+                Files.createDirectories(blob.getParent());
+                move(upload, blob);
+            }
+            publish(name, hash, blob);
+            return directory.resolve(name).toFile();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Points name at the blob: a new link is created next to it and renamed over the old name
+    private void publish(String name, String hash, Path blob) throws IOException {
+        Path target = directory.resolve(name);
+        Path link = Files.createTempFile(blobs, "link-", ".tmp");
+        Files.delete(link);
+        try {
+            Files.createLink(link, blob);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(blob, link); // no hard links on this file system, store a copy instead
+        }
+        move(link, target);
+
+        String previous = hashByName.put(name, hash);
+        references.merge(hash, 1, Integer::sum);
+        if (previous != null) {
+            release(previous);
+        }
+        record(name, hash);
+    }
+
+    /**
+     * Forgets {@code name} after its file was replaced by content that did not go through the
+     * store (the nio mode renames uploads into place). Its blob is deleted if no other name
+     * links to it.
+     */
+    void forget(String name) throws IOException {
+        lock.lock();
+        try {
+            String hash = hashByName.remove(name);
+            if (hash != null) {
+                release(hash);
+                record(name, "");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(String hash) throws IOException {
+        int remaining = references.merge(hash, -1, Integer::sum);
+        if (remaining <= 0) {
+            references.remove(hash);
+            Files.deleteIfExists(blobPath(hash));
+        }
+    }
+
+    private Path blobPath(String hash) {
+        return blobs.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(manifest)) {
+            return;
+        }
+        String content = Files.readString(manifest, StandardCharsets.UTF_8);
+        List<String> lines = content.lines().toList();
+        Map<String, String> latest = new HashMap<>();
+        for (String line : lines) {
+            int tab = line.lastIndexOf('\t');
+            if (tab <= 0) {
+                continue;
+            }
+            String name = line.substring(0, tab);
+            String hash = line.substring(tab + 1);
+            if (hash.isEmpty()) {
+                latest.remove(name);
+            } else {
+                latest.put(name, hash);
+            }
+        }
+        for (Map.Entry<String, String> entry : latest.entrySet()) {
+            // Entries of names that were deleted by hand no longer count
+            if (ContentHash.isValid(entry.getValue()) && Files.exists(directory.resolve(entry.getKey()))) {
+                hashByName.put(entry.getKey(), entry.getValue());
+                references.merge(entry.getValue(), 1, Integer::sum);
+            }
+        }
+        manifestLines = lines.size();
+
+        // A crash while appending leaves a cut off last line, the next line must not be glued to it
+        if (!content.isEmpty() && !content.endsWith("\n")) {
+            saveManifest();
+        }
+    }
+
+    // Appends a change to the manifest, or rewrites it if it is mostly outdated lines by now
+    private void record(String name, String hash) throws IOException {
+        if (manifestLines >= Math.max(COMPACT_LINES, 2 * hashByName.size())) {
+            saveManifest();
+            return;
+        }
+        Files.writeString(manifest, name + '\t' + hash + '\n', StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        manifestLines++;
+    }
+
+    // Rewritten as a whole and renamed into place, so a crash never leaves half a manifest
+    private void saveManifest() throws IOException {
+        Path temp = Files.createTempFile(blobs, "manifest-", ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> entry : hashByName.entrySet()) {
+                writer.write(entry.getKey());
+                writer.write('\t');
+                writer.write(entry.getValue());
+                writer.write('\n');
+            }
+        }
+        move(temp, manifest);
+        manifestLines = hashByName.size();
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package Server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers the users that logged in recently, so logging in again with the same password costs
+ * one SHA-256 instead of the slow hash of the store behind it.
+ *
+ * Only successful logins are remembered, as a SHA-256 of the password with a random key made at
+ * startup, never the password itself. A wrong password always goes to the store, so guessing
+ * stays as slow as without the cache. The least recently used users are forgotten beyond
+ * -Dserver.auth.cacheSize=N (10000 by default).
+ */
+class CachingUserStore implements UserStore {
+    static final int CAPACITY = Integer.getInteger("server.auth.cacheSize", 10_000);
+
+    private final UserStore store;
+    private final int capacity;
+    private final byte[] key = new byte[32];
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, byte[]> verified = new LinkedHashMap<>(16, 0.75f, true); // LRU order
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    CachingUserStore(UserStore store, int capacity) {
+        this.store = store;
+        this.capacity = capacity;
+        new SecureRandom().nextBytes(key);
+    }
+
+    @Override
+    public boolean authenticate(String username, String password) {
+        if (username == null || password == null || capacity <= 0) {
+            return store.authenticate(username, password);
+        }
+        byte[] digest = digest(username, password);
+
+        lock.lock();
+        try {
+            byte[] remembered = verified.get(username);
+            if (remembered != null && MessageDigest.isEqual(remembered, digest)) {
+                hits.increment();
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        misses.increment();
+
+        if (!store.authenticate(username, password)) {
+            return false;
+        }
+        lock.lock();
+        try {
+            verified.put(username, digest);
+            if (verified.size() > capacity) {
+                verified.remove(verified.keySet().iterator().next());
+            }
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    private byte[] digest(String username, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(key);
+            digest.update(username.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(password.getBytes(StandardCharsets.UTF_8));
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The chat logs of all rooms, kept in ".history" of the shared files directory (hidden from LIST
+ * and DOWNLOAD like the other dot-directories), one subdirectory per room named by the SHA-256
+ * of the room name, so any room name gives a safe file name of the same length. A room's log is
+ * opened by its first message or HISTORY request.
+ *
+ * Every open log holds a file and the mappings of its active segment, so at most
+ * -Dserver.history.openRooms=N (256 by default) stay open: opening one more closes the least
+ * recently used logs that nobody is reading or writing at that moment. A room that comes back
+ * opens its log again.
+ *
+ * Every room also has its RecentMessages, filled from the end of the log when it is opened, so
+ * the replay a client gets when it enters the chat comes from memory.
+ */
+class ChatHistory {
+    static final int OPEN_ROOMS = Integer.getInteger("server.history.openRooms", 256);
+
+    private static final class RoomHistory {
+        final ChatLog log;
+        final RecentMessages recent;
+        final AtomicInteger users = new AtomicInteger(); // callers using the log now, -1 once closed
+        volatile long lastUsed;
+
+        RoomHistory(ChatLog log, RecentMessages recent) {
+            this.log = log;
+            this.recent = recent;
+        }
+
+        // Fails only for a log that is being closed
+        boolean use() {
+            while (true) {
+                int current = users.get();
+                if (current < 0) {
+                    return false;
+                }
+                if (users.compareAndSet(current, current + 1)) {
+                    lastUsed = System.nanoTime();
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            users.decrementAndGet();
+        }
+    }
+
+    private static final ConcurrentHashMap<String, RoomHistory> rooms = new ConcurrentHashMap<>();
+
+    // Held while logs are opened and closed, finding an open log needs no lock
+    private static final ReentrantLock openLock = new ReentrantLock();
+
+    // Chat keeps working if the history cannot be written, the message is only missing from it
+    static void append(String room, String text) {
+        try {
+            RoomHistory history = acquire(room);
+            try {
+                text = text.replace('\n', ' ').replace('\r', ' ').replace('\0', ' ');
+                long time = System.currentTimeMillis();
+                history.recent.add(history.log.append(time, text), time, text);
+            } finally {
+                history.release();
+            }
+        } catch (IOException e) {
+            Log.error("Could not write the chat history of room '" + room + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * The last {@code count} messages of the room, from memory if they are all there.
+     */
+    static ChatLog.Range last(String room, int count) throws IOException {
+        count = Math.max(0, Math.min(ChatLog.MAX_MESSAGES, count));
+        RoomHistory history = acquire(room);
+        try {
+            ChatLog.Range recent = history.recent.last(count);
+            return recent != null ? recent : history.log.last(count);
+        } finally {
+            history.release();
+        }
+    }
+
+    /**
+     * Up to {@code count} messages of the room from offset {@code from} on. The views stay
+     * readable after the log is closed.
+     */
+    static ChatLog.Range read(String room, long from, int count) throws IOException {
+        RoomHistory history = acquire(room);
+        try {
+            return history.log.read(from, count);
+        } finally {
+            history.release();
+        }
+    }
+
+    // The room's history, in use by the caller until it calls release()
+    private static RoomHistory acquire(String room) throws IOException {
+        RoomHistory history = rooms.get(room);
+        if (history != null && history.use()) {
+            return history;
+        }
+        openLock.lock();
+        try {
+            // Logs are only closed under the lock and leave the map at the same time, any log
+            // found here is open
+            history = rooms.get(room);
+            if (history == null) {
+                ChatLog log = new ChatLog(FileStore.directory().toPath().resolve(".history").resolve(directoryName(room)));
+                history = new RoomHistory(log, new RecentMessages(RecentMessages.CAPACITY));
+                fill(history.recent, log.last(RecentMessages.CAPACITY));
+                rooms.put(room, history);
+            }
+            history.use();
+            closeIdle();
+            return history;
+        } finally {
+            openLock.unlock();
+        }
+    }
+
+    // Closes the least recently used logs that are not in use until at most OPEN_ROOMS are open.
+    // If they all are, more stay open until a later call
+    private static void closeIdle() {
+        while (rooms.size() > OPEN_ROOMS) {
+            Map.Entry<String, RoomHistory> eldest = null;
+            for (Map.Entry<String, RoomHistory> entry : rooms.entrySet()) {
+                RoomHistory history = entry.getValue();
+                if (history.users.get() == 0 && (eldest == null || history.lastUsed < eldest.getValue().lastUsed)) {
+                    eldest = entry;
+                }
+            }
+            if (eldest == null || !eldest.getValue().users.compareAndSet(0, -1)) {
+                return;
+            }
+            rooms.remove(eldest.getKey());
+            try {
+                eldest.getValue().log.close();
+            } catch (IOException e) {
+                Log.warn("Could not close the chat history of room '" + eldest.getKey() + "': " + e.getMessage());
+            }
+        }
+    }
+
+    static int openRooms() {
+        return rooms.size();
+    }
+
+    static String directoryName(String room) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(room.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Puts records read from the log into the ring, they are "offset|time|text\n" lines
+    private static void fill(RecentMessages recent, ChatLog.Range range) {
+        StringBuilder records = new StringBuilder();
+        for (ByteBuffer data : range.data()) {
+            records.append(StandardCharsets.UTF_8.decode(data.duplicate()));
+        }
+        for (String record : records.toString().split("\n")) {
+            String[] parts = record.split("\\|", 3);
+            if (parts.length == 3) {
+                recent.add(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]);
+            }
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The chat history of one room: an append-only log of "offset|time|text\n" records, where the
+ * offset numbers the room's messages from 0 on.
+ *
+ * The log is split into segments of -Dserver.history.segmentBytes (16 MB by default), each a
+ * file named after the offset of its first record, written through a memory mapping. Next to
+ * every segment an ".index" file holds the position of one record every 4 KB, so a record is
+ * found by a binary search and a short scan instead of reading the segment from the start.
+ *
+ * Records are never changed once written, so readers get views of the mapped segments (the
+ * bytes that go to the client are the bytes on disk) and only hold the lock while they look up
+ * positions. When a segment is full it is cut to its used length and a new one is started;
+ * old segments are then deleted once the room's log is bigger than -Dserver.history.retainBytes
+ * (256 MB) or they were last written more than -Dserver.history.retainHours (a week) ago.
+ * A deleted segment stays readable for readers that still have a view of it.
+ */
+class ChatLog implements Closeable {
+    static final int SEGMENT_BYTES = Integer.getInteger("server.history.segmentBytes", 16 * 1024 * 1024);
+    static final long RETAIN_BYTES = Long.getLong("server.history.retainBytes", 256L * 1024 * 1024);
+    static final long RETAIN_MILLIS = Long.getLong("server.history.retainHours", 7 * 24) * 3_600_000;
+
+    // Limits of one read, the client asks again from where the reply ended for more
+    static final int MAX_MESSAGES = 1000;
+    static final int MAX_READ_BYTES = 1024 * 1024;
+
+    private static final int INDEX_INTERVAL = 4096;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+
+    /**
+     * Records {@code first} up to (not including) {@code next}, as views of the segments.
+     */
+    record Range(long first, long next, List<ByteBuffer> data) {
+        int length() {
+            int length = 0;
+            for (ByteBuffer buffer : data) {
+                length += buffer.remaining();
+            }
+            return length;
+        }
+    }
+
+    private static final class Segment {
+        final long baseOffset;
+        final Path logFile;
+        final Path indexFile;
+        MappedByteBuffer data;
+        int size;            // bytes of records
+        long nextOffset;     // offset of the record after the last one
+        long[] index = new long[16]; // (offset - baseOffset) << 32 | position, every INDEX_INTERVAL bytes
+        int indexCount;
+
+        // Only while the segment is written to
+        FileChannel channel;
+        MappedByteBuffer indexData;
+
+        Segment(Path directory, long baseOffset) {
+            this.baseOffset = baseOffset;
+            this.logFile = directory.resolve(String.format("%020d", baseOffset) + LOG_SUFFIX);
+            this.indexFile = directory.resolve(String.format("%020d", baseOffset) + INDEX_SUFFIX);
+        }
+
+        int lastIndexedPosition() {
+            return indexCount == 0 ? 0 : (int) index[indexCount - 1];
+        }
+
+        void addIndexEntry(long entry) {
+            if (indexCount == index.length) {
+                long[] grown = new long[index.length * 2];
+                System.arraycopy(index, 0, grown, 0, indexCount);
+                index = grown;
+            }
+            index[indexCount++] = entry;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retainBytes;
+    private final long retainMillis;
+
+    // Guards the segments and their fields. Views handed out are only read
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Segment> segments = new ArrayList<>();
+
+    ChatLog(Path directory) throws IOException {
+        this(directory, SEGMENT_BYTES, RETAIN_BYTES, RETAIN_MILLIS);
+    }
+
+    ChatLog(Path directory, int segmentBytes, long retainBytes, long retainMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retainBytes = retainBytes;
+        this.retainMillis = retainMillis;
+        Files.createDirectories(directory);
+
+        List<Long> baseOffsets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LOG_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                baseOffsets.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+            }
+        }
+        baseOffsets.sort(null);
+        for (int i = 0; i < baseOffsets.size(); i++) {
+            Segment segment = new Segment(directory, baseOffsets.get(i));
+            if (i < baseOffsets.size() - 1) {
+                openClosed(segment, baseOffsets.get(i + 1));
+            } else {
+                openActive(segment, 0);
+                recover(segment);
+            }
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            Segment segment = new Segment(directory, 0);
+            openActive(segment, 0);
+            segments.add(segment);
+        }
+        applyRetention();
+    }
+
+    /**
+     * Appends a message and returns its offset. Line breaks in the text are replaced by spaces,
+     * a record is always one line.
+     */
+    long append(long time, String text) throws IOException {
+        text = text.replace('\n', ' ').replace('\r', ' ').replace('\0', ' ');
+        lock.lock();
+        try {
+            Segment active = segments.get(segments.size() - 1);
+            long offset = active.nextOffset;
+            byte[] record = (offset + "|" + time + "|" + text + "\n").getBytes(StandardCharsets.UTF_8);
+            if (active.size + record.length > active.data.capacity()) {
+                if (active.size == 0) {
+                    active.channel.close(); // a record bigger than a segment, the empty one is mapped again to fit
+                    openActive(active, record.length);
+                } else {
+                    active = roll(record.length);
+                }
+            }
+
+            if (active.size - active.lastIndexedPosition() >= INDEX_INTERVAL) {
+                long entry = (offset - active.baseOffset) << 32 | active.size;
+                active.indexData.putLong(active.indexCount * 8, entry);
+                active.addIndexEntry(entry);
+            }
+            active.data.put(active.size, record);
+            active.size += record.length;
+            active.nextOffset = offset + 1;
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The last {@code count} messages.
+     */
+    Range last(int count) {
+        return read(Math.max(0, nextOffset() - count), count);
+    }
+
+    /**
+     * Up to {@code count} messages from offset {@code from} on, starting at the oldest one kept
+     * if {@code from} has been deleted already. Cut after MAX_READ_BYTES, though it always
+     * holds at least one message if there is one.
+     */
+    Range read(long from, int count) {
+        count = Math.max(0, Math.min(MAX_MESSAGES, count));
+        List<ByteBuffer> views = new ArrayList<>();
+        long first;
+        long end;
+        lock.lock();
+        try {
+            first = Math.max(from, segments.get(0).baseOffset);
+            end = Math.min(segments.get(segments.size() - 1).nextOffset, first + count);
+            for (Segment segment : segments) {
+                if (segment.nextOffset <= first || segment.baseOffset >= end || segment.size == 0) {
+                    continue;
+                }
+                int start = position(segment, Math.max(first, segment.baseOffset));
+                int stop = end < segment.nextOffset ? position(segment, end) : segment.size;
+                views.add(segment.data.slice(start, stop - start));
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (first >= end) {
+            return new Range(first, first, List.of());
+        }
+
+        // Keep whole records within the byte limit, the records themselves are not looked at under the lock
+        int length = 0;
+        for (int i = 0; i < views.size(); i++) {
+            ByteBuffer view = views.get(i);
+            if (length + view.remaining() <= MAX_READ_BYTES) {
+                length += view.remaining();
+                continue;
+            }
+            int keep = lastRecordEnd(view, MAX_READ_BYTES - length, length == 0);
+            view.limit(keep);
+            views.subList(i + 1, views.size()).clear();
+            if (keep == 0) {
+                views.remove(i);
+            }
+            end = first;
+            for (ByteBuffer kept : views) {
+                end += countRecords(kept);
+            }
+            break;
+        }
+        return new Range(first, end, views);
+    }
+
+    long nextOffset() {
+        lock.lock();
+        try {
+            return segments.get(segments.size() - 1).nextOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long firstOffset() {
+        lock.lock();
+        try {
+            return segments.get(0).baseOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int segmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Position of the record with this offset, which must be in the segment. Called with the lock held
+    private static int position(Segment segment, long offset) {
+        long relative = offset - segment.baseOffset;
+        int low = 0;
+        int high = segment.indexCount - 1;
+        long entryOffset = 0;
+        int position = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long entry = segment.index[middle];
+            if (entry >>> 32 <= relative) {
+                entryOffset = entry >>> 32;
+                position = (int) entry;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        for (long skip = relative - entryOffset; skip > 0; skip--) {
+            while (segment.data.get(position++) != '\n') {
+                // to the end of this record
+            }
+        }
+        return position;
+    }
+
+    // End of the last whole record within the first limit bytes of the view, or of the first
+    // record if none fits and atLeastOne is set
+    private static int lastRecordEnd(ByteBuffer view, int limit, boolean atLeastOne) {
+        for (int i = Math.min(limit, view.remaining()) - 1; i >= 0; i--) {
+            if (view.get(view.position() + i) == '\n') {
+                return i + 1;
+            }
+        }
+        if (atLeastOne) {
+            for (int i = 0; i < view.remaining(); i++) {
+                if (view.get(view.position() + i) == '\n') {
+                    return i + 1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static int countRecords(ByteBuffer view) {
+        int count = 0;
+        for (int i = view.position(); i < view.limit(); i++) {
+            if (view.get(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Closes the active segment and starts the next one. Called with the lock held
+    private Segment roll(int recordLength) throws IOException {
+        Segment full = segments.get(segments.size() - 1);
+        full.channel.truncate(full.size);
+        full.channel.close();
+        full.channel = null;
+        try (FileChannel index = FileChannel.open(full.indexFile, StandardOpenOption.WRITE)) {
+            index.truncate(full.indexCount * 8L);
+        }
+        full.indexData = null;
+
+        Segment next = new Segment(directory, full.nextOffset);
+        openActive(next, recordLength);
+        segments.add(next);
+        applyRetention();
+        return next;
+    }
+
+    // Deletes the oldest segments beyond the size or age limit, never the active one
+    private void applyRetention() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.size;
+        }
+        long oldest = System.currentTimeMillis() - retainMillis;
+        while (segments.size() > 1) {
+            Segment segment = segments.get(0);
+            try {
+                if (total <= retainBytes && Files.getLastModifiedTime(segment.logFile).toMillis() >= oldest) {
+                    break;
+                }
+                Files.deleteIfExists(segment.logFile);
+                Files.deleteIfExists(segment.indexFile);
+            } catch (IOException e) {
+                Log.error("Could not delete chat history segment " + segment.logFile + ": " + e.getMessage());
+                break;
+            }
+            segments.remove(0);
+            total -= segment.size;
+        }
+    }
+
+    private void openActive(Segment segment, int minimumCapacity) throws IOException {
+        segment.channel = FileChannel.open(segment.logFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        int capacity = (int) Math.max(Math.max(segmentBytes, minimumCapacity), segment.channel.size());
+        segment.data = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        segment.nextOffset = segment.baseOffset;
+
+        try (FileChannel index = FileChannel.open(segment.indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            segment.indexData = index.map(FileChannel.MapMode.READ_WRITE, 0, (capacity / INDEX_INTERVAL + 1) * 8L);
+        }
+        for (int i = 0; i < segment.indexData.capacity() / 8; i++) {
+            long entry = segment.indexData.getLong(i * 8);
+            if (entry == 0) {
+                break;
+            }
+            segment.addIndexEntry(entry);
+        }
+    }
+
+    private void openClosed(Segment segment, long nextOffset) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.logFile, StandardOpenOption.READ)) {
+            segment.size = (int) channel.size();
+            segment.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+        }
+        segment.nextOffset = nextOffset;
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(segment.indexFile));
+        while (index.remaining() >= 8) {
+            segment.addIndexEntry(index.getLong());
+        }
+    }
+
+    // Finds the end of the records in the segment that was being written when the server stopped:
+    // the rest of the mapping is zeros, and a record cut off in the middle is dropped
+    private static void recover(Segment segment) {
+        int position = segment.lastIndexedPosition();
+        long offset = segment.baseOffset + (segment.indexCount == 0 ? 0 : segment.index[segment.indexCount - 1] >>> 32);
+        int recordStart = position;
+        while (position < segment.data.capacity()) {
+            byte b = segment.data.get(position);
+            if (b == 0) {
+                break;
+            }
+            position++;
+            if (b == '\n') {
+                recordStart = position;
+                offset++;
+            }
+        }
+        segment.size = recordStart;
+        segment.nextOffset = offset;
+        for (int i = recordStart; i < position; i++) {
+            segment.data.put(i, (byte) 0);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            Segment active = segments.get(segments.size() - 1);
+            if (active.channel != null) {
+                active.data.force();
+                active.channel.close();
+                active.channel = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -2,286 +2,614 @@ package Server;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+import Shared.EncodedMessage;
+import Shared.Message;
+import Shared.ChunkedTransfer;
+import Shared.Compression;
+import Shared.ContentHash;
+import Shared.DeltaSync;
+import Shared.MessageChannel;
+import Shared.PartialFile;
+
+public class ClientHandler implements Runnable, Session {
+    // Downloads use FileChannel.transferTo (sendfile) unless started with -Dserver.zeroCopy=false
+    static volatile boolean zeroCopy = !"false".equals(System.getProperty("server.zeroCopy"));
+
+    // Clients may negotiate compression (DEFLATE) unless started with -Dserver.compression=false
+    static volatile boolean compression = !"false".equals(System.getProperty("server.compression"));
 
-public class ClientHandler implements Runnable {
     private Socket socket;
-    private InputStream in;
-    private OutputStream out;
 
-    private List<ClientHandler> allClients;
+    // Speaks the text protocol until the client negotiates binary frames at LOGIN
+    private MessageChannel connection;
+
+    // Chat from other clients waits here until this client's writer task sends it
+    private final OutboundQueue outbound;
+
+    private SessionRegistry<ClientHandler> allClients;
     private String username;
 
+    // The room chat goes to, null until the client has logged in
+    private Room<ClientHandler> room;
+
     // Fields to store pending upload info
     private String pendingUploadFilename;
-    private int pendingUploadLength;
+    private long pendingUploadLength;
+    private PartialFile pendingResumableUpload; // set when the request carried the RESUME option
+    private String pendingUploadHash; // the SHA256 the client announced for it, null if none
+
+    public ClientHandler(Socket socket, SessionRegistry<ClientHandler> allClients, Executor executor) {
+        this.socket = socket;
+        this.connection = new MessageChannel(socket.getChannel());
+        this.connection.countBytes(Metrics.bytesIn, Metrics.bytesOut);
+        this.allClients = allClients;
+        this.outbound = new OutboundQueue(new OutboundQueue.Sink() {
+            @Override
+            public void write(EncodedMessage message) throws IOException {
+                connection.send(message);
+            }
 
-    public ClientHandler(Socket socket, List<ClientHandler> allClients) {
-        try {
-            this.socket = socket;
-            this.in = socket.getInputStream();
-            this.out = socket.getOutputStream();
-            this.allClients = allClients;
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+            @Override
+            public void disconnect() {
+                Log.warn("Disconnecting slow client " + username);
+                closeSocket();
+            }
+        }, executor);
     }
 
     @Override
     public void run() {
+        Metrics.connectionOpened();
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            Message message = new Message(); // reused for every request of this client
 
             while (true) {
-                String input = reader.readLine(); // waits for client message
-                if (input == null) break; // client closed connection
-
-                // Example protocol: "CHAT|hello there", "UPLOAD|file.txt|1234", etc.
-                String[] parts = input.split("\\|");
+                if (connection.read(message) == null) break; // client closed connection
+                byte command = message.type; // transfers read more messages into the same object
+                long start = System.nanoTime();
+
+                // Example protocol: "CHAT|hello there", "UPLOAD_REQUEST|file.txt|1234", etc.
+                switch (message.type) {
+                    case Message.LOGIN:
+                        handleLogin(message);
+                        break;
 
-                String command = parts[0];
+                    case Message.CHAT:
+                        if (room == null) {
+                            sendMessage(Message.ERROR, "Please log in first.");
+                            break;
+                        }
+                        // Binary frames may carry line breaks, text clients would read them as more messages
+                        String chat = username + ": " + Message.singleLine(message.field(0));
+                        broadcast(room, chat);
+                        ChatHistory.append(room.getName(), chat);
+                        Cluster.relayChat(room.getName(), chat);
+                        break;
 
-                switch (command) {
-                    case "LOGIN":
-                        handleLogin(parts[1], parts[2]);
+                    case Message.HISTORY:
+                        if (room == null) {
+                            sendMessage(Message.ERROR, "Please log in first.");
+                            break;
+                        }
+                        sendHistory(message);
                         break;
 
-                    case "CHAT":
-                        String message = username + ": " + parts[1];
-                        broadcast(message);
+                    case Message.JOIN:
+                        String roomName = message.field(0);
+                        if (room == null) {
+                            sendMessage(Message.ERROR, "Please log in first.");
+                        } else if (!RoomRegistry.isValidName(roomName)) {
+                            sendMessage(Message.ERROR, "Invalid room name.");
+                        } else {
+                            joinRoom(roomName);
+                            sendMessage(Message.JOINED, room.getName(), String.valueOf(room.size()));
+                        }
                         break;
 
-                    case "UPLOAD_REQUEST":
-                        pendingUploadFilename = parts[1];
-                        pendingUploadLength = Integer.parseInt(parts[2]);
+                    case Message.LEAVE:
+                        if (room != null) {
+                            joinRoom(RoomRegistry.LOBBY);
+                            sendMessage(Message.JOINED, room.getName(), String.valueOf(room.size()));
+                        }
+                        break;
 
-                        // Check if file already exists on server
-                        String serverDirectory = System.getProperty("user.dir"); // Current working directory
-                        String path = serverDirectory + "/src/main/resources/Server.Files/" + pendingUploadFilename;
-                        File serverFile = new File(path);
-                        if (serverFile.exists()) {
-                            sendMessage("UPLOAD_DENIED|File already exists.");
+                    case Message.UPLOAD_REQUEST:
+                        releaseResumableUpload();
+                        long uploadLength = parseLength(message.field(1));
+                        if (uploadLength < 0) {
+                            pendingUploadFilename = null;
+                            pendingUploadLength = 0;
+                            sendMessage(Message.ERROR, "Invalid file length.");
+                            break;
+                        }
+                        pendingUploadFilename = message.field(0);
+                        pendingUploadLength = uploadLength;
+
+                        // A file of the same name is replaced once the upload is complete.
+                        // If the server already has content with the client's hash, no bytes need to be sent
+                        String hash = message.option(Message.SHA256, 2);
+                        boolean hashed = hash != null && ContentHash.isValid(hash);
+                        File deltaBasis = hashed && message.hasField(Message.DELTA, 2)
+                                ? FileStore.deltaBasis(pendingUploadFilename) : null;
+                        if (hashed && FileStore.linkExisting(hash, pendingUploadLength, pendingUploadFilename)) {
+                            sendMessage(Message.UPLOAD_SUCCESS, pendingUploadFilename);
+                            Log.info("File " + pendingUploadFilename + " from " + username + " stored by reference to existing content");
+                            pendingUploadFilename = null;
+                            pendingUploadLength = 0;
+                        } else if (deltaBasis != null) {
+                            // The client changed a file that is here already, it only sends the difference
+                            receiveDelta(message, deltaBasis, pendingUploadFilename, pendingUploadLength, hash);
                             pendingUploadFilename = null;
                             pendingUploadLength = 0;
+                        } else if (message.hasField(Message.RESUME, 2)) {
+                            // Resumable upload: tell the client how much of the file is already here
+                            pendingUploadHash = hashed ? hash : null;
+                            pendingResumableUpload = FileStore.openResumableUpload(pendingUploadFilename,
+                                    pendingUploadLength, pendingUploadHash);
+                            if (pendingResumableUpload == null) {
+                                sendMessage(Message.UPLOAD_DENIED, "Upload already in progress.");
+                                pendingUploadFilename = null;
+                                pendingUploadLength = 0;
+                            } else {
+                                sendMessage(Message.UPLOAD_READY, String.valueOf(pendingResumableUpload.verified()));
+                            }
                         } else {
-                            sendMessage("UPLOAD_READY");
+                            sendMessage(Message.UPLOAD_READY);
                         }
                         break;
 
-                    case "UPLOAD_START":
-                        receiveFile(pendingUploadFilename, pendingUploadLength);
+                    case Message.UPLOAD_START:
+                        if (pendingUploadFilename == null) {
+                            sendMessage(Message.ERROR, "No upload requested.");
+                        } else if (pendingResumableUpload != null) {
+                            receiveChunkedFile(message, pendingUploadFilename, pendingUploadLength, pendingUploadHash);
+                        } else {
+                            receiveFile(pendingUploadFilename, pendingUploadLength);
+                        }
                         pendingUploadFilename = null;
                         pendingUploadLength = 0;
                         break;
 
-                    case "UPLOAD_FAILED":
-                        String failedFile = parts[1];
-                        System.out.println("Client canceled upload: " + failedFile);
+                    case Message.UPLOAD_FAILED:
+                        String failedFile = message.field(0);
+                        Log.debug("Client canceled upload: " + failedFile);
+                        releaseResumableUpload();
                         pendingUploadFilename = null;
                         pendingUploadLength = 0;
                         break;
 
-                    case "LIST":
-                        sendFileList();
+                    case Message.LIST:
+                        sendFileList(message);
                         break;
 
-                    case "DOWNLOAD":
-                        String requestedFile = parts[1];
-                        sendFile(requestedFile);
+                    case Message.DOWNLOAD:
+                        // "DOWNLOAD|name|offset|length|VERSION=v", all but the name are optional
+                        String requestedFile = message.field(0);
+                        String rangeLength = message.field(2);
+                        if (rangeLength != null && rangeLength.startsWith(Message.VERSION + "=")) {
+                            rangeLength = null;
+                        }
+                        sendFile(requestedFile, message.field(1), rangeLength, message.option(Message.VERSION, 2));
+                        break;
+
+                    case Message.STATS:
+                        if (username == null || !Metrics.mayRead(username)) {
+                            sendMessage(Message.ERROR, "Not allowed to read the server statistics.");
+                            break;
+                        }
+                        sendMessage(Message.STATS, Metrics.report().toArray(new String[0]));
                         break;
 
-                    case "EXIT":
-                        System.out.println(username + " disconnected.");
+                    case Message.EXIT:
+                        Log.info(username + " disconnected.");
                         return;
 
                     default:
-                        sendMessage("ERROR|Unknown command: " + input);
-                        System.out.println("Unknown command: " + input);
+                        String input = message.line != null ? message.line : Message.name(message.type);
+                        sendMessage(Message.ERROR, "Unknown command: " + input);
+                        Log.warn("Unknown command: " + input);
                 }
+                Metrics.record(command, System.nanoTime() - start);
             }
         } catch (Exception e) {
-            sendMessage("ERROR|Internal server error. Please try again.");
-            System.out.println("Exception in client handler for " + username + ": " + e.getMessage());
-            e.printStackTrace();
+            sendMessage(Message.ERROR, "Internal server error. Please try again.");
+            Log.error("Exception in client handler for " + username + ": " + e.getMessage(), e);
 
         } finally {
-            try {
-                allClients.remove(this);
-                socket.close();
-                System.out.println("Connection with " + username + " closed");
-
-            } catch (IOException e) {
-                System.out.println("Error while closing socket for " + username);
+            releaseResumableUpload();
+            if (room != null) {
+                Server.rooms.leave(this, room);
             }
+            allClients.remove(this);
+            Metrics.connectionClosed();
+            outbound.close();
+            closeSocket();
+            Log.info("Connection with " + username + " closed"
+                    + (outbound.dropped() > 0 ? " (" + outbound.dropped() + " chat messages dropped)" : ""));
+        }
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    // -1 unless the field is a length an upload can have
+    private static long parseLength(String field) {
+        try {
+            return field == null ? -1 : Long.parseLong(field);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.warn("Error while closing socket for " + username);
         }
     }
 
 
-    private void sendMessage(String msg){
+    private void sendMessage(byte type, String... fields){
         try {
-            PrintWriter writer = new PrintWriter (out, true);
-            writer.println(msg);
+            connection.send(type, fields);
         } catch (Exception e) {
-            System.err.println("Failed to send message to " + username);
-            e.printStackTrace();
+            Log.error("Failed to send message to " + username, e);
         }
     }
 
-    private void broadcast(String msg) throws IOException {
-        for (ClientHandler client : allClients) {
-            if (client != this) {
-                client.sendMessage("CHAT|" + msg);
+    // Encodes the message once and only queues it, every recipient's own writer task does the blocking write
+    private void broadcast(Room<ClientHandler> target, String msg) {
+        deliver(target, new EncodedMessage(Message.CHAT, msg), this);
+    }
+
+    // Queues the message for every member of the room but the sender, null for chat from another node
+    static void deliver(Room<ClientHandler> target, EncodedMessage message, ClientHandler sender) {
+        for (ClientHandler client : target.members(0)) {
+            if (client != sender) {
+                client.outbound.offer(message);
             }
         }
     }
 
-    private void sendFileList(){
+    // "HISTORY|count" gets the last messages of the room, "HISTORY|count|offset" the messages from
+    // an offset on. The reply "CHAT_HISTORY|first|next|length" is followed by that many bytes of
+    // "offset|time|text\n" records straight from the log, next is the offset to continue from
+    private void sendHistory(Message request) throws IOException {
+        int count;
+        long from;
+        try {
+            count = request.field(0) == null ? 20 : Integer.parseInt(request.field(0));
+            from = request.field(1) == null ? -1 : Long.parseLong(request.field(1));
+        } catch (NumberFormatException e) {
+            sendMessage(Message.ERROR, "Invalid history request.");
+            return;
+        }
+        // Entering the chat asks for the last few messages, which come from memory. A history that
+        // cannot be read is the client's error reply, not the end of its connection
+        ChatLog.Range range;
         try {
-            String serverDirectory = System.getProperty("user.dir"); // Current working directory
-            String path = serverDirectory + "/src/main/resources/Server.Files/";
-            File serverDir = new File(path);
+            range = from < 0 ? ChatHistory.last(room.getName(), count) : ChatHistory.read(room.getName(), from, count);
+        } catch (IOException e) {
+            sendMessage(Message.ERROR, "Chat history not available.");
+            Log.error("Could not read the chat history of room '" + room.getName() + "': " + e.getMessage());
+            return;
+        }
 
-            if (!serverDir.exists() || !serverDir.isDirectory()) {
-                sendMessage("ERROR|Server directory not found.");
-                System.out.println("ERROR|Server directory not found.");
-                return;
+        connection.lock();
+        try {
+            connection.send(Message.CHAT_HISTORY, String.valueOf(range.first()), String.valueOf(range.next()),
+                    String.valueOf(range.length()));
+            for (ByteBuffer records : range.data()) {
+                connection.sendData(records);
             }
+        } finally {
+            connection.unlock();
+        }
+    }
 
-            File[] files = serverDir.listFiles();
-            if (files == null || files.length == 0) {
-                sendMessage("FILE_LIST|"); // empty list
-                System.out.println("Sent empty file list to user '" + username + "'.");
-                return;
-            }
+    // Moves this client into another room and lets both rooms know
+    private void joinRoom(String name) {
+        Room<ClientHandler> previous = room;
+        if (previous.getName().equals(name)) {
+            return;
+        }
 
-            // Collect file names into a comma-separated string
-            StringBuilder stringBuilder = new StringBuilder("FILE_LIST|");
-            for (int i = 0; i < files.length; i++) {
-                if (files[i].isFile()) {
-                    stringBuilder.append(files[i].getName());
-                    if (i < files.length - 1) {
-                        stringBuilder.append(",");
-                    }
-                }
-            }
+        room = Server.rooms.join(this, name);
+        Server.rooms.leave(this, previous);
+        broadcast(previous, "[server] " + username + " left " + previous.getName());
+        broadcast(room, "[server] " + username + " joined " + room.getName());
+    }
 
-            // Send the list to the client
-            sendMessage(stringBuilder.toString());
-            System.out.println("Sent file list to user '" + username + "'.");
+    // "LIST" gets every name in one message, "LIST|prefix|after|limit" one page of names with sizes,
+    // times and hashes. Both come from the file catalog, no directory is scanned here
+    private void sendFileList(Message request){
+        try {
+            FileCatalog catalog = FileStore.catalog();
+            if (request.fieldCount() == 0) {
+                connection.send(catalog.list());
+            } else {
+                String after = request.fieldCount() > 1 ? request.field(1) : "";
+                int limit = request.fieldCount() > 2 && !request.field(2).isEmpty()
+                        ? Integer.parseInt(request.field(2)) : FileCatalog.DEFAULT_PAGE_SIZE;
+                connection.send(catalog.page(request.field(0), after, limit));
+            }
+            Log.debug("Sent file list to user '" + username + "'.");
 
         } catch (Exception e) {
-            sendMessage("ERROR|Unable to retrieve file list.");
-            System.out.println("ERROR sending file list to user '" + username + "': " + e.getMessage());
+            sendMessage(Message.ERROR, "Unable to retrieve file list.");
+            Log.error("Could not send file list to user '" + username + "': " + e.getMessage());
         }
     }
 
-    private void sendFile(String fileName){
+    // offset is null for a plain download, otherwise the file is sent as checksummed chunks from there,
+    // up to the end or only rangeLength bytes. Parallel downloads fetch one range per connection.
+    // A version other than the file's current one means the client's partial copy is of other
+    // content, the chunks then start at 0 and FILE_INFO says so
+    private void sendFile(String fileName, String offset, String rangeLength, String version){
         try {
-            String serverDir = System.getProperty("user.dir");
-            String path = serverDir + "/src/main/resources/Server.Files/" + fileName;
-            File file = new File(path);
+            File file = FileStore.resolve(fileName);
+            if (!file.isFile()) {
+                // Another node of the cluster may have it, it is then fetched once and served from here
+                File copy = Cluster.fetch(fileName);
+                if (copy != null) {
+                    file = copy;
+                }
+            }
 
             if (!file.exists() || !file.isFile()) {
-                sendMessage("ERROR|File not found.");
-                System.out.println("ERROR|File not found.");
+                sendMessage(Message.ERROR, "File not found.");
+                Log.debug("File not found: " + fileName);
                 return;
             }
 
-            long fileSize = file.length();
-            sendMessage("FILE_INFO|" + file.getName() + "|" + fileSize);
-            System.out.println("Sent file metadata to user '" + username + "'.");
+            // Hot files are sent from their shared mapping, everything else is opened and read as usual
+            HotFileCache.Region cached = HotFileCache.shared().get(file);
+
+            // Hold the lock until the last byte so no chat message ends up inside the file
+            connection.lock();
+            try (FileChannel fileChannel = cached == null ? FileChannel.open(file.toPath(), StandardOpenOption.READ) : null) {
+                long fileSize = cached != null ? cached.size() : fileChannel.size();
+                if (offset != null) {
+                    // A range reaching past the end is cut at the end, FILE_INFO tells the real length
+                    String currentVersion = String.valueOf(file.lastModified());
+                    long start = version == null || version.equals(currentVersion) ? Long.parseLong(offset) : 0;
+                    long end = rangeLength != null ? Math.min(fileSize, start + Long.parseLong(rangeLength)) : fileSize;
+                    if (start < 0 || start > fileSize || end < start) {
+                        connection.send(Message.ERROR, "Invalid range.");
+                        return;
+                    }
+                    if (rangeLength != null) {
+                        connection.send(Message.FILE_INFO, file.getName(), String.valueOf(fileSize), String.valueOf(start),
+                                String.valueOf(end - start), Message.VERSION + "=" + currentVersion);
+                    } else {
+                        connection.send(Message.FILE_INFO, file.getName(), String.valueOf(fileSize), String.valueOf(start),
+                                Message.VERSION + "=" + currentVersion);
+                    }
+                    if (cached != null) {
+                        ChunkedTransfer.send(connection, cached.slice(0, fileSize), start, end, cached.chunkCrcs(),
+                                Compression.isCompressible(fileName));
+                    } else {
+                        ChunkedTransfer.send(connection, fileChannel, start, end, zeroCopy, Compression.isCompressible(fileName));
+                    }
+                    Log.debug("Sent bytes " + start + "-" + end + " of " + fileName + " to user '" + username + "'.");
+                    return;
+                }
 
-            // Send raw bytes
-            FileInputStream fileInputStream = new FileInputStream(file);
-            BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(out);
+                connection.send(Message.FILE_INFO, file.getName(), String.valueOf(fileSize));
+                Log.debug("Sent file metadata to user '" + username + "'.");
 
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                bufferedOutputStream.write(buffer, 0, bytesRead);
+                // Send the bytes, with sendfile unless zero-copy was switched off
+                if (cached != null) {
+                    connection.sendData(cached.slice(0, fileSize));
+                } else {
+                    connection.sendFileData(fileChannel, 0, fileSize, zeroCopy);
+                }
+            } finally {
+                connection.unlock();
             }
-            bufferedOutputStream.flush();
-            fileInputStream.close();
-            System.out.println("Sent file to user '" + username + "'.");
+            Log.debug("Sent file to user '" + username + "'.");
 
-        } catch (IOException e) {
-            sendMessage("ERROR|Failed to send file.");
-            System.out.println("ERROR sending file to user '" + username + "': " + e.getMessage());
+        } catch (IOException | NumberFormatException e) {
+            sendMessage(Message.ERROR, "Failed to send file.");
+            Log.error("Could not send file to user '" + username + "': " + e.getMessage());
         }
     }
 
-    private void receiveFile(String filename, int fileLength) {
+    private void receiveFile(String filename, long fileLength) {
+        Path uploadFile = null;
         try {
-            // Prepare to receive the file into a byte array
-            byte[] fileBytes = new byte[fileLength];
-            int totalRead = 0;
-
-            while (totalRead < fileLength) {
-                int bytesRead = in.read(fileBytes, totalRead, fileLength - totalRead);
-
-                if (bytesRead == -1) {
-                    // Client disconnected unexpectedly
-                    System.out.println("Client " + username + " disconnected during file upload: " + filename);
-                    return; // stop processing
-                }
+            // Stream the bytes straight to a temporary file, heap use does not depend on the file size
+            uploadFile = FileStore.createUploadFile();
+            long totalRead;
+            try (FileChannel fileChannel = FileChannel.open(uploadFile, StandardOpenOption.WRITE)) {
+                totalRead = connection.readFileData(fileChannel, fileLength);
+            }
 
-                totalRead += bytesRead;
+            if (totalRead < fileLength) {
+                // Client disconnected unexpectedly
+                Log.warn("Client " + username + " disconnected during file upload: " + filename);
+                Files.deleteIfExists(uploadFile);
+                return; // stop processing
             }
 
-            // Save the file using helper method
-            saveUploadedFile(filename, fileBytes);
+            // Move the complete file into place using helper method
+            saveUploadedFile(uploadFile, filename, null);
 
             // Confirm to client
-            sendMessage("UPLOAD_SUCCESS|" + filename);
-            System.out.println("File " + filename + " received successfully from " + username);
+            sendMessage(Message.UPLOAD_SUCCESS, filename);
+            Log.info("File " + filename + " received successfully from " + username);
 
         } catch (IOException e) {
-            sendMessage("ERROR| failed to receive file.");
-            System.out.println("ERROR receiving file: '" + filename + "' from '" + username + "': " + e.getMessage());
+            sendMessage(Message.ERROR, " failed to receive file.");
+            Log.error("Could not receive file '" + filename + "' from '" + username + "': " + e.getMessage());
+            if (uploadFile != null) {
+                try {
+                    Files.deleteIfExists(uploadFile);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // Receives the chunks of a resumable upload; whatever was verified stays on disk if it breaks off
+    // The partial file only continues an upload with the same hash. Should the finished file still not
+    // have the client's hash, it is dropped and UPLOAD_FAILED asks for the whole file again
+    private void receiveChunkedFile(Message message, String filename, long fileLength, String hash) {
+        PartialFile upload = pendingResumableUpload;
+        try {
+            long verified = ChunkedTransfer.receive(connection, message, upload, fileLength, null);
+            if (verified == fileLength) {
+                Path received = upload.finish();
+                String receivedHash = ContentHash.sha256(received);
+                if (hash != null && !hash.equals(receivedHash)) {
+                    Files.deleteIfExists(received);
+                    sendMessage(Message.UPLOAD_FAILED, "0");
+                    Log.warn("Upload of " + filename + " from " + username + " did not match its hash, asked for the whole file");
+                    return;
+                }
+                saveUploadedFile(received, filename, receivedHash);
+                sendMessage(Message.UPLOAD_SUCCESS, filename);
+                Log.info("File " + filename + " received successfully from " + username);
+            } else {
+                upload.save();
+                sendMessage(Message.UPLOAD_FAILED, String.valueOf(verified));
+                Log.warn("Upload of " + filename + " from " + username + " stopped at "
+                        + verified + "/" + fileLength + " bytes, kept for resuming");
+            }
+        } catch (IOException | NumberFormatException e) {
+            sendMessage(Message.ERROR, " failed to receive file.");
+            Log.error("Could not receive file '" + filename + "' from '" + username + "': " + e.getMessage());
+        } finally {
+            releaseResumableUpload();
         }
     }
 
-    private void saveUploadedFile(String fileName, byte[] data) throws IOException {
-        // Define the directory where files will be stored
-        String serverDirectory = System.getProperty("user.dir");
-        String path = serverDirectory + "/src/main/resources/Server.Files/";
-        File serverDir = new File(path);
+    // Sends the signatures of the stored copy and rebuilds the upload from the delta the client answers with.
+    // If the result does not have the client's hash, UPLOAD_FAILED asks the client for the whole file
+    private void receiveDelta(Message message, File basis, String filename, long fileLength, String hash) {
+        Path uploadFile = null;
+        try (FileChannel basisChannel = FileChannel.open(basis.toPath(), StandardOpenOption.READ)) {
+            connection.lock();
+            try {
+                DeltaSync.sendSignatures(connection, basisChannel);
+            } finally {
+                connection.unlock();
+            }
+
+            uploadFile = FileStore.createUploadFile();
+            long length;
+            String rebuiltHash = null;
+            try (FileChannel fileChannel = FileChannel.open(uploadFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                length = DeltaSync.receiveDelta(connection, message, basisChannel, fileChannel, fileLength);
+                if (length == fileLength) {
+                    rebuiltHash = ContentHash.sha256(fileChannel);
+                }
+            }
 
-        if (!serverDir.exists()) {
-            if (serverDir.mkdirs()) {
-                System.out.println("Created server directory at: " + serverDir.getAbsolutePath());
+            if (length < 0) {
+                Log.warn("Client " + username + " disconnected during delta upload: " + filename);
+            } else if (!hash.equals(rebuiltHash)) {
+                sendMessage(Message.UPLOAD_FAILED, "0");
+                Log.warn("Delta upload of " + filename + " from " + username + " did not match its hash, asked for the whole file");
             } else {
-                System.out.println("ERROR: Failed to create server directory.");
-                throw new IOException("Could not create server directory.");
+                saveUploadedFile(uploadFile, filename, rebuiltHash);
+                uploadFile = null;
+                sendMessage(Message.UPLOAD_SUCCESS, filename);
+                Log.info("File " + filename + " rebuilt from a delta sent by " + username);
+            }
+        } catch (IOException | NumberFormatException e) {
+            sendMessage(Message.ERROR, " failed to receive file.");
+            Log.error("Could not receive the delta of '" + filename + "' from '" + username + "': " + e.getMessage());
+        } finally {
+            if (uploadFile != null) {
+                try {
+                    Files.deleteIfExists(uploadFile);
+                } catch (IOException ignored) {
+                }
             }
         }
+    }
 
-        // Create the target file inside the server directory
-        File file = new File(serverDir, fileName);
+    // Keeps the verified part of a resumable upload and lets other clients upload that name again
+    private void releaseResumableUpload() {
+        if (pendingResumableUpload == null) {
+            return;
+        }
+        try {
+            if (pendingResumableUpload.channel().isOpen()) {
+                pendingResumableUpload.save();
+                pendingResumableUpload.close();
+            }
+        } catch (IOException e) {
+            Log.error("Could not keep the partial upload of '" + pendingUploadFilename + "': " + e.getMessage());
+        }
+        FileStore.releaseResumableUpload(pendingUploadFilename);
+        pendingResumableUpload = null;
+        pendingUploadHash = null;
+    }
 
-        // Write byte[] data to file
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            fos.write(data);
-            fos.flush();
-            System.out.println("Uploaded file saved: " + file.getAbsolutePath());
-            System.out.println("File size: " + data.length + " bytes");
+    private void saveUploadedFile(Path uploadFile, String fileName, String hash) throws IOException {
+        try {
+            File file = FileStore.store(uploadFile, fileName, hash);
+            Log.debug("Uploaded file saved: " + file.getAbsolutePath() + " (" + file.length() + " bytes)");
         } catch (IOException e) {
-            System.out.println("ERROR saving file '" + fileName + "': " + e.getMessage());
+            Log.error("Could not save file '" + fileName + "': " + e.getMessage());
             throw e; // rethrow so the caller knows it failed
         }
     }
 
-    private void handleLogin(String username, String password) throws IOException, ClassNotFoundException {
-        boolean success = Server.authenticate(username, password);
+    private void handleLogin(Message login) throws IOException {
+        String username = login.field(0);
+
+        // A valid token from an earlier login lets the client in without hashing its password again
+        String token = login.option(Message.TOKEN, 2);
+        boolean byToken = username != null && token != null && username.equals(Server.tokens().verify(token));
+        boolean success = byToken || Server.authenticate(username, login.field(1));
 
-        PrintWriter writer = new PrintWriter (out, true);
         if (success) {
+            String previous = this.username;
             this.username = username;
-            writer.println("LOGIN-SUCCESS");
-            System.out.println("User logged in: " + username);
+            allClients.bindUsername(this, previous, username);
+            if (room == null) {
+                // Everybody starts in the lobby, so clients that know nothing about rooms still chat together
+                room = Server.rooms.join(this, RoomRegistry.LOBBY);
+            }
+
+            String newToken = Message.TOKEN + "=" + Server.tokens().issue(username);
+
+            // Clients that ask for BINARY get frames from the next message on, others stay on text
+            if (login.hasField(Message.BINARY, 2)) {
+                // Switch under the write lock so no broadcast slips in as text after the reply
+                // DEFLATE is only granted on top of BINARY, compressed data travels in frames
+                boolean deflate = compression && login.hasField(Message.DEFLATE, 2);
+                connection.lock();
+                try {
+                    if (deflate) {
+                        connection.send(Message.LOGIN_SUCCESS, Message.BINARY, Message.DEFLATE, newToken);
+                    } else {
+                        connection.send(Message.LOGIN_SUCCESS, Message.BINARY, newToken);
+                    }
+                    connection.setBinary(true);
+                    connection.setCompressed(deflate);
+                } finally {
+                    connection.unlock();
+                }
+            } else {
+                sendMessage(Message.LOGIN_SUCCESS, newToken);
+            }
+            Log.info("User logged in: " + username + (byToken ? " (token)" : ""));
         } else {
-            writer.println("LOGIN-FAILED");
-            System.out.println("Failed login attempt for username: " + username);
+            sendMessage(Message.LOGIN_FAILED);
+            Log.warn("Failed login attempt for username: " + username);
         }
     }
 }
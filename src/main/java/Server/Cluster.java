@@ -0,0 +1,454 @@
+package Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import Shared.EncodedMessage;
+import Shared.Message;
+import Shared.MessageChannel;
+
+/**
+ * Lets several servers act as one: chat reaches the members of a room on every node, and LIST
+ * and DOWNLOAD see the files of every node, so a client can connect to any of them.
+ *
+ * Every node listens on a relay port (-Dserver.cluster.port, by default the client port + 1000)
+ * and keeps a connection to the relay port of every other node listed in
+ * -Dserver.cluster.peers=host:port,host:port. Each connection carries one direction only, in
+ * binary frames: NODE_HELLO, then a CATALOG_ENTRY for every local file, then RELAY_CHAT and
+ * CATALOG_ENTRY/CATALOG_REMOVE as things happen. Messages are never passed on, so every node
+ * must list all the others. A connection that is lost or falls behind is opened again and starts
+ * over with the whole catalog. An idle connection sends NODE_HELLO every second.
+ *
+ * A DOWNLOAD of another node's file opens a separate connection to that node, FETCHes the whole
+ * file into ".cluster" and serves it from there like a local file. The copy is reused as long as
+ * the owner's catalog entry says the file is unchanged, and parallel range downloads of the same
+ * file wait for one fetch. It is deleted once the owner changes or removes the file or leaves the
+ * cluster; copies left from an earlier run are deleted when the server starts.
+ *
+ * Nodes trust each other. Every connection to the relay port has to present the
+ * -Dserver.cluster.secret all nodes share, without one the node does not join the cluster. The
+ * port should still only be reachable by the nodes. The nio mode does not take part.
+ */
+class Cluster {
+    static final String PEERS = System.getProperty("server.cluster.peers", "");
+    static final String SECRET = System.getProperty("server.cluster.secret", "");
+    static final int QUEUE_SIZE = Integer.getInteger("server.cluster.queueSize", 10_000);
+    private static final long RECONNECT_MILLIS = 2000;
+    private static final long HEARTBEAT_MILLIS = 1000;
+    private static final String COPIES_DIRECTORY = ".cluster";
+
+    private static volatile Cluster instance;
+
+    private final String node;
+    private final int relayPort;
+    private final ServerSocket relaySocket;
+    private final List<Peer> peers = new ArrayList<>();
+
+    // Relay address of every node that is connected to this one, and its current connection
+    private final ConcurrentHashMap<String, InetSocketAddress> nodes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Object> links = new ConcurrentHashMap<>();
+
+    // Fetches in progress, by node and file name
+    private final ConcurrentHashMap<String, CompletableFuture<File>> fetching = new ConcurrentHashMap<>();
+
+    static boolean isConfigured() {
+        return !PEERS.isBlank();
+    }
+
+    /**
+     * Joins the cluster if peers are configured, for a server taking clients on clientPort.
+     */
+    static void start(int clientPort) throws IOException {
+        if (!isConfigured()) {
+            return;
+        }
+        if (SECRET.isEmpty()) {
+            // Anyone who reaches the relay port could read every file and chat under any name
+            Log.error("Not joining the cluster: -Dserver.cluster.peers needs a -Dserver.cluster.secret shared by all nodes.");
+            return;
+        }
+        int relayPort = Integer.getInteger("server.cluster.port", clientPort + 1000);
+        String node = System.getProperty("server.cluster.node", hostName() + ":" + clientPort);
+        Cluster cluster = new Cluster(node, relayPort, PEERS);
+        try {
+            deleteCopies(FileStore.directory().toPath().resolve(COPIES_DIRECTORY));
+        } catch (IOException e) {
+            Log.warn("Could not delete the copies of an earlier run: " + e.getMessage());
+        }
+        instance = cluster;
+        FileStore.catalog().setListener(cluster::catalogChanged);
+        Log.info("Cluster node " + node + " relaying on port " + relayPort + " to " + PEERS);
+        cluster.startThreads();
+    }
+
+    /**
+     * Passes a chat message that was delivered here to the room on the other nodes.
+     */
+    static void relayChat(String room, String text) {
+        Cluster cluster = instance;
+        if (cluster != null) {
+            cluster.sendToPeers(new EncodedMessage(Message.RELAY_CHAT, room, text));
+        }
+    }
+
+    /**
+     * A local copy of a file that another node has, fetched if needed. Null if no other node
+     * lists the file or this server is not part of a cluster.
+     */
+    static File fetch(String fileName) throws IOException {
+        Cluster cluster = instance;
+        return cluster == null ? null : cluster.fetchRemote(fileName);
+    }
+
+    private Cluster(String node, int relayPort, String peerList) throws IOException {
+        this.node = node;
+        this.relayPort = relayPort;
+        for (String peer : peerList.split(",")) {
+            peer = peer.trim();
+            if (!peer.isEmpty()) {
+                int colon = peer.lastIndexOf(':');
+                peers.add(new Peer(InetSocketAddress.createUnresolved(peer.substring(0, colon),
+                        Integer.parseInt(peer.substring(colon + 1)))));
+            }
+        }
+        relaySocket = Server.openServerSocket(relayPort);
+    }
+
+    private void startThreads() {
+        Thread acceptThread = new Thread(this::acceptNodes, "cluster-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        for (Peer peer : peers) {
+            Thread thread = new Thread(peer, "cluster-peer-" + peer.name());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void sendToPeers(EncodedMessage message) {
+        for (Peer peer : peers) {
+            peer.offer(message);
+        }
+    }
+
+    // Tells the other nodes about a changed local file, entry is null if it was deleted
+    private void catalogChanged(String name, FileCatalog.Entry entry) {
+        sendToPeers(entry != null ? entryMessage(entry) : new EncodedMessage(Message.CATALOG_REMOVE, name));
+    }
+
+    private static EncodedMessage entryMessage(FileCatalog.Entry entry) {
+        return new EncodedMessage(Message.CATALOG_ENTRY, entry.name(), String.valueOf(entry.size()),
+                String.valueOf(entry.modified()), entry.hash() == null ? "" : entry.hash());
+    }
+
+    /**
+     * The connection to one other node, written by its own thread so a slow node never holds up
+     * the client that chats.
+     */
+    private class Peer implements Runnable {
+        final InetSocketAddress address;
+        final LinkedBlockingQueue<EncodedMessage> queue = new LinkedBlockingQueue<>(QUEUE_SIZE);
+        volatile SocketChannel channel; // null while not connected
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        String name() {
+            return address.getHostString() + ":" + address.getPort();
+        }
+
+        // Nothing is queued while disconnected, the node gets the whole catalog when it is back
+        void offer(EncodedMessage message) {
+            SocketChannel current = channel;
+            if (current != null && !queue.offer(message)) {
+                Log.warn("Cluster node " + name() + " fell behind, reconnecting");
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    // the writer notices
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean reported = false; // only the first of a series of failed attempts is printed
+            while (true) {
+                try (SocketChannel socket = SocketChannel.open(
+                        new InetSocketAddress(address.getHostString(), address.getPort()))) {
+                    socket.socket().setTcpNoDelay(true);
+                    MessageChannel connection = new MessageChannel(socket);
+                    connection.setBinary(true);
+
+                    // Changes from now on are queued, so none is missed while the catalog is sent
+                    queue.clear();
+                    channel = socket;
+                    connection.send(Message.NODE_HELLO, node, String.valueOf(relayPort), SECRET);
+                    for (FileCatalog.Entry entry : FileStore.catalog().localEntries()) {
+                        connection.send(entryMessage(entry));
+                    }
+                    Log.info("Cluster: connected to " + name());
+                    reported = false;
+
+                    // An idle connection repeats the hello, otherwise a node that went away is only
+                    // noticed with the next change, and would miss the catalog once it is back
+                    while (true) {
+                        EncodedMessage message = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                        if (message != null) {
+                            connection.send(message);
+                        } else {
+                            connection.send(Message.NODE_HELLO, node, String.valueOf(relayPort), SECRET);
+                        }
+                    }
+                } catch (IOException e) {
+                    if (!reported) {
+                        Log.warn("Cluster: no connection to " + name() + " (" + e.getMessage()
+                                + "), retrying every " + RECONNECT_MILLIS / 1000 + " s");
+                        reported = true;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    channel = null;
+                }
+
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void acceptNodes() {
+        while (!relaySocket.isClosed()) {
+            try {
+                Socket socket = relaySocket.accept();
+                Thread thread = new Thread(() -> serve(socket), "cluster-link-" + socket.getRemoteSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!relaySocket.isClosed()) {
+                    Log.error("Error accepting cluster connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // A connection from another node: either its relay link or a single FETCH
+    private void serve(Socket socket) {
+        String peer = null;
+        Object link = new Object();
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            MessageChannel connection = new MessageChannel(socket.getChannel());
+            connection.setBinary(true);
+            Message message = new Message();
+            if (connection.read(message) == null) {
+                return;
+            }
+            if (message.type == Message.FETCH && isSecret(message.field(0))) {
+                sendLocalFile(connection, message.field(1));
+                return;
+            }
+            if (message.type != Message.NODE_HELLO || !isSecret(message.field(2))) {
+                connection.send(Message.ERROR, "Not a node of this cluster.");
+                return;
+            }
+
+            peer = message.field(0);
+            nodes.put(peer, new InetSocketAddress(socket.getInetAddress(), Integer.parseInt(message.field(1))));
+            links.put(peer, link);
+            Log.info("Cluster: node " + peer + " joined");
+
+            while (connection.read(message) != null) {
+                switch (message.type) {
+                    case Message.RELAY_CHAT -> deliver(message.field(0), message.field(1));
+                    case Message.CATALOG_ENTRY -> {
+                        FileCatalog.Entry entry = new FileCatalog.Entry(message.field(0), Long.parseLong(message.field(1)),
+                                Long.parseLong(message.field(2)), message.field(3), peer);
+                        FileStore.catalog().putRemote(entry);
+                        File copy = copyOf(peer, entry.name()).toFile();
+                        if (copy.exists() && !isCurrent(copy, entry)) {
+                            Files.deleteIfExists(copy.toPath());
+                        }
+                    }
+                    case Message.CATALOG_REMOVE -> {
+                        FileStore.catalog().removeRemote(peer, message.field(0));
+                        Files.deleteIfExists(copyOf(peer, message.field(0)));
+                    }
+                    case Message.NODE_HELLO -> {
+                        // heartbeat
+                    }
+                    default -> Log.warn("Cluster: unexpected " + Message.name(message.type) + " from " + peer);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.error("Error on the cluster connection from " + (peer != null ? peer : socket.getRemoteSocketAddress())
+                    + ": " + e.getMessage());
+        } finally {
+            // A node that already connected again keeps its files listed
+            if (peer != null && links.remove(peer, link)) {
+                try {
+                    FileStore.catalog().removeNode(peer);
+                    deleteCopies(copiesOf(peer));
+                } catch (IOException e) {
+                    Log.error("Could not drop the files of node " + peer + ": " + e.getMessage());
+                }
+                Log.info("Cluster: node " + peer + " left");
+            }
+        }
+    }
+
+    private boolean isSecret(String value) {
+        return value != null && MessageDigest.isEqual(value.getBytes(StandardCharsets.UTF_8),
+                SECRET.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Chat from another node goes to this node's members of the room and into its history
+    private static void deliver(String roomName, String text) {
+        Room<ClientHandler> room = Server.rooms.find(roomName);
+        if (room != null) {
+            ClientHandler.deliver(room, new EncodedMessage(Message.CHAT, text), null);
+        }
+        ChatHistory.append(roomName, text);
+    }
+
+    // Answers "FETCH|secret|name" with "FILE_INFO|name|size|modified" and the bytes
+    private void sendLocalFile(MessageChannel connection, String fileName) throws IOException {
+        File file = FileStore.resolve(fileName);
+        if (!file.isFile()) {
+            connection.send(Message.ERROR, "File not found.");
+            return;
+        }
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            connection.send(Message.FILE_INFO, file.getName(), String.valueOf(size), String.valueOf(file.lastModified()));
+            connection.sendFileData(fileChannel, 0, size, ClientHandler.zeroCopy);
+        }
+    }
+
+    private File fetchRemote(String fileName) throws IOException {
+        FileCatalog.Entry entry = FileStore.catalog().get(fileName);
+        if (entry == null || entry.isLocal()) {
+            return null;
+        }
+        File copy = copyOf(entry.node(), fileName).toFile();
+        if (isCurrent(copy, entry)) {
+            return copy;
+        }
+
+        String key = entry.node() + "/" + fileName;
+        CompletableFuture<File> fetch = new CompletableFuture<>();
+        CompletableFuture<File> running = fetching.putIfAbsent(key, fetch);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof IOException cause ? cause : new IOException(e.getCause());
+            }
+        }
+        try {
+            download(entry, copy.toPath());
+            fetch.complete(copy);
+            return copy;
+        } catch (IOException | RuntimeException e) {
+            fetch.completeExceptionally(e);
+            throw e;
+        } finally {
+            fetching.remove(key, fetch);
+        }
+    }
+
+    // Where the copies of the files of another node are kept
+    private static Path copiesOf(String node) {
+        return FileStore.directory().toPath().resolve(COPIES_DIRECTORY)
+                .resolve(HexFormat.of().formatHex(node.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static Path copyOf(String node, String fileName) {
+        return copiesOf(node).resolve(fileName);
+    }
+
+    private static boolean isCurrent(File copy, FileCatalog.Entry entry) {
+        return copy.isFile() && copy.length() == entry.size() && copy.lastModified() == entry.modified();
+    }
+
+    // Deletes a directory of copies, open copies can still be read to the end by their downloads
+    private static void deleteCopies(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // Fetches the whole file next to its final place and renames it there once complete
+    private void download(FileCatalog.Entry entry, Path copy) throws IOException {
+        InetSocketAddress address = nodes.get(entry.node());
+        if (address == null) {
+            throw new IOException("Node " + entry.node() + " is not connected");
+        }
+        Files.createDirectories(copy.getParent());
+        Path partial = Files.createTempFile(copy.getParent(), "fetch", ".part");
+        long start = System.nanoTime();
+        try (SocketChannel socket = SocketChannel.open(address)) {
+            MessageChannel connection = new MessageChannel(socket);
+            connection.setBinary(true);
+            connection.send(Message.FETCH, SECRET, entry.name());
+            Message reply = connection.read(new Message());
+            if (reply == null || reply.type != Message.FILE_INFO) {
+                throw new IOException("Node " + entry.node() + " did not send " + entry.name()
+                        + (reply != null && reply.type == Message.ERROR ? ": " + reply.field(0) : ""));
+            }
+            long size = Long.parseLong(reply.field(1));
+            long modified = Long.parseLong(reply.field(2));
+            try (FileChannel target = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+                if (connection.readFileData(target, size) != size) {
+                    throw new IOException("Node " + entry.node() + " closed the connection while sending " + entry.name());
+                }
+            }
+            Files.setLastModifiedTime(partial, FileTime.fromMillis(modified));
+            Files.move(partial, copy, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Log.info(String.format("Cluster: fetched %s (%d bytes) from %s in %d ms", entry.name(), size, entry.node(),
+                    (System.nanoTime() - start) / 1_000_000));
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            return "localhost";
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import Shared.EncodedMessage;
+import Shared.Message;
+
+/**
+ * In-memory list of the shared files with their size, last modification time and hash, so LIST
+ * does not scan Server.Files.
+ *
+ * It is filled by one scan and then kept current by a WatchService thread, plus FileStore, which
+ * updates the entry of every upload before the client is told it succeeded. If the watcher loses
+ * events (overflow) the directory is scanned again. Hidden entries (".uploads", ".blobs") and
+ * anything that is not a regular file are left out.
+ *
+ * Entries are sorted by name, so a page of names with a given prefix is found without walking
+ * the whole catalog. The plain LIST reply with every name is serialized once per change and
+ * shared by all clients that ask for it until the next change.
+ *
+ * In a cluster the catalog also holds the files of the other nodes, as entries naming the node
+ * (see Cluster). A local file hides a remote one of the same name, and when the local file goes
+ * away the remote one is listed again. Changes to local files are passed to the listener, which
+ * tells the other nodes.
+ */
+class FileCatalog implements Closeable {
+    static final int DEFAULT_PAGE_SIZE = 100;
+    static final int MAX_PAGE_SIZE = 1000;
+
+    // node is null for the files in this node's directory
+    record Entry(String name, long size, long modified, String hash, String node) {
+        Entry(String name, long size, long modified, String hash) {
+            this(name, size, modified, hash, null);
+        }
+
+        boolean isLocal() {
+            return node == null;
+        }
+    }
+
+    // The full list and the catalog version it was built from
+    private record Snapshot(long version, EncodedMessage message) {
+    }
+
+    private final Path directory;
+    private final BlobStore blobs;
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, Entry> remote = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot;
+    private volatile BiConsumer<String, Entry> listener;
+
+    private final WatchService watcher;
+
+    FileCatalog(Path directory, BlobStore blobs) throws IOException {
+        this.directory = directory;
+        this.blobs = blobs;
+
+        // Watch before scanning, so nothing that changes during the scan is missed
+        watcher = directory.getFileSystem().newWatchService();
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        scan();
+
+        Thread watchThread = new Thread(this::watch, "file-catalog");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    boolean isFor(Path directory) {
+        return this.directory.equals(directory);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Called with the name and new entry of every local file that changed, with a null entry
+     * when it was deleted.
+     */
+    void setListener(BiConsumer<String, Entry> listener) {
+        this.listener = listener;
+    }
+
+    List<Entry> localEntries() {
+        List<Entry> local = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.isLocal()) {
+                local.add(entry);
+            }
+        }
+        return local;
+    }
+
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Lists a file of another node, unless a local file has that name.
+     */
+    void putRemote(Entry entry) {
+        remote.put(entry.name(), entry);
+        entries.compute(entry.name(), (name, current) -> current != null && current.isLocal() ? current : entry);
+        version.incrementAndGet();
+    }
+
+    void removeRemote(String node, String name) {
+        Entry entry = remote.get(name);
+        if (entry == null || !node.equals(entry.node()) || !remote.remove(name, entry)) {
+            return; // listed by another node meanwhile
+        }
+        entries.computeIfPresent(name, (key, current) -> current.isLocal() ? current : null);
+        version.incrementAndGet();
+    }
+
+    // The node left the cluster, its files are no longer listed
+    void removeNode(String node) {
+        for (Entry entry : remote.values()) {
+            if (node.equals(entry.node())) {
+                removeRemote(node, entry.name());
+            }
+        }
+    }
+
+    /**
+     * The plain LIST reply: "FILE_LIST|a,b,c". Names containing a comma cannot be told apart in
+     * it, clients that care ask for pages.
+     */
+    EncodedMessage list() {
+        long current = version.get();
+        Snapshot last = snapshot;
+        if (last != null && last.version() == current) {
+            return last.message();
+        }
+
+        StringBuilder names = new StringBuilder();
+        for (String name : entries.keySet()) {
+            if (names.length() > 0) {
+                names.append(',');
+            }
+            names.append(name);
+        }
+        EncodedMessage message = new EncodedMessage(Message.FILE_LIST, names.toString());
+        snapshot = new Snapshot(current, message);
+        return message;
+    }
+
+    /**
+     * The paged LIST reply: "FILE_PAGE|next|name|size|modified|hash|name|...", with up to
+     * {@code limit} files whose name starts with {@code prefix} and sorts after {@code after}.
+     * {@code next} is the name to ask for the following page with, empty on the last page.
+     * The hash is empty for files that did not arrive through the blob store.
+     */
+    EncodedMessage page(String prefix, String after, int limit) {
+        limit = Math.max(1, Math.min(MAX_PAGE_SIZE, limit));
+        Map<String, Entry> tail = after.compareTo(prefix) < 0
+                ? entries.tailMap(prefix, true)
+                : entries.tailMap(after, false);
+
+        List<String> fields = new ArrayList<>();
+        fields.add("");
+        int count = 0;
+        for (Entry entry : tail.values()) {
+            if (!entry.name().startsWith(prefix)) {
+                break;
+            }
+            if (count == limit) {
+                fields.set(0, fields.get(fields.size() - 4)); // more to come, continue after the last name sent
+                break;
+            }
+            fields.add(entry.name());
+            fields.add(Long.toString(entry.size()));
+            fields.add(Long.toString(entry.modified()));
+            fields.add(entry.hash() == null ? "" : entry.hash());
+            count++;
+        }
+        return new EncodedMessage(Message.FILE_PAGE, fields.toArray(new String[0]));
+    }
+
+    /**
+     * Reads the current state of one file into the catalog, or drops it if it is gone.
+     */
+    void refresh(String name) {
+        if (name.startsWith(".")) {
+            return;
+        }
+        Path path = directory.resolve(name);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attributes.isRegularFile()) {
+                update(name, new Entry(name, attributes.size(), attributes.lastModifiedTime().toMillis(),
+                        blobs.hashOf(name)));
+            } else {
+                update(name, null);
+            }
+        } catch (NoSuchFileException e) {
+            update(name, null);
+        } catch (IOException e) {
+            Log.error("Could not read '" + name + "' into the file catalog: " + e.getMessage());
+        }
+        version.incrementAndGet();
+    }
+
+    // Sets the local entry of a name, null if there is no local file, and tells the listener if that changed
+    private void update(String name, Entry local) {
+        Entry[] previous = new Entry[1];
+        entries.compute(name, (key, current) -> {
+            previous[0] = current != null && current.isLocal() ? current : null;
+            return local != null ? local : remote.get(name);
+        });
+        BiConsumer<String, Entry> listener = this.listener;
+        if (listener != null && !Objects.equals(previous[0], local)) {
+            listener.accept(name, local);
+        }
+    }
+
+    // Reads the whole directory, used at the start and whenever the watcher lost events
+    private void scan() throws IOException {
+        Set<String> seen = new HashSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                seen.add(name);
+                refresh(name);
+            }
+        }
+        for (Entry entry : localEntries()) {
+            if (!seen.contains(entry.name())) {
+                update(entry.name(), null);
+            }
+        }
+        version.incrementAndGet();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan();
+                    } else {
+                        refresh(((Path) event.context()).toString());
+                    }
+                }
+                if (!key.reset()) {
+                    Log.warn("File catalog stopped watching " + directory + ", it no longer exists.");
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private void rescan() {
+        try {
+            scan();
+        } catch (IOException e) {
+            Log.error("Could not rescan " + directory + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+    }
+}
@@ -0,0 +1,150 @@
+package Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import Shared.DeltaSync;
+import Shared.PartialFile;
+
+/**
+ * Owns the Server.Files directory: where shared files live and how uploads get into it.
+ *
+ * Uploads are written to a temporary file under ".uploads" first and only renamed into place once
+ * every byte has arrived, so other clients never list or download a half written file.
+ *
+ * Uploads of the blocking modes are stored through a BlobStore, which keeps identical content
+ * only once and lets a client that sends a known hash skip sending the bytes. A client changing
+ * a file that is already here can send just the difference, see DeltaSync.
+ *
+ * LIST is answered from a FileCatalog, which every stored upload is added to right away.
+ *
+ * Resumable uploads keep their partial file in ".uploads" under a name derived from the file
+ * name and size, so a client that lost its connection can continue where it was cut off.
+ */
+public class FileStore {
+    private static final String UPLOADS_DIRECTORY = ".uploads";
+
+    private static BlobStore blobStore;
+    private static FileCatalog catalog;
+
+    // Names with a resumable upload in progress, so two clients never write the same partial file
+    private static final Set<String> resumableUploads = ConcurrentHashMap.newKeySet();
+
+    // Directory holding the shared files, can be overridden with -Dserver.files.dir=...
+    static File directory() {
+        String path = System.getProperty("server.files.dir");
+        if (path == null) {
+            path = System.getProperty("user.dir") + "/src/main/resources/Server.Files/";
+        }
+        return new File(path);
+    }
+
+    // Resolves a client supplied file name, refusing anything that would leave the directory
+    // or could not be listed over the text protocol
+    static File resolve(String fileName) throws IOException {
+        if (fileName == null || fileName.isEmpty() || fileName.startsWith(".")
+                || fileName.contains("/") || fileName.contains("\\")
+                || fileName.contains("|") || fileName.contains("\n") || fileName.contains("\r")) {
+            throw new IOException("Invalid file name: " + fileName);
+        }
+        return new File(directory(), fileName);
+    }
+
+    static boolean exists(String fileName) throws IOException {
+        return resolve(fileName).exists();
+    }
+
+    // The stored file a delta upload of fileName can be rebuilt from, null if there is none worth using
+    static File deltaBasis(String fileName) throws IOException {
+        File file = resolve(fileName);
+        return file.isFile() && DeltaSync.isUsable(file.length()) ? file : null;
+    }
+
+    // Creates an empty temporary file on the same file system as the shared files
+    static Path createUploadFile() throws IOException {
+        Path uploads = directory().toPath().resolve(UPLOADS_DIRECTORY);
+        Files.createDirectories(uploads);
+        return Files.createTempFile(uploads, "upload-", ".part");
+    }
+
+    // Opens the partial file kept for a resumable upload, null if another client is uploading that name.
+    // A partial file of the same name and length but another hash is started over
+    static PartialFile openResumableUpload(String fileName, long fileLength, String hash) throws IOException {
+        resolve(fileName); // validates the name
+        if (!resumableUploads.add(fileName)) {
+            return null;
+        }
+        try {
+            Path uploads = directory().toPath().resolve(UPLOADS_DIRECTORY);
+            Files.createDirectories(uploads);
+            return PartialFile.open(uploads.resolve(fileName + "." + fileLength + ".part"), hash);
+        } catch (IOException e) {
+            resumableUploads.remove(fileName);
+            throw e;
+        }
+    }
+
+    static void releaseResumableUpload(String fileName) {
+        resumableUploads.remove(fileName);
+    }
+
+    // The blob store of the current directory, which can change when tests and benchmarks override server.files.dir
+    static synchronized BlobStore blobs() throws IOException {
+        Path path = directory().toPath();
+        if (blobStore == null || !blobStore.isFor(path)) {
+            blobStore = new BlobStore(path);
+        }
+        return blobStore;
+    }
+
+    // The catalog LIST is answered from, created with the first use for the current directory
+    static synchronized FileCatalog catalog() throws IOException {
+        Path path = directory().toPath();
+        if (catalog == null || !catalog.isFor(path)) {
+            if (catalog != null) {
+                catalog.close();
+            }
+            catalog = new FileCatalog(path, blobs());
+        }
+        return catalog;
+    }
+
+    // Stores a completely received upload, replacing an earlier file of the same name. The hash of
+    // its content may be given if the caller has computed it already, null otherwise
+    static File store(Path uploadFile, String fileName, String hash) throws IOException {
+        resolve(fileName); // validates the name
+        File file = blobs().store(uploadFile, fileName, hash);
+        catalog().refresh(fileName);
+        return file;
+    }
+
+    // Publishes fileName as another name of stored content, false if that content is unknown
+    static boolean linkExisting(String hash, long fileLength, String fileName) throws IOException {
+        resolve(fileName);
+        if (!blobs().linkExisting(hash, fileLength, fileName)) {
+            return false;
+        }
+        catalog().refresh(fileName);
+        return true;
+    }
+
+    // Atomically renames a completely received upload to its final name, replacing an earlier file of
+    // that name like store() does. Used by the nio mode, which does not hash uploads on its event loops,
+    // so the name stops being a link into the blob store
+    static File commitUpload(Path uploadFile, String fileName) throws IOException {
+        File target = resolve(fileName);
+        try {
+            Files.move(uploadFile, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(uploadFile, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        blobs().forget(fileName);
+        catalog().refresh(fileName);
+        return target;
+    }
+}
@@ -0,0 +1,189 @@
+package Server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import Shared.User;
+
+/**
+ * Users with salted, slow password hashes (PBKDF2 with HMAC-SHA256), held in a hash map so a
+ * login looks up its user directly however many there are.
+ *
+ * The users are read from a file (-Dserver.users.file=..., by default
+ * src/main/resources/Server.users) with one "username:iterations:salt:hash" line per user, salt
+ * and hash in Base64. Lines are added with
+ *
+ *     java Server.HashedUserStore <file> <username> <password>
+ *
+ * Without a file the five built-in users are used, hashed when the server starts.
+ *
+ * Hashing a password takes tens of milliseconds on purpose (-Dserver.auth.iterations=N), which
+ * makes guessing stolen hashes slow but also makes every login cost that much CPU. Logins that
+ * come back often are kept off this path by CachingUserStore and session tokens.
+ */
+class HashedUserStore implements UserStore {
+    static final int ITERATIONS = Integer.getInteger("server.auth.iterations", 100_000);
+
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final User[] BUILT_IN_USERS = {
+            new User("user1", "1234"),
+            new User("user2", "1234"),
+            new User("user3", "1234"),
+            new User("user4", "1234"),
+            new User("user5", "1234"),
+    };
+
+    // One array per user: iterations (4 bytes), salt, hash. Millions of users fit in a few hundred MB
+    private final Map<String, byte[]> credentials;
+
+    // Checked for names that do not exist, so they take as long to reject as wrong passwords
+    private final byte[] unknownUser;
+
+    private HashedUserStore(Map<String, byte[]> credentials) {
+        this.credentials = credentials;
+        this.unknownUser = credential(randomSalt(), ITERATIONS, "");
+    }
+
+    /**
+     * The users of the configured file, or the built-in users if there is none.
+     */
+    static HashedUserStore load() throws IOException {
+        String path = System.getProperty("server.users.file");
+        Path file = path != null ? Paths.get(path)
+                : Paths.get(System.getProperty("user.dir"), "src", "main", "resources", "Server.users");
+        if (path == null && !Files.exists(file)) {
+            Log.info("No user file at " + file + ", using the built-in users.");
+            return of(BUILT_IN_USERS);
+        }
+        return load(file);
+    }
+
+    static HashedUserStore load(Path file) throws IOException {
+        Map<String, byte[]> credentials = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split(":");
+                if (parts.length != 4) {
+                    throw new IOException(file + ":" + lineNumber + ": expected username:iterations:salt:hash");
+                }
+                try {
+                    Base64.Decoder base64 = Base64.getDecoder();
+                    byte[] salt = base64.decode(parts[2]);
+                    byte[] hash = base64.decode(parts[3]);
+                    if (salt.length != SALT_LENGTH || hash.length != HASH_LENGTH) {
+                        throw new IllegalArgumentException("wrong salt or hash length");
+                    }
+                    credentials.put(parts[0], ByteBuffer.allocate(4 + SALT_LENGTH + HASH_LENGTH)
+                            .putInt(Integer.parseInt(parts[1])).put(salt).put(hash).array());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+        return new HashedUserStore(credentials);
+    }
+
+    static HashedUserStore of(User... users) {
+        Map<String, byte[]> credentials = new HashMap<>();
+        for (User user : users) {
+            credentials.put(user.getUsername(), credential(randomSalt(), ITERATIONS, user.getPassword()));
+        }
+        return new HashedUserStore(credentials);
+    }
+
+    @Override
+    public boolean authenticate(String username, String password) {
+        if (username == null || password == null || password.isEmpty()) {
+            return false;
+        }
+        byte[] credential = credentials.get(username);
+        boolean known = credential != null;
+        if (!known) {
+            credential = unknownUser;
+        }
+
+        ByteBuffer stored = ByteBuffer.wrap(credential);
+        int iterations = stored.getInt();
+        byte[] salt = new byte[SALT_LENGTH];
+        byte[] hash = new byte[HASH_LENGTH];
+        stored.get(salt).get(hash);
+        return MessageDigest.isEqual(hash, pbkdf2(password, salt, iterations)) && known;
+    }
+
+    @Override
+    public int size() {
+        return credentials.size();
+    }
+
+    /**
+     * The user file line for a user.
+     */
+    static String entry(String username, String password, int iterations) {
+        if (username.isEmpty() || username.contains(":") || username.contains("|") || password.isEmpty()) {
+            throw new IllegalArgumentException("Invalid username or empty password");
+        }
+        byte[] salt = randomSalt();
+        Base64.Encoder base64 = Base64.getEncoder();
+        return username + ":" + iterations + ":" + base64.encodeToString(salt) + ":"
+                + base64.encodeToString(pbkdf2(password, salt, iterations));
+    }
+
+    private static byte[] credential(byte[] salt, int iterations, String password) {
+        return ByteBuffer.allocate(4 + SALT_LENGTH + HASH_LENGTH).putInt(iterations).put(salt)
+                .put(password.isEmpty() ? new byte[HASH_LENGTH] : pbkdf2(password, salt, iterations)).array();
+    }
+
+    private static byte[] randomSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        return salt;
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_LENGTH * 8);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    // Adds a user to a user file
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.out.println("Usage: java Server.HashedUserStore <file> <username> <password>");
+            return;
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(args[0]), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(entry(args[1], args[2], ITERATIONS));
+            writer.newLine();
+        }
+        System.out.println("Added user '" + args[1] + "' to " + args[0]);
+    }
+}
@@ -0,0 +1,228 @@
+package Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import Shared.ChunkedTransfer;
+
+/**
+ * Memory-mapped copies of the files that are downloaded most, so a popular file is not opened
+ * and read again for every download.
+ *
+ * A file is mapped on its second download (-Dserver.hotCache.admitAfter=N) and from then on
+ * every download of it shares the one read-only mapping, each through its own view. The CRC32C
+ * of every chunk is computed once and kept with the mapping, so chunked and ranged downloads of
+ * a hot file do not checksum it again either.
+ *
+ * The cache is off unless -Dserver.hotCache.bytes=N gives it a budget. When the mapped bytes go
+ * over the budget the least recently downloaded files are dropped. A dropped mapping stays
+ * valid for downloads still sending it and is unmapped by the GC once they are done. A file
+ * bigger than a quarter of the budget (or 2 GB) is never cached, so one large file cannot push
+ * out all the others.
+ *
+ * A mapping is only used while the file on disk is still the same one (file key, size and
+ * modification time). FileStore never writes shared files in place, replacing a file always
+ * creates a new one, so a mapped file does not change under the cache.
+ */
+class HotFileCache {
+    static final long BUDGET = Long.getLong("server.hotCache.bytes", 0);
+    static final int ADMIT_AFTER = Integer.getInteger("server.hotCache.admitAfter", 2);
+
+    // Download counts of files that are not cached yet, forgotten when it gets this big
+    private static final int MAX_TRACKED = 4096;
+
+    // Replaced by tests and benchmarks that compare budgets
+    private static volatile HotFileCache shared = new HotFileCache(BUDGET, ADMIT_AFTER);
+
+    /**
+     * One cached file. The data must only be used through slice(), which hands out an own view.
+     */
+    static final class Region {
+        private final Object fileKey;
+        private final long size;
+        private final long modified;
+        private final MappedByteBuffer data;
+        private final AtomicLongArray chunkCrcs;
+
+        private Region(BasicFileAttributes attributes, MappedByteBuffer data) {
+            this.fileKey = attributes.fileKey();
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().toMillis();
+            this.data = data;
+            this.chunkCrcs = new AtomicLongArray((int) ((size + ChunkedTransfer.CHUNK_SIZE - 1) / ChunkedTransfer.CHUNK_SIZE));
+            for (int i = 0; i < chunkCrcs.length(); i++) {
+                chunkCrcs.set(i, -1);
+            }
+        }
+
+        long size() {
+            return size;
+        }
+
+        ByteBuffer slice(long position, long length) {
+            return data.slice((int) position, (int) length);
+        }
+
+        // Chunk checksums shared by every download, -1 where not computed yet
+        AtomicLongArray chunkCrcs() {
+            return chunkCrcs;
+        }
+
+        private boolean isCurrent(BasicFileAttributes attributes) {
+            return attributes.size() == size && attributes.lastModifiedTime().toMillis() == modified
+                    && (fileKey == null || fileKey.equals(attributes.fileKey()));
+        }
+    }
+
+    private final long budget;
+    private final int admitAfter;
+
+    // Guards the maps and cachedBytes. Files are mapped outside of it
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Region> regions = new LinkedHashMap<>(16, 0.75f, true); // LRU order
+    private final Map<String, Integer> downloads = new HashMap<>();
+    private long cachedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    HotFileCache(long budget, int admitAfter) {
+        this.budget = budget;
+        this.admitAfter = Math.max(1, admitAfter);
+    }
+
+    static HotFileCache shared() {
+        return shared;
+    }
+
+    static void setShared(HotFileCache cache) {
+        shared = cache;
+    }
+
+    boolean isEnabled() {
+        return budget > 0;
+    }
+
+    /**
+     * The cached region of the file, mapping it now if it has become hot. Null if the file is
+     * not cached, the caller then reads it from disk as usual.
+     */
+    Region get(File file) throws IOException {
+        if (!isEnabled()) {
+            return null;
+        }
+        Path path = file.toPath();
+        String key = path.toAbsolutePath().toString();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+        lock.lock();
+        try {
+            Region region = regions.get(key);
+            if (region != null && region.isCurrent(attributes)) {
+                hits.increment();
+                return region;
+            }
+            if (region != null) {
+                regions.remove(key); // the file was replaced
+                cachedBytes -= region.size;
+            }
+            misses.increment();
+
+            long size = attributes.size();
+            if (size == 0 || size > Math.min(budget / 4, Integer.MAX_VALUE) || !attributes.isRegularFile()) {
+                return null;
+            }
+            if (downloads.size() >= MAX_TRACKED) {
+                downloads.clear();
+            }
+            if (downloads.merge(key, 1, Integer::sum) < admitAfter) {
+                return null;
+            }
+            downloads.remove(key);
+        } finally {
+            lock.unlock();
+        }
+
+        Region region;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            region = new Region(attributes, channel.map(FileChannel.MapMode.READ_ONLY, 0, attributes.size()));
+        }
+
+        lock.lock();
+        try {
+            Region existing = regions.get(key);
+            if (existing != null && existing.isCurrent(attributes)) {
+                return existing; // mapped by another download at the same time
+            }
+            if (existing != null) {
+                cachedBytes -= existing.size;
+            }
+            regions.put(key, region);
+            cachedBytes += region.size;
+            evict();
+            return region;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops the least recently used files until the cache fits its budget. Called with the lock held
+    private void evict() {
+        Iterator<Region> iterator = regions.values().iterator();
+        while (cachedBytes > budget && iterator.hasNext()) {
+            Region region = iterator.next();
+            iterator.remove();
+            cachedBytes -= region.size;
+            evictions.increment();
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    double hitRate() {
+        long total = hits() + misses();
+        return total == 0 ? 0 : (double) hits() / total;
+    }
+
+    long cachedBytes() {
+        lock.lock();
+        try {
+            return cachedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int cachedFiles() {
+        lock.lock();
+        try {
+            return regions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package Server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The server's console log. A request thread only checks the level and queues the line, one
+ * background thread formats and writes the lines in batches, so a slow console never holds up
+ * a client.
+ *
+ * -Dserver.log.level=DEBUG|INFO|WARN|ERROR (default INFO) chooses what is written, per request
+ * events like every file sent are DEBUG. When more than -Dserver.log.queueSize=N lines (default
+ * 8192) are waiting, new ones are dropped and counted rather than blocking.
+ */
+final class Log {
+    enum Level { DEBUG, INFO, WARN, ERROR }
+
+    static final Level LEVEL = Level.valueOf(System.getProperty("server.log.level", "INFO").trim().toUpperCase());
+    private static final int QUEUE_SIZE = Integer.getInteger("server.log.queueSize", 8192);
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private record Line(long time, Level level, String message, Throwable error) {
+    }
+
+    private static final ArrayBlockingQueue<Line> lines = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final LongAdder dropped = new LongAdder();
+    private static final ReentrantLock writeLock = new ReentrantLock(); // the writer and the shutdown flush share out
+    private static long lastSecond = -1; // with secondText guarded by writeLock
+    private static String secondText;
+    private static final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64 * 1024);
+
+    static {
+        Thread writer = new Thread(Log::write, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // Whatever is still queued when the server stops is written out
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    static void error(String message) {
+        log(Level.ERROR, message, null);
+    }
+
+    static void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    static long dropped() {
+        return dropped.sum();
+    }
+
+    private static void log(Level level, String message, Throwable error) {
+        if (isEnabled(level) && !lines.offer(new Line(System.currentTimeMillis(), level, message, error))) {
+            dropped.increment();
+        }
+    }
+
+    private static void write() {
+        List<Line> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(lines.take());
+                lines.drainTo(batch);
+                writeAll(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    private static void flush() {
+        List<Line> rest = new ArrayList<>();
+        try {
+            // Give the writer a moment to finish the batch it holds, then write what is left
+            Thread.sleep(50);
+            Line line;
+            while ((line = lines.poll(10, TimeUnit.MILLISECONDS)) != null) {
+                rest.add(line);
+            }
+        } catch (InterruptedException e) {
+            // write what we have
+        }
+        writeAll(rest);
+    }
+
+    private static void writeAll(List<Line> batch) {
+        writeLock.lock();
+        try {
+            try {
+                for (Line line : batch) {
+                    // The formatter only runs once a second, the milliseconds are appended
+                    long second = line.time() / 1000;
+                    if (second != lastSecond) {
+                        lastSecond = second;
+                        secondText = TIME.format(Instant.ofEpochSecond(second));
+                    }
+                    int millis = (int) (line.time() % 1000);
+                    out.write(secondText);
+                    out.write(millis < 10 ? ".00" : millis < 100 ? ".0" : ".");
+                    out.write(Integer.toString(millis));
+                    out.write(' ');
+                    out.write(line.level().name());
+                    out.write(line.level().name().length() == 4 ? "  " : " ");
+                    out.write(line.message());
+                    out.write(System.lineSeparator());
+                    if (line.error() != null) {
+                        StringWriter trace = new StringWriter();
+                        line.error().printStackTrace(new PrintWriter(trace));
+                        out.write(trace.toString());
+                    }
+                }
+                out.flush();
+            } catch (IOException e) {
+                // nowhere left to report it
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import Shared.LatencyHistogram;
+import Shared.Message;
+
+/**
+ * What the server has been doing: a latency histogram per command, bytes in and out with the
+ * current transfer rates, and connections, next to the counters the caches and queues keep.
+ * Everything is a LongAdder, an atomic or a LatencyHistogram, so counting costs the request
+ * threads no lock.
+ *
+ * The report is sent to clients that ask with STATS (only the users in -Dserver.admins=a,b if
+ * that is set) and written every -Dserver.metrics.interval=N seconds (default 60) to
+ * -Dserver.metrics.file (default src/main/resources/Server.metrics).
+ */
+class Metrics {
+    static final long INTERVAL_SECONDS = Long.getLong("server.metrics.interval", 60);
+    static final String ADMINS = System.getProperty("server.admins", "");
+    private static final int RATE_SECONDS = 10;
+
+    // The commands a histogram is kept for, by message type
+    private static final byte[] COMMANDS = {
+            Message.LOGIN, Message.CHAT, Message.HISTORY, Message.JOIN, Message.LEAVE, Message.UPLOAD_REQUEST,
+            Message.UPLOAD_START, Message.UPLOAD_FAILED, Message.LIST, Message.DOWNLOAD, Message.STATS
+    };
+    private static final LatencyHistogram[] latencies = new LatencyHistogram[128];
+
+    static {
+        for (byte command : COMMANDS) {
+            latencies[command] = new LatencyHistogram();
+        }
+    }
+
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder connections = new LongAdder();
+    private static final AtomicInteger activeConnections = new AtomicInteger();
+    private static final long startNanos = System.nanoTime();
+    private static volatile IntSupplier rooms = Server.rooms::roomCount; // the nio mode has its own rooms
+
+    // Byte counts of the last RATE_SECONDS + 1 seconds, the oldest first, for the rates
+    private record Sample(long nanos, long bytesIn, long bytesOut) {
+    }
+
+    private static final Sample[] samples = new Sample[RATE_SECONDS + 1];
+    private static int nextSample;
+
+    private Metrics() {
+    }
+
+    static void record(byte type, long nanos) {
+        LatencyHistogram histogram = type > 0 && type < latencies.length ? latencies[type] : null;
+        if (histogram != null) {
+            histogram.record(nanos);
+        }
+    }
+
+    static void connectionOpened() {
+        connections.increment();
+        activeConnections.incrementAndGet();
+    }
+
+    static void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    static void countRooms(IntSupplier roomCount) {
+        rooms = roomCount;
+    }
+
+    static boolean mayRead(String username) {
+        return ADMINS.isBlank() || Arrays.asList(ADMINS.split(",")).contains(username);
+    }
+
+    /**
+     * Samples the byte counters every second and writes the snapshot file every interval.
+     */
+    static void start() {
+        Path file = Paths.get(System.getProperty("server.metrics.file",
+                System.getProperty("user.dir") + "/src/main/resources/Server.metrics"));
+        Thread thread = new Thread(() -> {
+            long seconds = 0;
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                sample();
+                if (INTERVAL_SECONDS > 0 && ++seconds % INTERVAL_SECONDS == 0) {
+                    writeSnapshot(file);
+                }
+            }
+        }, "metrics");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static synchronized void sample() {
+        samples[nextSample] = new Sample(System.nanoTime(), bytesIn.sum(), bytesOut.sum());
+        nextSample = (nextSample + 1) % samples.length;
+    }
+
+    private static synchronized Sample oldestSample() {
+        Sample oldest = samples[nextSample];
+        return oldest != null ? oldest : new Sample(startNanos, 0, 0);
+    }
+
+    /**
+     * The report, one line per subject.
+     */
+    static List<String> report() {
+        List<String> lines = new ArrayList<>();
+        long now = System.nanoTime();
+        long in = bytesIn.sum();
+        long out = bytesOut.sum();
+        Sample oldest = oldestSample();
+        double seconds = Math.max(1e-3, (now - oldest.nanos()) / 1e9);
+
+        lines.add(String.format("uptime %d s, %d connections open, %d since start",
+                (now - startNanos) / 1_000_000_000L, activeConnections.get(), connections.sum()));
+        lines.add(String.format("bytes in %s (%s/s), out %s (%s/s), rates over the last %.0f s",
+                bytes(in), bytes((long) ((in - oldest.bytesIn()) / seconds)),
+                bytes(out), bytes((long) ((out - oldest.bytesOut()) / seconds)), seconds));
+        for (byte command : COMMANDS) {
+            LatencyHistogram histogram = latencies[command];
+            if (histogram.count() > 0) {
+                lines.add(String.format("%-14s %s", Message.name(command), histogram.summary()));
+            }
+        }
+
+        lines.add(String.format("chat queues: %d messages dropped, %d slow clients disconnected, deepest %d",
+                OutboundQueue.totalDropped(), OutboundQueue.totalSlowConsumerDisconnects(), OutboundQueue.maxDepth()));
+        HotFileCache cache = HotFileCache.shared();
+        lines.add(String.format("hot file cache: %d hits, %d misses, %d evictions, %s mapped",
+                cache.hits(), cache.misses(), cache.evictions(), bytes(cache.cachedBytes())));
+        if (Server.users() instanceof CachingUserStore logins) {
+            lines.add(String.format("login cache: %d hits, %d misses", logins.hits(), logins.misses()));
+        }
+        try {
+            lines.add(String.format("%d files, %d rooms", FileStore.catalog().size(), rooms.getAsInt()));
+        } catch (IOException e) {
+            lines.add("files: " + e.getMessage());
+        }
+        lines.add(String.format("log: %d lines dropped", Log.dropped()));
+        return lines;
+    }
+
+    private static void writeSnapshot(Path file) {
+        try {
+            List<String> lines = new ArrayList<>();
+            lines.add("# " + Instant.now());
+            lines.addAll(report());
+            Path parent = file.toAbsolutePath().getParent();
+            Path partial = Files.createTempFile(parent, "metrics", ".tmp");
+            try {
+                Files.write(partial, lines, StandardCharsets.UTF_8);
+                Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(partial);
+            }
+        } catch (IOException e) {
+            Log.warn("Cannot write the metrics to " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static String bytes(long count) {
+        if (count < 1024) {
+            return count + " B";
+        }
+        if (count < 1024 * 1024) {
+            return String.format("%.1f KB", count / 1024.0);
+        }
+        if (count < 1024L * 1024 * 1024) {
+            return String.format("%.1f MB", count / (1024.0 * 1024));
+        }
+        return String.format("%.2f GB", count / (1024.0 * 1024 * 1024));
+    }
+}
@@ -0,0 +1,675 @@
+package Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import Shared.EncodedMessage;
+import Shared.Message;
+
+/**
+ * State of one client in nio mode. All methods are only called from the connection's event
+ * loop thread.
+ *
+ * Buffers are allocated lazily and kept small, so an idle connection costs a few hundred bytes.
+ */
+class NioConnection implements Session {
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final NioServer server;
+    private final NioServer.EventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+
+    private String username;
+
+    // The room chat goes to, null until the client has logged in
+    private Room<NioConnection> room;
+
+    // Bytes of a line that did not arrive completely yet
+    private byte[] partialLine;
+    private int partialLength;
+
+    // Pending writes, either ByteBuffers or FileRegions, in the order they must be sent. A
+    // response is queued whole before anything is written, so chat cannot get in between its
+    // parts (a FILE_INFO line and the file's bytes)
+    private ArrayDeque<Object> outbound;
+
+    // Chat from other clients, bounded like OutboundQueue and sent whenever outbound is empty.
+    // The messages are shared with every other recipient; kept once created so busy rooms do
+    // not allocate a new deque for every burst
+    private ArrayDeque<EncodedMessage> chat;
+
+    // Set while the password of a LOGIN is checked on a login worker. Reading stops until the
+    // result is back, so what the client sent after the LOGIN is handled after it, and what
+    // had already arrived waits in heldInput. The same happens while a response has not been
+    // written completely, so a client that sends commands without reading the answers gets
+    // one response queued at a time (see updateInterest)
+    private boolean loggingIn;
+    private ByteBuffer heldInput;
+
+    // Fields to store pending upload info
+    private String pendingUploadFilename;
+    private long pendingUploadLength;
+    private Path uploadFile;
+    private FileChannel uploadChannel;
+    private long uploadRemaining;
+
+    NioConnection(NioServer server, NioServer.EventLoop loop, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+    }
+
+    void onReadable() throws IOException {
+        ByteBuffer buffer = loop.readBuffer;
+        buffer.clear();
+
+        int bytesRead = channel.read(buffer);
+        if (bytesRead == -1) {
+            close(); // client closed connection
+            return;
+        }
+        Metrics.bytesIn.add(bytesRead);
+        buffer.flip();
+        consume(buffer);
+    }
+
+    private void consume(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && channel.isOpen()) {
+            if (uploadChannel != null) {
+                consumeUpload(buffer);
+            } else if (loggingIn || outbound != null) {
+                // Copied, the loop's read buffer is used by its other connections meanwhile
+                heldInput = buffer == loop.readBuffer
+                        ? ByteBuffer.allocate(buffer.remaining()).put(buffer).flip() : buffer;
+                updateInterest();
+                return;
+            } else {
+                consumeLine(buffer);
+            }
+        }
+    }
+
+    void onWritable() throws IOException {
+        flush();
+        resumeHeldInput();
+    }
+
+    // Handles what arrived while a login was checked or a response was written, once neither is pending
+    private void resumeHeldInput() throws IOException {
+        ByteBuffer held = heldInput;
+        if (held != null && !loggingIn && outbound == null && channel.isOpen()) {
+            heldInput = null;
+            consume(held);
+            updateInterest();
+        }
+    }
+
+    // Reads up to the next newline; dispatches the command once a whole line is there
+    private void consumeLine(ByteBuffer buffer) {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        for (int i = start; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                appendPartial(buffer, start, i);
+                buffer.position(i + 1);
+                if (channel.isOpen()) {
+                    handleLine(takeLine());
+                }
+                return;
+            }
+        }
+        appendPartial(buffer, start, limit);
+        buffer.position(limit);
+    }
+
+    private void appendPartial(ByteBuffer buffer, int from, int to) {
+        int length = to - from;
+        if (length == 0) {
+            return;
+        }
+        if (partialLength + length > MAX_LINE_LENGTH) {
+            send("ERROR|Line too long.");
+            flushResponse();
+            close();
+            return;
+        }
+        if (partialLine == null) {
+            partialLine = new byte[Math.max(256, length)];
+        } else if (partialLength + length > partialLine.length) {
+            byte[] grown = new byte[Math.max(partialLine.length * 2, partialLength + length)];
+            System.arraycopy(partialLine, 0, grown, 0, partialLength);
+            partialLine = grown;
+        }
+        buffer.get(from, partialLine, partialLength, length);
+        partialLength += length;
+    }
+
+    private String takeLine() {
+        int length = partialLength;
+        if (length > 0 && partialLine[length - 1] == '\r') {
+            length--;
+        }
+        String line = length == 0 ? "" : new String(partialLine, 0, length, StandardCharsets.UTF_8);
+
+        // Give large buffers back so idle connections stay small
+        partialLength = 0;
+        if (partialLine != null && partialLine.length > 1024) {
+            partialLine = null;
+        }
+        return line;
+    }
+
+    private void handleLine(String input) {
+        if (input.isEmpty()) {
+            return;
+        }
+
+        // Same protocol as ClientHandler: "CHAT|hello there", "UPLOAD_REQUEST|file.txt|1234", etc.
+        String[] parts = input.split("\\|");
+        String command = parts[0];
+        long start = System.nanoTime();
+
+        try {
+            switch (command) {
+                case "LOGIN":
+                    handleLogin(parts[1], parts[2]);
+                    break;
+
+                case "CHAT":
+                    if (room == null) {
+                        send("ERROR|Please log in first.");
+                        break;
+                    }
+                    // Everything after the command, the text may itself contain '|'. A lone '\r'
+                    // ends the line for some text clients, so it does not get through either
+                    String text = Message.singleLine(input.substring(input.indexOf('|') + 1));
+                    broadcast(room, username + ": " + text);
+                    break;
+
+                case "JOIN":
+                    if (room == null) {
+                        send("ERROR|Please log in first.");
+                    } else if (parts.length < 2 || !RoomRegistry.isValidName(parts[1])) {
+                        send("ERROR|Invalid room name.");
+                    } else {
+                        joinRoom(parts[1]);
+                        send("JOINED|" + room.getName() + "|" + room.size());
+                    }
+                    break;
+
+                case "LEAVE":
+                    if (room != null) {
+                        joinRoom(RoomRegistry.LOBBY);
+                        send("JOINED|" + room.getName() + "|" + room.size());
+                    }
+                    break;
+
+                case "UPLOAD_REQUEST":
+                    // A file of the same name is replaced once the upload is complete, as in the blocking modes
+                    long length = parts.length > 2 ? parseLength(parts[2]) : -1;
+                    if (length < 0) {
+                        pendingUploadFilename = null;
+                        send("ERROR|Invalid file length.");
+                        break;
+                    }
+                    pendingUploadFilename = parts[1];
+                    pendingUploadLength = length;
+                    FileStore.resolve(pendingUploadFilename); // validates the name
+                    send("UPLOAD_READY");
+                    break;
+
+                case "UPLOAD_START":
+                    startUpload();
+                    break;
+
+                case "UPLOAD_FAILED":
+                    Log.debug("Client canceled upload: " + parts[1]);
+                    pendingUploadFilename = null;
+                    pendingUploadLength = 0;
+                    break;
+
+                case "LIST":
+                    sendFileList(parts);
+                    break;
+
+                case "DOWNLOAD":
+                    sendFile(parts[1]);
+                    break;
+
+                case "STATS":
+                    if (username == null || !Metrics.mayRead(username)) {
+                        send("ERROR|Not allowed to read the server statistics.");
+                    } else {
+                        send("STATS|" + String.join("|", Metrics.report()));
+                    }
+                    break;
+
+                case "EXIT":
+                    Log.info(username + " disconnected.");
+                    close();
+                    break;
+
+                default:
+                    send("ERROR|Unknown command: " + input);
+                    Log.warn("Unknown command: " + input);
+            }
+        } catch (Exception e) {
+            send("ERROR|Internal server error. Please try again.");
+            Log.error("Exception in nio connection for " + username + ": " + e.getMessage());
+        }
+        flushResponse();
+        Metrics.record(Message.typeOf(command), System.nanoTime() - start);
+    }
+
+    // -1 unless the field is a length the upload can have
+    private static long parseLength(String field) {
+        try {
+            return Long.parseLong(field);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // The password hash (PBKDF2) takes far longer than anything else on an event loop and would hold
+    // up every connection of the loop, so it is checked on a login worker and the result handled
+    // back on this connection's loop
+    private void handleLogin(String username, String password) {
+        loggingIn = true;
+        updateInterest();
+        server.logins.execute(() -> {
+            boolean success;
+            try {
+                success = Server.authenticate(username, password);
+            } catch (RuntimeException e) {
+                Log.error("Could not check the password of " + username + ": " + e.getMessage());
+                success = false;
+            }
+            boolean result = success;
+            loop.execute(() -> loginChecked(username, result));
+        });
+    }
+
+    private void loginChecked(String username, boolean success) {
+        loggingIn = false;
+        if (!channel.isOpen()) {
+            return;
+        }
+        if (success) {
+            String previous = this.username;
+            this.username = username;
+            server.connections.bindUsername(this, previous, username);
+            if (room == null) {
+                room = server.rooms.join(this, RoomRegistry.LOBBY);
+            }
+            send("LOGIN-SUCCESS");
+            Log.info("User logged in: " + username);
+        } else {
+            send("LOGIN-FAILED");
+            Log.warn("Failed login attempt for username: " + username);
+        }
+        flushResponse();
+
+        try {
+            resumeHeldInput();
+        } catch (IOException e) {
+            close(); // as the event loop does when reading fails
+            return;
+        }
+        updateInterest();
+    }
+
+    // Answered from the file catalog like in the blocking modes, the full list is shared by every connection
+    private void sendFileList(String[] parts) {
+        try {
+            FileCatalog catalog = FileStore.catalog();
+            EncodedMessage list;
+            if (parts.length == 1) {
+                list = catalog.list();
+            } else {
+                String after = parts.length > 2 ? parts[2] : "";
+                int limit = parts.length > 3 && !parts[3].isEmpty()
+                        ? Integer.parseInt(parts[3]) : FileCatalog.DEFAULT_PAGE_SIZE;
+                list = catalog.page(parts[1], after, limit);
+            }
+            enqueue(list.encoded(false).duplicate());
+        } catch (IOException | NumberFormatException e) {
+            send("ERROR|Unable to retrieve file list.");
+        }
+    }
+
+    private void sendFile(String fileName) {
+        try {
+            File file = FileStore.resolve(fileName);
+            if (!file.isFile()) {
+                send("ERROR|File not found.");
+                return;
+            }
+
+            // A hot file is written from its shared mapping instead of being opened again
+            HotFileCache.Region cached = HotFileCache.shared().get(file);
+            if (cached != null) {
+                send("FILE_INFO|" + file.getName() + "|" + cached.size());
+                enqueue(cached.slice(0, cached.size()));
+                Log.debug("Sending cached file '" + fileName + "' to user '" + username + "'.");
+                return;
+            }
+
+            FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            long fileSize = fileChannel.size();
+            send("FILE_INFO|" + file.getName() + "|" + fileSize);
+
+            // The bytes go straight from the page cache to the socket when it is writable
+            enqueue(new FileRegion(fileChannel, fileSize));
+            Log.debug("Sending file '" + fileName + "' to user '" + username + "'.");
+        } catch (IOException e) {
+            send("ERROR|Failed to send file.");
+            Log.error("Could not send file to user '" + username + "': " + e.getMessage());
+        }
+    }
+
+    private void startUpload() throws IOException {
+        if (pendingUploadFilename == null) {
+            send("ERROR|No upload requested.");
+            return;
+        }
+
+        // Received into a temporary file that is renamed into place once complete
+        uploadFile = FileStore.createUploadFile();
+        uploadChannel = FileChannel.open(uploadFile, StandardOpenOption.WRITE);
+        uploadRemaining = pendingUploadLength;
+        if (uploadRemaining == 0) {
+            finishUpload();
+        }
+    }
+
+    private void consumeUpload(ByteBuffer buffer) throws IOException {
+        int chunk = (int) Math.min(buffer.remaining(), uploadRemaining);
+        int oldLimit = buffer.limit();
+        buffer.limit(buffer.position() + chunk);
+        while (buffer.hasRemaining()) {
+            uploadChannel.write(buffer);
+        }
+        buffer.limit(oldLimit);
+
+        uploadRemaining -= chunk;
+        if (uploadRemaining == 0) {
+            finishUpload();
+        }
+    }
+
+    private void finishUpload() throws IOException {
+        uploadChannel.close();
+        uploadChannel = null;
+        Path completed = uploadFile;
+        uploadFile = null;
+
+        try {
+            FileStore.commitUpload(completed, pendingUploadFilename);
+            send("UPLOAD_SUCCESS|" + pendingUploadFilename);
+            Log.info("File " + pendingUploadFilename + " received successfully from " + username);
+        } catch (IOException e) {
+            send("ERROR| failed to receive file.");
+            Log.error("Could not save file '" + pendingUploadFilename + "': " + e.getMessage());
+        }
+        pendingUploadFilename = null;
+        pendingUploadLength = 0;
+        flush();
+    }
+
+    private void send(String msg) {
+        enqueue(ByteBuffer.wrap((msg + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Only queues, the response is written by flushResponse once all of it is queued
+    private void enqueue(Object item) {
+        if (!channel.isOpen()) {
+            return;
+        }
+        if (outbound == null) {
+            outbound = new ArrayDeque<>();
+        }
+        outbound.add(item);
+    }
+
+    private void flushResponse() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    // Applies the same slow consumer policy as OutboundQueue, keeping memory per client bounded
+    void enqueueChat(EncodedMessage message) {
+        if (!channel.isOpen()) {
+            return;
+        }
+        if (chat == null) {
+            chat = new ArrayDeque<>();
+        }
+
+        if (chat.size() >= OutboundQueue.capacity()) {
+            switch (OutboundQueue.policy()) {
+                case DROP_OLDEST -> {
+                    chat.poll();
+                    OutboundQueue.recordDropped(1);
+                }
+                case COALESCE -> {
+                    int skipped = chat.size();
+                    chat.clear();
+                    OutboundQueue.recordDropped(skipped);
+                    chat.add(new EncodedMessage(Message.CHAT,
+                            "[server] " + skipped + " messages skipped because you fell behind"));
+                }
+                case DISCONNECT -> {
+                    OutboundQueue.recordDisconnect();
+                    Log.warn("Disconnecting slow client " + username);
+                    close();
+                    return;
+                }
+            }
+        }
+        chat.add(message);
+        OutboundQueue.recordDepth(chat.size());
+
+        try {
+            flush();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    // Writes as much as the socket accepts and asks for OP_WRITE when something is left
+    private void flush() throws IOException {
+        while (true) {
+            if (outbound == null || outbound.isEmpty()) {
+                // Chat only goes out between responses, which are queued whole before this runs
+                if (chat == null || chat.isEmpty()) {
+                    break;
+                }
+                if (!writeChat(chat.poll())) {
+                    break;
+                }
+                continue;
+            }
+
+            Object head = outbound.peek();
+            if (head instanceof ByteBuffer buffer) {
+                Metrics.bytesOut.add(channel.write(buffer));
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+            } else {
+                FileRegion region = (FileRegion) head;
+                if (!region.transferTo(channel)) {
+                    break;
+                }
+            }
+            outbound.poll();
+        }
+
+        if (outbound != null && outbound.isEmpty()) {
+            outbound = null;
+        }
+        updateInterest();
+    }
+
+    // Reads unless a login is being checked or a response is still being written, so a client
+    // that does not read what it asked for stops being read too. An upload is read regardless,
+    // the client may not read before it has sent the file. Writes while something is waiting
+    // to be sent, or once more to pick up input held back by a response that was sent by now
+    private void updateInterest() {
+        if (!key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (uploadChannel != null || (!loggingIn && outbound == null && heldInput == null)) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (outbound != null || (heldInput != null && !loggingIn)) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    /**
+     * Writes a shared chat message by copying it into the loop's write buffer, so nothing is
+     * allocated for the recipient. Only a partial write keeps a view of the rest in outbound.
+     * Returns false if the socket did not take all of it.
+     */
+    private boolean writeChat(EncodedMessage message) throws IOException {
+        ByteBuffer encoded = message.encoded(false);
+        int length = encoded.limit();
+
+        int written = 0;
+        ByteBuffer buffer = loop.writeBuffer;
+        if (length <= buffer.capacity()) {
+            buffer.clear();
+            buffer.put(0, encoded, 0, length);
+            buffer.limit(length);
+            written = channel.write(buffer);
+            Metrics.bytesOut.add(written);
+        }
+        if (written == length) {
+            return true;
+        }
+
+        if (outbound == null) {
+            outbound = new ArrayDeque<>();
+        }
+        outbound.add(encoded.duplicate().position(written));
+        return false;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public int lane() {
+        return loop.index;
+    }
+
+    private void broadcast(Room<NioConnection> target, String msg) {
+        server.broadcast(target, new EncodedMessage(Message.CHAT, msg), this);
+    }
+
+    // Moves this client into another room and lets both rooms know
+    private void joinRoom(String name) {
+        Room<NioConnection> previous = room;
+        if (previous.getName().equals(name)) {
+            return;
+        }
+
+        room = server.rooms.join(this, name);
+        server.rooms.leave(this, previous);
+        broadcast(previous, "[server] " + username + " left " + previous.getName());
+        broadcast(room, "[server] " + username + " joined " + room.getName());
+    }
+
+    void close() {
+        if (!server.connections.remove(this)) {
+            return;
+        }
+        Metrics.connectionClosed();
+        if (room != null) {
+            server.rooms.leave(this, room);
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+
+        if (uploadChannel != null) {
+            // Incomplete upload, do not leave a truncated file behind
+            try {
+                uploadChannel.close();
+            } catch (IOException ignored) {
+            }
+            try {
+                Files.deleteIfExists(uploadFile);
+            } catch (IOException ignored) {
+            }
+            Log.warn("Client " + username + " disconnected during file upload: " + pendingUploadFilename);
+        }
+        if (outbound != null) {
+            for (Object item : outbound) {
+                if (item instanceof FileRegion region) {
+                    region.close();
+                }
+            }
+            outbound = null;
+        }
+        chat = null;
+        heldInput = null;
+        Log.info("Connection with " + username + " closed");
+    }
+
+    // A file (or the rest of it) waiting to be sent with FileChannel.transferTo
+    private static class FileRegion {
+        private final FileChannel file;
+        private long position;
+        private final long end;
+
+        FileRegion(FileChannel file, long length) {
+            this.file = file;
+            this.end = length;
+        }
+
+        // Returns true once the whole region has been written
+        boolean transferTo(SocketChannel target) throws IOException {
+            while (position < end) {
+                long written = file.transferTo(position, end - position, target);
+                if (written <= 0) {
+                    return false; // socket buffer is full, wait for OP_WRITE
+                }
+                Metrics.bytesOut.add(written);
+                position += written;
+            }
+            close();
+            return true;
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
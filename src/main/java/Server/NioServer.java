@@ -0,0 +1,209 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import Shared.EncodedMessage;
+
+/**
+ * Non-blocking server mode.
+ *
+ * Instead of one blocked thread per client, a fixed pool of event loops (one per core)
+ * multiplexes all connections with a Selector. Each connection only keeps a small amount
+ * of state, so tens of thousands of mostly idle chat clients fit in a bounded amount of memory.
+ * The protocol is the same LOGIN/CHAT/UPLOAD/DOWNLOAD/LIST text protocol as ClientHandler.
+ */
+public class NioServer {
+    // Shared by every connection of a loop, so it does not grow with the number of clients
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final int port;
+    private final EventLoop[] loops;
+
+    // All open connections, changed from every event loop
+    final SessionRegistry<NioConnection> connections = new SessionRegistry<>();
+
+    // Chat rooms, with one lane of members per event loop
+    final RoomRegistry<NioConnection> rooms;
+
+    // Checks the passwords of LOGINs, which takes too long for an event loop (see NioConnection)
+    final ExecutorService logins;
+
+    public NioServer(int port, int loopCount) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        this.rooms = new RoomRegistry<>(loops.length);
+        Metrics.countRooms(rooms::roomCount);
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        AtomicInteger loginThreads = new AtomicInteger();
+        this.logins = Executors.newFixedThreadPool(loops.length, task -> {
+            Thread thread = new Thread(task, "nio-login-" + loginThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sends an already encoded chat message to everybody in the room except the sender. Only
+     * loops that have members in the room are involved, and each of them gets one task for all
+     * of its members instead of one task per recipient.
+     */
+    void broadcast(Room<NioConnection> room, EncodedMessage message, NioConnection sender) {
+        for (EventLoop loop : loops) {
+            Set<NioConnection> members = room.members(loop.index);
+            if (members.isEmpty()) {
+                continue;
+            }
+            if (loop.inLoop()) {
+                loop.deliver(members, message, sender);
+            } else {
+                loop.execute(() -> loop.deliver(members, message, sender));
+            }
+        }
+    }
+
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            loops[i].thread = thread;
+            thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            Log.info("Server started on port " + port + " (nio, " + loops.length + " event loops)");
+
+            // The calling thread only accepts; connections are spread round-robin over the loops
+            int next = 0;
+            while (true) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                    loops[next].register(channel);
+                    next = (next + 1) % loops.length;
+                } catch (IOException e) {
+                    Log.error("Error accepting client connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * A single selector thread. Everything that touches the connections registered on it
+     * (reads, writes, queued messages) runs on this thread, so connections need no locking.
+     */
+    final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private Thread thread;
+        final int index;
+
+        // Only touched from the loop thread
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        EventLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        // Runs a task on the loop thread, waking the selector up if needed
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    NioConnection connection = new NioConnection(NioServer.this, this, channel, key);
+                    key.attach(connection);
+                    connections.add(connection);
+                    Metrics.connectionOpened();
+                } catch (IOException e) {
+                    Log.error("Error registering client connection: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+
+        // Queues a chat message on this loop's members of a room, must run on the loop thread
+        void deliver(Set<NioConnection> members, EncodedMessage message, NioConnection sender) {
+            for (NioConnection connection : members) {
+                if (connection != sender) {
+                    connection.enqueueChat(message);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            // A bug in handling this connection, it must not be retried on every event
+                            Log.error("Closing the connection of " + connection.getUsername() + ": " + e.getMessage(), e);
+                            connection.close();
+                        }
+                    }
+                } catch (Exception e) {
+                    Log.error("Error in event loop: " + e.getMessage(), e);
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    Log.error("Error in event loop task: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
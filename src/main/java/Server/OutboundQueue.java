@@ -0,0 +1,258 @@
+package Server;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import Shared.EncodedMessage;
+import Shared.Message;
+
+/**
+ * Bounded queue of chat messages waiting to be written to one client. The messages are
+ * already encoded and shared with every other recipient's queue.
+ *
+ * The sender of a chat message only enqueues; the connection's own writer task drains the queue,
+ * so a client that stops reading only blocks its own writer instead of everybody who chats.
+ * The writer task is submitted to the server's executor when the queue becomes non-empty and
+ * ends once it is drained, so idle connections do not hold a thread for writing.
+ *
+ * What happens when the queue is full is decided by the slow consumer policy, set with
+ * -Dserver.slowConsumerPolicy=drop-oldest|coalesce|disconnect (default drop-oldest) and
+ * -Dserver.outboundQueueSize=N (default 256). Both are read by configure() when the server
+ * starts, so a mistyped value stops the server right away.
+ */
+class OutboundQueue {
+
+    enum Policy {
+        DROP_OLDEST,  // forget the oldest queued message to make room
+        COALESCE,     // replace the whole backlog with a single "messages skipped" notice
+        DISCONNECT;   // close the connection
+
+        static Policy parse(String value) {
+            for (Policy policy : values()) {
+                if (policy.name().replace('_', '-').equalsIgnoreCase(value.trim())) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown slow consumer policy '" + value
+                    + "' in -Dserver.slowConsumerPolicy, expected drop-oldest, coalesce or disconnect");
+        }
+    }
+
+    // Set once at startup by configure(), before any connection is accepted
+    private static volatile Policy configuredPolicy = Policy.DROP_OLDEST;
+    private static volatile int configuredCapacity = 256;
+
+    // Totals over all connections
+    private static final LongAdder droppedMessages = new LongAdder();
+    private static final LongAdder slowConsumerDisconnects = new LongAdder();
+    private static final AtomicInteger maxDepth = new AtomicInteger();
+
+    /**
+     * Where the writer task sends messages to.
+     */
+    interface Sink {
+        void write(EncodedMessage message) throws IOException;
+
+        void disconnect();
+    }
+
+    private final Sink sink;
+    private final Executor executor;
+    private final Policy policy;
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<EncodedMessage> messages = new ArrayDeque<>();
+
+    private boolean draining;
+    private boolean closed;
+    private long skipped;   // messages coalesced away that the client was not told about yet
+    private long dropped;
+
+    OutboundQueue(Sink sink, Executor executor) {
+        this(sink, executor, configuredPolicy, configuredCapacity);
+    }
+
+    OutboundQueue(Sink sink, Executor executor, Policy policy, int capacity) {
+        this.sink = sink;
+        this.executor = executor;
+        this.policy = policy;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Reads the slow consumer policy and the queue size from the system properties. Throws
+     * IllegalArgumentException naming the property if either is not a valid value.
+     */
+    static void configure() {
+        Policy policy = Policy.parse(System.getProperty("server.slowConsumerPolicy", "drop-oldest"));
+        String size = System.getProperty("server.outboundQueueSize", "256");
+        int capacity;
+        try {
+            capacity = Integer.parseInt(size.trim());
+        } catch (NumberFormatException e) {
+            capacity = 0;
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid queue size '" + size
+                    + "' in -Dserver.outboundQueueSize, expected a positive number");
+        }
+        configuredPolicy = policy;
+        configuredCapacity = capacity;
+    }
+
+    static Policy policy() {
+        return configuredPolicy;
+    }
+
+    static int capacity() {
+        return configuredCapacity;
+    }
+
+    /**
+     * Queues a message for the client. Returns false if it was not accepted because the queue
+     * is closed or the slow consumer policy disconnected the client.
+     */
+    boolean offer(EncodedMessage message) {
+        boolean startWriter = false;
+        boolean disconnect = false;
+
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+
+            if (messages.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST -> {
+                        messages.poll();
+                        dropped++;
+                        droppedMessages.increment();
+                    }
+                    case COALESCE -> {
+                        skipped += messages.size();
+                        dropped += messages.size();
+                        droppedMessages.add(messages.size());
+                        messages.clear();
+                    }
+                    case DISCONNECT -> {
+                        closed = true;
+                        disconnect = true;
+                        messages.clear();
+                        slowConsumerDisconnects.increment();
+                    }
+                }
+            }
+
+            if (!disconnect) {
+                messages.add(message);
+                maxDepth.accumulateAndGet(messages.size(), Math::max);
+                if (!draining) {
+                    draining = true;
+                    startWriter = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (disconnect) {
+            sink.disconnect();
+            return false;
+        }
+        if (startWriter) {
+            executor.execute(this::drain);
+        }
+        return true;
+    }
+
+    // The connection's writer: runs until the queue is empty
+    private void drain() {
+        while (true) {
+            EncodedMessage message;
+            long skippedNow;
+
+            lock.lock();
+            try {
+                skippedNow = skipped;
+                skipped = 0;
+                message = skippedNow > 0 ? null : messages.poll();
+                if (message == null && skippedNow == 0) {
+                    draining = false;
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                if (skippedNow > 0) {
+                    sink.write(new EncodedMessage(Message.CHAT,
+                            "[server] " + skippedNow + " messages skipped because you fell behind"));
+                } else {
+                    sink.write(message);
+                }
+            } catch (IOException e) {
+                close();
+                sink.disconnect();
+                return;
+            }
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            messages.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static long totalDropped() {
+        return droppedMessages.sum();
+    }
+
+    static long totalSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.sum();
+    }
+
+    static int maxDepth() {
+        return maxDepth.get();
+    }
+
+    // Used by the nio mode, which keeps its own queues but follows the same policy
+    static void recordDropped(long count) {
+        droppedMessages.add(count);
+    }
+
+    static void recordDisconnect() {
+        slowConsumerDisconnects.increment();
+    }
+
+    static void recordDepth(int depth) {
+        maxDepth.accumulateAndGet(depth, Math::max);
+    }
+}
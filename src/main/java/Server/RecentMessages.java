@@ -0,0 +1,136 @@
+package Server;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import Shared.Message;
+
+/**
+ * The last messages of a room in memory, so the history a client is shown when it enters the
+ * chat (HISTORY without an offset) is answered without reading the room's ChatLog.
+ *
+ * A fixed ring of -Dserver.history.recent=N slots (64 by default) of SLOT_SIZE bytes, all
+ * allocated up front. A message goes into slot offset % N, already as its log record
+ * ("offset|time|text\n"), so adding one allocates nothing and a replay is a copy of bytes.
+ * Messages longer than a slot are not kept, a replay that would need one reads the log instead.
+ *
+ * No locks: every slot has a version, odd while a sender writes the slot and even once the
+ * record of a given offset is complete. A sender claims the slot with a CAS, readers copy a
+ * slot and then check that its version did not change while they did. A reader that finds a
+ * slot being written, overwritten or missing gives up and the log answers instead.
+ */
+class RecentMessages {
+    static final int CAPACITY = Integer.getInteger("server.history.recent", 64);
+    static final int SLOT_SIZE = 512;
+
+    private final int capacity;
+    private final byte[][] slots;
+    private final ByteBuffer[] writers; // a view of each slot, used only by the sender holding it
+    private final int[] lengths;        // record length in the slot, -1 if the message did not fit
+
+    // 2 * offset + 1 while the record of that offset is written, 2 * offset + 2 when it is complete
+    private final AtomicLongArray versions;
+
+    // The offset after the newest message added
+    private final AtomicLong end = new AtomicLong();
+
+    RecentMessages(int capacity) {
+        this.capacity = capacity;
+        this.slots = new byte[capacity][SLOT_SIZE];
+        this.writers = new ByteBuffer[capacity];
+        this.lengths = new int[capacity];
+        this.versions = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            writers[i] = ByteBuffer.wrap(slots[i]);
+        }
+    }
+
+    /**
+     * Adds the message the ChatLog stored under this offset. The text must not contain line
+     * breaks, like in the log.
+     */
+    void add(long offset, long time, String text) {
+        int slot = (int) (offset % capacity);
+        long writing = 2 * offset + 1;
+        while (true) {
+            long version = versions.get(slot);
+            if (version >= writing) {
+                return; // a newer message already has the slot
+            }
+            if ((version & 1) == 1) {
+                Thread.onSpinWait(); // an older message is being written there, it is about to be replaced
+                continue;
+            }
+            if (versions.compareAndSet(slot, version, writing)) {
+                break;
+            }
+        }
+
+        int length = decimalLength(offset) + decimalLength(time) + Message.utf8Length(text) + 3;
+        if (length <= SLOT_SIZE) {
+            ByteBuffer record = writers[slot].clear();
+            putDecimal(record, offset);
+            record.put((byte) '|');
+            putDecimal(record, time);
+            record.put((byte) '|');
+            Message.putUtf8(record, text);
+            record.put((byte) '\n');
+            lengths[slot] = length;
+        } else {
+            lengths[slot] = -1;
+        }
+        versions.set(slot, writing + 1);
+        end.accumulateAndGet(offset + 1, Math::max);
+    }
+
+    /**
+     * The newest {@code count} messages in log format, or null if not all of them are here.
+     */
+    ChatLog.Range last(int count) {
+        long next = end.get();
+        long first = Math.max(0, next - count);
+        if (next - first > capacity) {
+            return null;
+        }
+
+        ByteBuffer records = ByteBuffer.allocate((int) (next - first) * SLOT_SIZE);
+        for (long offset = first; offset < next; offset++) {
+            int slot = (int) (offset % capacity);
+            long version = versions.get(slot);
+            if (version != 2 * offset + 2) {
+                return null; // not added yet, being written or already replaced
+            }
+            int length = lengths[slot];
+            if (length < 0) {
+                return null;
+            }
+            records.put(slots[slot], 0, length);
+            VarHandle.acquireFence(); // the copy above must be done before the version is read again
+            if (versions.get(slot) != version) {
+                return null;
+            }
+        }
+        return new ChatLog.Range(first, next, List.of(records.flip()));
+    }
+
+    private static int decimalLength(long value) {
+        int length = 1;
+        while (value >= 10) {
+            value /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    // Writes a non-negative number without making a String of it
+    private static void putDecimal(ByteBuffer buffer, long value) {
+        int end = buffer.position() + decimalLength(value);
+        for (int i = end - 1; i >= buffer.position(); i--) {
+            buffer.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+}
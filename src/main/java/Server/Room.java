@@ -0,0 +1,58 @@
+package Server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A chat room and its members.
+ *
+ * The members are split into lanes by Session.lane(). In nio mode there is one lane per event
+ * loop, so a loop only ever walks its own connections when it delivers a room's message and
+ * never touches another core's sockets. The blocking modes use a single lane.
+ *
+ * Members are only added and removed through RoomRegistry; iterating a lane is safe at any time
+ * and never copies.
+ */
+public class Room<S extends Session> {
+    private final String name;
+    private final Set<S>[] lanes;
+    private volatile int size;
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // no generic array creation in Java
+    Room(String name, int laneCount) {
+        this.name = name;
+        this.lanes = new Set[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = ConcurrentHashMap.newKeySet();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int laneCount() {
+        return lanes.length;
+    }
+
+    public Set<S> members(int lane) {
+        return lanes[lane];
+    }
+
+    // Only called by RoomRegistry while it holds the room's entry, so size needs no atomics
+    void add(S session) {
+        if (lanes[session.lane()].add(session)) {
+            size++;
+        }
+    }
+
+    void remove(S session) {
+        if (lanes[session.lane()].remove(session)) {
+            size--;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package Server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * All chat rooms by name. Every logged-in client is in exactly one room, LOBBY unless it sent
+ * JOIN, and chat only goes to the members of the sender's room, so the cost of a message
+ * depends on the size of the room and not on the number of clients on the server.
+ *
+ * Joining and leaving go through ConcurrentHashMap.compute, which only locks the map bin of
+ * that one room. Clients joining different rooms therefore never wait for each other, and a
+ * room is created by its first member and dropped with its last one without a global lock.
+ */
+public class RoomRegistry<S extends Session> {
+    public static final String LOBBY = "lobby";
+    public static final int MAX_NAME_LENGTH = 64;
+
+    private final ConcurrentHashMap<String, Room<S>> rooms = new ConcurrentHashMap<>();
+    private final int laneCount;
+
+    public RoomRegistry(int laneCount) {
+        this.laneCount = laneCount;
+    }
+
+    public static boolean isValidName(String name) {
+        return name != null && !name.isBlank() && name.length() <= MAX_NAME_LENGTH
+                && name.indexOf('|') < 0 && name.indexOf('\n') < 0 && name.indexOf('\r') < 0;
+    }
+
+    /**
+     * Adds the session to the room, creating it if needed, and returns the room.
+     */
+    public Room<S> join(S session, String name) {
+        return rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = new Room<>(key, laneCount);
+            }
+            room.add(session);
+            return room;
+        });
+    }
+
+    /**
+     * Removes the session from the room, the room is dropped once it is empty.
+     */
+    public void leave(S session, Room<S> room) {
+        rooms.computeIfPresent(room.getName(), (key, current) -> {
+            current.remove(session);
+            return current.size() == 0 ? null : current;
+        });
+    }
+
+    public Room<S> find(String name) {
+        return rooms.get(name);
+    }
+
+    public int roomCount() {
+        return rooms.size();
+    }
+}
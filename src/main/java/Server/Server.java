@@ -1,54 +1,124 @@
 package Server;
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import Shared.User;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 public class Server {
-    // Predefined users for authentication
-    private static final User[] users = {
-            new User("user1", "1234"),
-            new User("user2", "1234"),
-            new User("user3", "1234"),
-            new User("user4", "1234"),
-            new User("user5", "1234"),
-    };
-
-    // List of currently connected clients
-    public static ArrayList<ClientHandler> clients = new ArrayList<>();
+    // Who may log in, loaded on first use (see HashedUserStore)
+    private static UserStore users;
+    private static SessionTokens tokens;
+
+    // Currently connected clients, changed by the accept thread and every handler thread
+    public static final SessionRegistry<ClientHandler> clients = new SessionRegistry<>();
+
+    // Chat rooms of the blocking modes, which need a single lane
+    public static final RoomRegistry<ClientHandler> rooms = new RoomRegistry<>(1);
 
     public static void main(String[] args) throws Exception {
         int port = 12345;
-        ServerSocket serverSocket = new ServerSocket(port);
-        System.out.println("Server started on port " + port);
+        String mode = "thread";
+        for (String arg : args) {
+            if (arg.startsWith("--mode=")) {
+                mode = arg.substring("--mode=".length());
+            } else {
+                port = Integer.parseInt(arg);
+            }
+        }
+
+        // Checked before anything starts, a mistyped -D value is reported instead of failing the first connection
+        OutboundQueue.configure();
+
+        // Scan the shared files and read the users now rather than on the first LIST and LOGIN
+        FileStore.catalog();
+        Log.info(users().size() + " users");
+        Metrics.start();
+
+        if (mode.equals("nio")) {
+            if (Cluster.isConfigured()) {
+                Log.warn("The nio mode does not join a cluster, -Dserver.cluster.peers is ignored.");
+            }
+            // Non-blocking mode: one event loop per core multiplexes every connection
+            new NioServer(port, Runtime.getRuntime().availableProcessors()).run();
+            return;
+        }
+
+        // "thread" runs every ClientHandler on a platform thread, "virtual" on a virtual thread
+        ExecutorService executor = newHandlerExecutor(mode);
+        Cluster.start(port);
+        ServerSocket serverSocket = openServerSocket(port);
+        Log.info("Server started on port " + port + " (" + mode + " mode)");
+
+        acceptClients(serverSocket, executor);
+    }
+
+    // Backed by a channel, so accepted sockets have a SocketChannel that files can be transferred to
+    static ServerSocket openServerSocket(int port) throws IOException {
+        ServerSocket serverSocket = ServerSocketChannel.open().socket();
+        serverSocket.bind(new InetSocketAddress(port), 4096);
+        return serverSocket;
+    }
 
-        while (true) {
+    // Accepts connections until the server socket is closed
+    static void acceptClients(ServerSocket serverSocket, ExecutorService executor) {
+        while (!serverSocket.isClosed()) {
             try {
                 // Wait for a client to connect
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("✅ New client connected: " + clientSocket.getInetAddress());
+                Log.debug("✅ New client connected: " + clientSocket.getInetAddress());
 
                 // Create a ClientHandler for the new connection
-                ClientHandler clientHandler = new ClientHandler(clientSocket, clients);
+                ClientHandler clientHandler = new ClientHandler(clientSocket, clients, executor);
 
                 // Add to the client list
                 clients.add(clientHandler);
 
-                // starting a new thread for handling the communication
-                new Thread(clientHandler).start();
+                // handle the communication on the executor's thread
+                executor.execute(clientHandler);
             } catch (IOException e) {
-                System.out.println("Error accepting client connection: " + e.getMessage());
-                e.printStackTrace();
+                if (serverSocket.isClosed()) {
+                    break;
+                }
+                Log.error("Error accepting client connection: " + e.getMessage(), e);
             }
         }
     }
 
+    static ExecutorService newHandlerExecutor(String mode) {
+        if (mode.equals("virtual")) {
+            // Looked up reflectively so the server still builds and runs on JDKs without virtual threads
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                Log.warn("Virtual threads need Java 21 or newer, using platform threads instead.");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
     public static boolean authenticate(String username, String password) {
-        for (User user : users) {
-            if (user.getUsername().equals(username) && user.getPassword().equals(password)) {
-                return true;
+        return users().authenticate(username, password);
+    }
+
+    static synchronized UserStore users() {
+        if (users == null) {
+            try {
+                users = new CachingUserStore(HashedUserStore.load(), CachingUserStore.CAPACITY);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read the users: " + e.getMessage(), e);
             }
         }
-        return false;
+        return users;
+    }
+
+    static synchronized SessionTokens tokens() {
+        if (tokens == null) {
+            tokens = SessionTokens.load();
+        }
+        return tokens;
     }
 }
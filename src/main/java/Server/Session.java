@@ -0,0 +1,19 @@
+package Server;
+
+/**
+ * A connected client as seen by the SessionRegistry and the rooms, implemented by ClientHandler and
+ * NioConnection.
+ */
+public interface Session {
+    /**
+     * The name the client logged in with, null before a successful LOGIN.
+     */
+    String getUsername();
+
+    /**
+     * Which lane of a Room the session belongs to, the index of its event loop in nio mode.
+     */
+    default int lane() {
+        return 0;
+    }
+}
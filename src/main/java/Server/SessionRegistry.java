@@ -0,0 +1,79 @@
+package Server;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The connected clients, safe to change from the accept thread and every handler thread while
+ * broadcasts iterate over it.
+ *
+ * Adding and removing are O(1) and only lock a single bin of a ConcurrentHashMap, so churn on
+ * one connection does not block the others. Iteration never throws
+ * ConcurrentModificationException and never copies: it sees every session that stays registered
+ * for the whole iteration, and sessions that join or leave meanwhile may or may not be seen.
+ * That is all a broadcast needs, and unlike a CopyOnWriteArrayList it costs nothing extra when
+ * thousands of clients connect and disconnect per second.
+ *
+ * Sessions are also indexed by username once they have logged in. If one user logs in from
+ * several connections, find returns the most recent one.
+ */
+public class SessionRegistry<S extends Session> implements Iterable<S> {
+    private final Set<S> sessions = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, S> byUsername = new ConcurrentHashMap<>();
+
+    public boolean add(S session) {
+        return sessions.add(session);
+    }
+
+    /**
+     * Removes the session and its username entry, returns false if it was not registered.
+     */
+    public boolean remove(S session) {
+        if (!sessions.remove(session)) {
+            return false;
+        }
+        String username = session.getUsername();
+        if (username != null) {
+            // Only if it still points at this session, a newer login of the same user stays
+            byUsername.remove(username, session);
+        }
+        return true;
+    }
+
+    /**
+     * Makes the session findable by its username, called after a successful LOGIN. previous is
+     * the name of an earlier LOGIN on the same connection, or null.
+     */
+    public void bindUsername(S session, String previous, String username) {
+        if (previous != null) {
+            byUsername.remove(previous, session);
+        }
+        byUsername.put(username, session);
+        if (!sessions.contains(session)) {
+            // Removed concurrently, do not leave a stale entry behind
+            byUsername.remove(username, session);
+        }
+    }
+
+    public S find(String username) {
+        return byUsername.get(username);
+    }
+
+    public boolean contains(S session) {
+        return sessions.contains(session);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public boolean isEmpty() {
+        return sessions.isEmpty();
+    }
+
+    @Override
+    public Iterator<S> iterator() {
+        return sessions.iterator();
+    }
+}
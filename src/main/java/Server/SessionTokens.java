@@ -0,0 +1,117 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Session tokens handed out with LOGIN_SUCCESS. A client that comes back with "TOKEN=<token>" in
+ * its LOGIN is let in without its password being hashed again, which is what keeps a storm of
+ * reconnects (after a restart, or the extra streams of a parallel download) cheap.
+ *
+ * A token is "<username>.<expiry>.<signature>", the name in Base64 and the signature an
+ * HMAC-SHA256 of the rest. Nothing is stored per token, so tokens keep working across restarts
+ * as long as the key does. The key is read from -Dserver.auth.keyFile=... (by default
+ * src/main/resources/Server.tokenKey) and created there on the first start. Tokens expire after
+ * -Dserver.auth.tokenMinutes=N (a day by default); there is no way to revoke one earlier other
+ * than replacing the key, which revokes all of them.
+ */
+class SessionTokens {
+    static final long LIFETIME_MILLIS = Long.getLong("server.auth.tokenMinutes", 24 * 60) * 60_000;
+
+    private static final int KEY_LENGTH = 32;
+
+    private final SecretKeySpec key;
+    private final long lifetimeMillis;
+
+    SessionTokens(byte[] key, long lifetimeMillis) {
+        this.key = new SecretKeySpec(key, "HmacSHA256");
+        this.lifetimeMillis = lifetimeMillis;
+    }
+
+    /**
+     * Tokens signed with the configured key file. If it cannot be read or created the key only
+     * lives as long as the server, tokens then do not survive a restart.
+     */
+    static SessionTokens load() {
+        String path = System.getProperty("server.auth.keyFile");
+        Path file = path != null ? Paths.get(path)
+                : Paths.get(System.getProperty("user.dir"), "src", "main", "resources", "Server.tokenKey");
+        try {
+            if (Files.exists(file)) {
+                byte[] key = Files.readAllBytes(file);
+                if (key.length < KEY_LENGTH) {
+                    throw new IOException("Token key in " + file + " is too short");
+                }
+                return new SessionTokens(key, LIFETIME_MILLIS);
+            }
+            byte[] key = randomKey();
+            Files.write(file, key);
+            try {
+                Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // not a POSIX file system
+            }
+            return new SessionTokens(key, LIFETIME_MILLIS);
+        } catch (IOException e) {
+            Log.error("Could not read the session token key: " + e.getMessage()
+                    + ", tokens will not survive a restart.");
+            return new SessionTokens(randomKey(), LIFETIME_MILLIS);
+        }
+    }
+
+    String issue(String username) {
+        String payload = Base64.getUrlEncoder().withoutPadding().encodeToString(username.getBytes(StandardCharsets.UTF_8))
+                + "." + (System.currentTimeMillis() + lifetimeMillis);
+        return payload + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(sign(payload));
+    }
+
+    /**
+     * The user the token was issued to, null if it is forged, damaged or expired.
+     */
+    String verify(String token) {
+        int signatureStart = token.lastIndexOf('.');
+        int expiryStart = token.lastIndexOf('.', signatureStart - 1);
+        if (expiryStart <= 0) {
+            return null;
+        }
+        try {
+            String payload = token.substring(0, signatureStart);
+            byte[] signature = Base64.getUrlDecoder().decode(token.substring(signatureStart + 1));
+            if (!MessageDigest.isEqual(signature, sign(payload))) {
+                return null;
+            }
+            if (Long.parseLong(token.substring(expiryStart + 1, signatureStart)) < System.currentTimeMillis()) {
+                return null;
+            }
+            return new String(Base64.getUrlDecoder().decode(token.substring(0, expiryStart)), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null; // not Base64 or not a number
+        }
+    }
+
+    private byte[] sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available", e);
+        }
+    }
+
+    private static byte[] randomKey() {
+        byte[] key = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+}
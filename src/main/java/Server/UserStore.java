@@ -0,0 +1,17 @@
+package Server;
+
+/**
+ * Where the server looks up who may log in, see HashedUserStore for the user file and
+ * CachingUserStore for the cache in front of it.
+ */
+public interface UserStore {
+    /**
+     * Whether the password is the user's. Implementations are called from many threads at once.
+     */
+    boolean authenticate(String username, String password);
+
+    /**
+     * The number of users.
+     */
+    int size();
+}
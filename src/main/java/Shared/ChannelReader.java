@@ -0,0 +1,174 @@
+package Shared;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reads text lines and raw file bytes from the same channel through one fixed-size, reusable
+ * direct buffer.
+ *
+ * A BufferedReader cannot be used for this: it reads ahead, so the first bytes of a file that
+ * follow a command line would end up decoded as characters inside the reader.
+ */
+public class ChannelReader {
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    // Protects against a peer that never sends a newline
+    private static final int MAX_LINE_LENGTH = 8 * 1024 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private byte[] lineBytes = new byte[256];
+    private LongAdder bytesRead; // counts every byte taken from the channel if set
+
+    public ChannelReader(ReadableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ChannelReader(ReadableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.buffer.flip(); // starts empty
+    }
+
+    public void countBytes(LongAdder counter) {
+        this.bytesRead = counter;
+    }
+
+    /**
+     * Returns the next line without its line terminator, or null when the channel is closed.
+     */
+    public String readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (!buffer.hasRemaining() && !fill()) {
+                return length == 0 ? null : decode(length);
+            }
+
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    return decode(length);
+                }
+                if (length == lineBytes.length) {
+                    if (length >= MAX_LINE_LENGTH) {
+                        throw new IOException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+                    }
+                    byte[] grown = new byte[length * 2];
+                    System.arraycopy(lineBytes, 0, grown, 0, length);
+                    lineBytes = grown;
+                }
+                lineBytes[length++] = b;
+            }
+        }
+    }
+
+    /**
+     * Returns the next byte (0-255), or -1 when the channel is closed.
+     */
+    public int read() throws IOException {
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    public int readInt() throws IOException {
+        if (buffer.remaining() >= 4) {
+            return buffer.getInt();
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    public void readFully(byte[] destination, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining() && !fill()) {
+                throw new EOFException();
+            }
+            int chunk = Math.min(buffer.remaining(), length);
+            buffer.get(destination, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Writes the next {@code count} bytes of the stream to {@code target} at its current position.
+     * Returns how many bytes were written, which is less than count only if the channel was closed.
+     */
+    public long transferTo(FileChannel target, long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            if (!buffer.hasRemaining() && !fill()) {
+                break;
+            }
+
+            int chunk = (int) Math.min(buffer.remaining(), remaining);
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + chunk);
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            buffer.limit(limit);
+            remaining -= chunk;
+        }
+        return count - remaining;
+    }
+
+    /**
+     * Writes up to {@code count} of the next bytes to {@code target} at {@code position} and returns
+     * how many were written, 0 once the channel is closed. Bytes already buffered are written
+     * first; after that FileChannel.transferFrom pulls the data straight from the channel.
+     */
+    public long readInto(FileChannel target, long position, long count) throws IOException {
+        if (buffer.hasRemaining()) {
+            int chunk = (int) Math.min(buffer.remaining(), count);
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + chunk);
+            while (buffer.hasRemaining()) {
+                position += target.write(buffer, position);
+            }
+            buffer.limit(limit);
+            return chunk;
+        }
+        long transferred = target.transferFrom(channel, position, count);
+        if (bytesRead != null) {
+            bytesRead.add(transferred);
+        }
+        return transferred;
+    }
+
+    // Refills the buffer from the channel, returns false at end of stream
+    private boolean fill() throws IOException {
+        buffer.clear();
+        int bytesRead;
+        do {
+            bytesRead = channel.read(buffer);
+        } while (bytesRead == 0);
+        if (bytesRead > 0 && this.bytesRead != null) {
+            this.bytesRead.add(bytesRead);
+        }
+        buffer.flip();
+        return bytesRead > 0;
+    }
+
+    private String decode(int length) {
+        if (length > 0 && lineBytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(lineBytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,252 @@
+package Shared;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Resumable file transfer: the file is sent as chunks, each announced by
+ * "CHUNK|offset|length|crc32c" and followed by its bytes (raw in text mode, FILE_DATA frames in
+ * binary mode). The receiver checks every chunk against its CRC32C and only advances the
+ * verified offset of its PartialFile over chunks that match, which is where the next attempt
+ * continues.
+ *
+ * On a connection that negotiated compression (MessageChannel.isCompressed) the sender may
+ * compress a chunk on its own, it then announces "CHUNK|offset|length|crc32c|compressed length"
+ * and sends the compressed bytes. The CRC32C is always that of the original bytes. Chunks that
+ * would not get at least a tenth smaller are sent as they are, see Compression.
+ *
+ * A bad chunk does not stop the stream, the remaining chunks are still read so both sides stay
+ * in step; they are just not trusted, and the receiver reports the verified offset afterwards.
+ */
+public class ChunkedTransfer {
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Sends bytes {@code offset} to {@code end} of the file as chunks. The caller holds the
+     * connection's lock if other threads may write to it.
+     */
+    public static void send(MessageChannel connection, FileChannel file, long offset, long end,
+                            boolean zeroCopy) throws IOException {
+        send(connection, file, offset, end, zeroCopy, false);
+    }
+
+    /**
+     * Like send, but tries to compress the chunks if {@code compress} is set and the connection
+     * negotiated compression. Once chunks stop shrinking the rest is sent as usual.
+     */
+    public static void send(MessageChannel connection, FileChannel file, long offset, long end,
+                            boolean zeroCopy, boolean compress) throws IOException {
+        if (compress && connection.isCompressed() && offset < end) {
+            offset = sendCompressed(connection, file, offset, end);
+        }
+        ByteBuffer scratch = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+        long position = offset;
+        while (position < end) {
+            long length = Math.min(CHUNK_SIZE, end - position);
+            long crc = crc32c(file, position, length, scratch);
+            connection.send(Message.CHUNK, Long.toString(position), Long.toString(length), Long.toString(crc));
+            connection.sendFileData(file, position, length, zeroCopy);
+            position += length;
+        }
+    }
+
+    /**
+     * Sends bytes {@code offset} to {@code end} of a file held in memory as chunks.
+     * {@code chunkCrcs}, if not null, caches the CRC32C of every whole chunk counted from the
+     * start of the file (-1 where not computed yet) and is shared by every sender of that file.
+     */
+    public static void send(MessageChannel connection, ByteBuffer file, long offset, long end,
+                            AtomicLongArray chunkCrcs) throws IOException {
+        send(connection, file, offset, end, chunkCrcs, false);
+    }
+
+    public static void send(MessageChannel connection, ByteBuffer file, long offset, long end,
+                            AtomicLongArray chunkCrcs, boolean compress) throws IOException {
+        Compression.ChunkCompressor compressor = compress && connection.isCompressed()
+                ? new Compression.ChunkCompressor() : null;
+        try {
+            sendChunks(connection, file, offset, end, chunkCrcs, compressor);
+        } finally {
+            if (compressor != null) {
+                compressor.close();
+            }
+        }
+    }
+
+    private static void sendChunks(MessageChannel connection, ByteBuffer file, long offset, long end,
+                                   AtomicLongArray chunkCrcs, Compression.ChunkCompressor compressor) throws IOException {
+        long position = offset;
+        while (position < end) {
+            int length = (int) Math.min(CHUNK_SIZE, end - position);
+            ByteBuffer chunk = file.slice((int) position, length);
+
+            boolean cacheable = chunkCrcs != null && position % CHUNK_SIZE == 0
+                    && length == Math.min(CHUNK_SIZE, file.limit() - position);
+            int index = (int) (position / CHUNK_SIZE);
+            long crc = cacheable ? chunkCrcs.get(index) : -1;
+            if (crc == -1) {
+                CRC32C checksum = new CRC32C();
+                checksum.update(chunk.duplicate());
+                crc = checksum.getValue();
+                if (cacheable) {
+                    chunkCrcs.set(index, crc);
+                }
+            }
+
+            if (compressor == null || !compressor.isActive() || !sendCompressedChunk(connection, compressor, chunk, position, crc)) {
+                connection.send(Message.CHUNK, Long.toString(position), Long.toString(length), Long.toString(crc));
+                connection.sendData(chunk);
+            }
+            position += length;
+        }
+    }
+
+    // Reads and sends chunks compressed while that pays off, returns where the rest has to continue
+    private static long sendCompressed(MessageChannel connection, FileChannel file, long position, long end) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, end - position));
+        try (Compression.ChunkCompressor compressor = new Compression.ChunkCompressor()) {
+            while (position < end && compressor.isActive()) {
+                chunk.clear().limit((int) Math.min(CHUNK_SIZE, end - position));
+                while (chunk.hasRemaining()) {
+                    if (file.read(chunk, position + chunk.position()) == -1) {
+                        throw new IOException("File shrank while it was sent.");
+                    }
+                }
+                chunk.flip();
+                CRC32C crc = new CRC32C();
+                crc.update(chunk.duplicate());
+                if (!sendCompressedChunk(connection, compressor, chunk, position, crc.getValue())) {
+                    connection.send(Message.CHUNK, Long.toString(position), Integer.toString(chunk.limit()),
+                            Long.toString(crc.getValue()));
+                    connection.sendData(chunk);
+                }
+                position += chunk.limit();
+            }
+        }
+        return position;
+    }
+
+    // Sends the chunk compressed, or returns false if it does not shrink enough
+    private static boolean sendCompressedChunk(MessageChannel connection, Compression.ChunkCompressor compressor,
+                                               ByteBuffer chunk, long position, long crc) throws IOException {
+        int compressedLength = compressor.compress(chunk);
+        if (compressedLength < 0) {
+            return false;
+        }
+        connection.send(Message.CHUNK, Long.toString(position), Integer.toString(chunk.remaining()), Long.toString(crc),
+                Integer.toString(compressedLength));
+        connection.sendData(ByteBuffer.wrap(compressor.output(), 0, compressedLength));
+        return true;
+    }
+
+    /**
+     * Receives chunks into {@code target} until {@code size} bytes have arrived or the connection
+     * is closed, and returns the verified length. {@code progress}, if not null, is told how many
+     * bytes have arrived after every chunk.
+     */
+    public static long receive(MessageChannel connection, Message message, PartialFile target, long size,
+                               LongConsumer progress) throws IOException {
+        long verified = receiveRange(connection, message, target.channel(), target.verified(), size, progress);
+        target.setVerified(verified);
+        return verified;
+    }
+
+    /**
+     * Receives the chunks of bytes {@code start} to {@code end} and writes each one in place with
+     * positional writes, so several ranges of one file can be received at the same time. Returns
+     * the end of the verified part of the range.
+     */
+    public static long receiveRange(MessageChannel connection, Message message, FileChannel file, long start,
+                                    long end, LongConsumer progress) throws IOException {
+        ByteBuffer scratch = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+        long position = start;
+        long verified = start;
+        boolean intact = true;
+        byte[] compressed = null;
+        ByteBuffer inflated = null;
+
+        while (position < end) {
+            if (connection.read(message) == null) {
+                break; // connection closed, keep what was verified
+            }
+            if (message.type != Message.CHUNK) {
+                throw new IOException("Expected a chunk but got " + Message.name(message.type));
+            }
+
+            long offset = Long.parseLong(message.field(0));
+            long length = Long.parseLong(message.field(1));
+            long expectedCrc = Long.parseLong(message.field(2));
+            if (offset != position || length <= 0 || length > MAX_CHUNK_SIZE || offset + length > end) {
+                throw new IOException("Unexpected chunk at " + offset + " of length " + length);
+            }
+
+            long received = 0;
+            if (message.fieldCount() > 3) {
+                int compressedLength = Integer.parseInt(message.field(3));
+                if (compressedLength <= 0 || compressedLength > length) {
+                    throw new IOException("Unexpected compressed chunk length " + compressedLength);
+                }
+                if (compressed == null || compressed.length < compressedLength) {
+                    compressed = new byte[Math.max(compressedLength, CHUNK_SIZE)];
+                    inflated = ByteBuffer.allocate(compressed.length);
+                }
+                try {
+                    connection.readData(compressed, compressedLength);
+                } catch (EOFException e) {
+                    return verified; // cut off inside the chunk
+                }
+                inflated.clear().limit((int) length);
+                Compression.inflate(compressed, compressedLength, inflated);
+                inflated.flip();
+                while (inflated.hasRemaining()) {
+                    file.write(inflated, offset + inflated.position());
+                }
+                received = length;
+            }
+            while (received < length) {
+                long bytesRead = connection.readFileData(file, offset + received, length - received);
+                if (bytesRead <= 0) {
+                    return verified; // cut off inside the chunk
+                }
+                received += bytesRead;
+            }
+            position += length;
+
+            // Reads back what was just written, which still is in the page cache
+            if (intact && crc32c(file, offset, length, scratch) == expectedCrc) {
+                verified = position;
+            } else {
+                intact = false;
+            }
+            if (progress != null) {
+                progress.accept(position);
+            }
+        }
+        return verified;
+    }
+
+    public static long crc32c(FileChannel file, long position, long length, ByteBuffer scratch) throws IOException {
+        CRC32C crc = new CRC32C();
+        long end = position + length;
+        while (position < end) {
+            scratch.clear();
+            scratch.limit((int) Math.min(scratch.capacity(), end - position));
+            int bytesRead = file.read(scratch, position);
+            if (bytesRead == -1) {
+                throw new IOException("File shrank while its checksum was computed.");
+            }
+            scratch.flip();
+            crc.update(scratch);
+            position += bytesRead;
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,112 @@
+package Shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of file chunks, used by ChunkedTransfer on connections that negotiated DEFLATE.
+ *
+ * Every chunk is compressed on its own, so ranges and resumed transfers can start at any chunk.
+ * Files of formats that are compressed already (audio, video, images, archives) are not even
+ * tried, and a transfer stops trying once its chunks turn out not to shrink, which catches the
+ * formats that are not on the list.
+ *
+ * Message frames are compressed differently, as one deflate stream per connection, see
+ * MessageChannel.
+ */
+public class Compression {
+    // A chunk is only sent compressed if that saves at least a tenth of it
+    private static final double MAX_RATIO = 0.9;
+
+    // After this many chunks in a row that did not shrink, the rest of the transfer is sent as it is
+    private static final int MAX_MISSES = 2;
+
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "mp3", "m4a", "aac", "ogg", "opus", "flac", "wma",
+            "mp4", "m4v", "mkv", "avi", "mov", "webm", "wmv",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "jar",
+            "docx", "xlsx", "pptx", "odt", "epub");
+
+    /**
+     * Whether chunks of this file are worth trying to compress, judged by its extension.
+     */
+    public static boolean isCompressible(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 || !COMPRESSED_TYPES.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Compresses the chunks of one transfer. Not thread-safe, one per transfer.
+     */
+    public static class ChunkCompressor implements AutoCloseable {
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private byte[] output = new byte[64 * 1024];
+        private int misses;
+
+        public boolean isActive() {
+            return misses < MAX_MISSES;
+        }
+
+        /**
+         * Compresses the remaining bytes of {@code chunk} (without moving its position) into
+         * output() and returns the compressed length, or -1 if the chunk should be sent as it is.
+         */
+        public int compress(ByteBuffer chunk) {
+            int limit = (int) (chunk.remaining() * MAX_RATIO);
+            if (output.length < limit) {
+                output = new byte[limit];
+            }
+            deflater.reset();
+            deflater.setInput(chunk.duplicate());
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished() && length < limit) {
+                length += deflater.deflate(output, length, limit - length);
+            }
+            if (!deflater.finished()) {
+                misses++;
+                return -1;
+            }
+            misses = 0;
+            return length;
+        }
+
+        public byte[] output() {
+            return output;
+        }
+
+        @Override
+        public void close() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses one chunk into {@code target}, which must have exactly the chunk's original
+     * length remaining.
+     */
+    public static void inflate(byte[] input, int length, ByteBuffer target) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input, 0, length);
+            while (target.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(target) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+            if (target.hasRemaining() || !inflater.finished()) {
+                throw new IOException("Compressed chunk does not have its announced length");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed chunk: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package Shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * SHA-256 of a file's content, the address of a blob in the server's store. The file is hashed
+ * in chunks through one direct buffer, never loaded as a whole.
+ */
+public class ContentHash {
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    public static String sha256(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return sha256(channel);
+        }
+    }
+
+    public static String sha256(FileChannel channel) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long position = 0;
+        while (true) {
+            buffer.clear();
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead == -1) {
+                break;
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += bytesRead;
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // A well-formed hash as sent by a client: 64 lower case hex digits
+    public static boolean isValid(String hash) {
+        if (hash == null || hash.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // every JDK has it
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package Shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Delta upload in the style of rsync, for a file the server already has another version of.
+ *
+ * 1. The server cuts its copy (the basis) into blocks and answers the upload request with
+ *    "SIGNATURES|blockSize|blockCount", followed by the signatures as data: per block a 4 byte
+ *    rolling checksum and a 16 byte MD5.
+ * 2. The client slides a window of one block over its file. The rolling checksum moves on by one
+ *    byte in constant time, the MD5 is only computed where the checksum matches a block. Matching
+ *    blocks are sent as "DELTA_COPY|firstBlock|count", the bytes in between as
+ *    "DELTA_DATA|length" followed by the bytes, and "DELTA_END" closes the delta.
+ * 3. The server rebuilds the file from its basis and those bytes. The SHA-256 of the whole file,
+ *    sent with the upload request, decides whether the result is kept.
+ *
+ * An edit of a few bytes in a large file costs the signatures (20 bytes per block) plus the
+ * blocks around the edit instead of the whole file.
+ */
+public class DeltaSync {
+    public static final int MIN_BLOCK_SIZE = 2 * 1024;
+    public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    // Keeps the signatures of one basis below 20 MB
+    private static final int MAX_BLOCKS = 1024 * 1024;
+
+    private static final int SIGNATURE_SIZE = 20;
+    private static final int STRONG_SIZE = 16;
+
+    /**
+     * The server's signatures of its copy, as the client reads them.
+     */
+    public static class Signatures {
+        private final int blockSize;
+        private final int blockCount;
+        private final byte[] data;
+
+        // (checksum << 32 | block) sorted, to find the blocks with a given checksum
+        private final long[] blocksByChecksum;
+
+        // One bit per bucket of checksums, most positions of a changed region are ruled out here
+        private final long[] buckets = new long[1 << 14];
+
+        private Signatures(int blockSize, int blockCount, byte[] data) {
+            this.blockSize = blockSize;
+            this.blockCount = blockCount;
+            this.data = data;
+
+            ByteBuffer signatures = ByteBuffer.wrap(data);
+            blocksByChecksum = new long[blockCount];
+            for (int block = 0; block < blockCount; block++) {
+                int checksum = signatures.getInt(block * SIGNATURE_SIZE);
+                blocksByChecksum[block] = (long) checksum << 32 | block;
+                int bucket = bucket(checksum);
+                buckets[bucket >>> 6] |= 1L << bucket;
+            }
+            Arrays.sort(blocksByChecksum);
+        }
+
+        public int blockSize() {
+            return blockSize;
+        }
+
+        public int blockCount() {
+            return blockCount;
+        }
+
+        // A block whose checksum and MD5 match the window at position, preferring {@code preferred}
+        // so runs of copied blocks stay together. -1 if there is none
+        private int find(int checksum, ByteBuffer file, int position, MessageDigest md5, long preferred) {
+            int bucket = bucket(checksum);
+            if ((buckets[bucket >>> 6] & 1L << bucket) == 0) {
+                return -1;
+            }
+            int index = lowerBound((long) checksum << 32);
+            if (index == blocksByChecksum.length || (int) (blocksByChecksum[index] >> 32) != checksum) {
+                return -1;
+            }
+
+            md5.update(file.slice(position, blockSize));
+            byte[] strong = md5.digest();
+            if (preferred < blockCount && checksum(preferred) == checksum && matches((int) preferred, strong)) {
+                return (int) preferred;
+            }
+            for (; index < blocksByChecksum.length && (int) (blocksByChecksum[index] >> 32) == checksum; index++) {
+                int block = (int) blocksByChecksum[index];
+                if (matches(block, strong)) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+
+        private int checksum(long block) {
+            int offset = (int) block * SIGNATURE_SIZE;
+            return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                    | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+        }
+
+        private boolean matches(int block, byte[] strong) {
+            int offset = block * SIGNATURE_SIZE + 4;
+            return Arrays.equals(data, offset, offset + STRONG_SIZE, strong, 0, STRONG_SIZE);
+        }
+
+        private int lowerBound(long key) {
+            int low = 0;
+            int high = blocksByChecksum.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (blocksByChecksum[middle] < key) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private static int bucket(int checksum) {
+            return (checksum * 0x9E3779B1) >>> 12;
+        }
+    }
+
+    /**
+     * Block size for a basis of this size: about its square root, so neither the signatures nor
+     * the block resent around an edit get big.
+     */
+    public static int blockSize(long basisSize) {
+        long root = Long.highestOneBit((long) Math.sqrt(basisSize));
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, root));
+    }
+
+    // Whether a basis of this size is worth sending signatures for
+    public static boolean isUsable(long basisSize) {
+        return basisSize >= MIN_BLOCK_SIZE && basisSize / blockSize(basisSize) <= MAX_BLOCKS;
+    }
+
+    /**
+     * Sends the signatures of every whole block of the basis; a shorter last block is left out
+     * and simply sent again by the client. The caller holds the connection's lock if other
+     * threads may write to it.
+     */
+    public static void sendSignatures(MessageChannel connection, FileChannel basis) throws IOException {
+        int blockSize = blockSize(basis.size());
+        int blockCount = (int) (basis.size() / blockSize);
+        ByteBuffer signatures = ByteBuffer.allocate(blockCount * SIGNATURE_SIZE);
+        ByteBuffer block = ByteBuffer.allocateDirect(blockSize);
+        MessageDigest md5 = newDigest();
+
+        for (int i = 0; i < blockCount; i++) {
+            block.clear();
+            long position = (long) i * blockSize;
+            while (block.hasRemaining()) {
+                if (basis.read(block, position + block.position()) == -1) {
+                    throw new IOException("File shrank while its signatures were computed.");
+                }
+            }
+            block.flip();
+            signatures.putInt(checksum(block, 0, blockSize));
+            md5.update(block);
+            signatures.put(md5.digest());
+        }
+
+        signatures.flip();
+        connection.send(Message.SIGNATURES, String.valueOf(blockSize), String.valueOf(blockCount));
+        connection.sendData(signatures);
+    }
+
+    /**
+     * Reads the signature data announced by a SIGNATURES message.
+     */
+    public static Signatures readSignatures(MessageChannel connection, Message message) throws IOException {
+        int blockSize = Integer.parseInt(message.field(0));
+        int blockCount = Integer.parseInt(message.field(1));
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || blockCount < 0 || blockCount > MAX_BLOCKS) {
+            throw new IOException("Invalid signatures: " + blockCount + " blocks of " + blockSize + " bytes");
+        }
+        byte[] data = new byte[blockCount * SIGNATURE_SIZE];
+        connection.readData(data);
+        return new Signatures(blockSize, blockCount, data);
+    }
+
+    /**
+     * Sends {@code file} as a delta against the server's signatures and returns how many of its
+     * bytes had to be sent literally. The file is scanned through a memory map, so it can be at
+     * most 2 GB.
+     */
+    public static long sendDelta(MessageChannel connection, Signatures signatures, FileChannel file) throws IOException {
+        if (file.size() > Integer.MAX_VALUE) {
+            throw new IOException("File too large for a delta upload.");
+        }
+        int size = (int) file.size();
+        int blockSize = signatures.blockSize;
+        MappedByteBuffer data = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        MessageDigest md5 = newDigest();
+
+        long literal = 0;
+        int literalStart = 0;
+        long copyFirst = 0;  // run of copied blocks not sent yet
+        long copyCount = 0;
+
+        int position = 0;
+        int a = 0;
+        int b = 0;
+        boolean fresh = true;
+        while (position + blockSize <= size) {
+            if (fresh) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < blockSize; i++) {
+                    int x = data.get(position + i) & 0xff;
+                    a += x;
+                    b += (blockSize - i) * x;
+                }
+                fresh = false;
+            }
+
+            int block = signatures.find((a & 0xffff) | (b << 16), data, position, md5, copyFirst + copyCount);
+            if (block >= 0) {
+                if (literalStart < position) {
+                    sendCopy(connection, copyFirst, copyCount);
+                    copyCount = 0;
+                    sendLiteral(connection, data, literalStart, position);
+                    literal += position - literalStart;
+                }
+                if (copyCount > 0 && copyFirst + copyCount == block) {
+                    copyCount++;
+                } else {
+                    sendCopy(connection, copyFirst, copyCount);
+                    copyFirst = block;
+                    copyCount = 1;
+                }
+                position += blockSize;
+                literalStart = position;
+                fresh = true;
+            } else {
+                // Roll the window on by one byte
+                if (position + blockSize < size) {
+                    int out = data.get(position) & 0xff;
+                    int in = data.get(position + blockSize) & 0xff;
+                    a += in - out;
+                    b += a - blockSize * out;
+                }
+                position++;
+            }
+        }
+
+        sendCopy(connection, copyFirst, copyCount);
+        if (literalStart < size) {
+            sendLiteral(connection, data, literalStart, size);
+            literal += size - literalStart;
+        }
+        connection.send(Message.DELTA_END);
+        return literal;
+    }
+
+    /**
+     * Rebuilds a file from the client's delta into {@code target}, copying blocks from
+     * {@code basis}, the file the signatures were sent for. Returns the length of the rebuilt
+     * file, or -1 if the connection was closed before DELTA_END.
+     */
+    public static long receiveDelta(MessageChannel connection, Message message, FileChannel basis,
+                                    FileChannel target, long maxLength) throws IOException {
+        int blockSize = blockSize(basis.size());
+        long blockCount = basis.size() / blockSize;
+        long position = 0;
+
+        while (true) {
+            if (connection.read(message) == null) {
+                return -1;
+            }
+            switch (message.type) {
+                case Message.DELTA_COPY -> {
+                    long first = Long.parseLong(message.field(0));
+                    long count = Long.parseLong(message.field(1));
+                    long length = count * blockSize;
+                    if (first < 0 || count <= 0 || first + count > blockCount || position + length > maxLength) {
+                        throw new IOException("Invalid block range " + first + "+" + count);
+                    }
+                    copy(basis, first * blockSize, length, target, position);
+                    position += length;
+                }
+                case Message.DELTA_DATA -> {
+                    long length = Long.parseLong(message.field(0));
+                    if (length < 0 || position + length > maxLength) {
+                        throw new IOException("Invalid data length " + length);
+                    }
+                    long received = 0;
+                    while (received < length) {
+                        long bytesRead = connection.readFileData(target, position + received, length - received);
+                        if (bytesRead <= 0) {
+                            return -1;
+                        }
+                        received += bytesRead;
+                    }
+                    position += length;
+                }
+                case Message.DELTA_END -> {
+                    return position;
+                }
+                default -> throw new IOException("Expected a delta but got " + Message.name(message.type));
+            }
+        }
+    }
+
+    // The rolling checksum of rsync: a is the sum of the bytes, b weighs them by distance from the end
+    static int checksum(ByteBuffer data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data.get(offset + i) & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    private static void sendCopy(MessageChannel connection, long first, long count) throws IOException {
+        if (count > 0) {
+            connection.send(Message.DELTA_COPY, Long.toString(first), Long.toString(count));
+        }
+    }
+
+    private static void sendLiteral(MessageChannel connection, ByteBuffer data, int from, int to) throws IOException {
+        connection.send(Message.DELTA_DATA, Integer.toString(to - from));
+        connection.sendData(data.slice(from, to - from));
+    }
+
+    private static void copy(FileChannel source, long position, long length, FileChannel target, long targetPosition)
+            throws IOException {
+        target.position(targetPosition);
+        long end = position + length;
+        while (position < end) {
+            long copied = source.transferTo(position, end - position, target);
+            if (copied <= 0) {
+                throw new IOException("File shrank while a delta was applied.");
+            }
+            position += copied;
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e); // every JDK has it
+        }
+    }
+}
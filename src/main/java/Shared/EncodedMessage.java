@@ -0,0 +1,41 @@
+package Shared;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message serialized once, in both wire formats, so it can be written to any number of
+ * connections without being encoded again for each of them.
+ *
+ * Used for chat fan-out: the sender builds one EncodedMessage and every recipient's
+ * MessageChannel copies the bytes of its format straight into its own write buffer.
+ * The buffers handed out are read-only views and are never modified after construction.
+ */
+public final class EncodedMessage {
+    private final byte type;
+    private final ByteBuffer text;
+    private final ByteBuffer binary;
+
+    public EncodedMessage(byte type, String... fields) {
+        this.type = type;
+
+        ByteBuffer textBuffer = ByteBuffer.allocate(Message.encodedLineSize(type, fields));
+        Message.encodeLine(textBuffer, type, fields);
+        this.text = textBuffer.flip().asReadOnlyBuffer();
+
+        ByteBuffer binaryBuffer = ByteBuffer.allocate(Message.encodedFrameSize(fields));
+        Message.encodeFrame(binaryBuffer, type, fields);
+        this.binary = binaryBuffer.flip().asReadOnlyBuffer();
+    }
+
+    public byte type() {
+        return type;
+    }
+
+    /**
+     * The encoded bytes, from index 0 to limit(). Callers must use absolute reads or a
+     * duplicate() and never move the position of the shared buffer.
+     */
+    public ByteBuffer encoded(boolean binaryFormat) {
+        return binaryFormat ? binary : text;
+    }
+}
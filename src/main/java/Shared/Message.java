@@ -1,5 +1,9 @@
 package Shared;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 public class
 Message {
     /**
@@ -10,16 +14,344 @@ Message {
      * It may be used to carry login information, commands, filenames, or other types of data,
      * depending on the message type.
      *
-     * You may use Java Serialization or JSON (e.g., via libraries like Gson or Jackson) to send this object.
+     * It is also the codec for both wire formats:
+     *  - text:   "COMMAND|field|field\n", the original protocol, still used by text clients
+     *  - binary: [type: 1 byte][payload length: 4 bytes][payload], negotiated at LOGIN.
+     *            The payload is a list of [length: 4 bytes][UTF-8 bytes] fields, except for
+     *            FILE_DATA frames whose payload is raw file bytes and DEFLATED frames whose
+     *            payload is compressed frames.
      *
-     * You are allowed — and sometimes expected — to modify or extend this class to suit your needs.
+     * A Message is meant to be reused: decoding only grows its buffers when a bigger message
+     * arrives, and encoding writes UTF-8 straight into the caller's buffer.
      */
-    public int type; // e.g., 0 = login, 1 = chat message, 2 = file upload, etc.
-    public String sender;
-    public String content;    // chat text, filename, password, etc.
+    public static final int HEADER_SIZE = 5;
+    public static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+    // Message types, the index into NAMES
+    public static final byte UNKNOWN = 0;
+    public static final byte LOGIN = 1;
+    public static final byte LOGIN_SUCCESS = 2;
+    public static final byte LOGIN_FAILED = 3;
+    public static final byte CHAT = 4;
+    public static final byte UPLOAD_REQUEST = 5;
+    public static final byte UPLOAD_READY = 6;
+    public static final byte UPLOAD_DENIED = 7;
+    public static final byte UPLOAD_START = 8;
+    public static final byte UPLOAD_FAILED = 9;
+    public static final byte UPLOAD_SUCCESS = 10;
+    public static final byte LIST = 11;
+    public static final byte FILE_LIST = 12;
+    public static final byte DOWNLOAD = 13;
+    public static final byte FILE_INFO = 14;
+    public static final byte FILE_DATA = 15;
+    public static final byte EXIT = 16;
+    public static final byte ERROR = 17;
+    public static final byte JOIN = 18;
+    public static final byte LEAVE = 19;
+    public static final byte JOINED = 20;
+    public static final byte CHUNK = 21;
+    public static final byte SIGNATURES = 22;
+    public static final byte DELTA_COPY = 23;
+    public static final byte DELTA_DATA = 24;
+    public static final byte DELTA_END = 25;
+    public static final byte FILE_PAGE = 26;
+    public static final byte DEFLATED = 27;
+    public static final byte HISTORY = 28;
+    public static final byte CHAT_HISTORY = 29;
+
+    // Between the nodes of a cluster only (see Server.Cluster)
+    public static final byte NODE_HELLO = 30;
+    public static final byte RELAY_CHAT = 31;
+    public static final byte CATALOG_ENTRY = 32;
+    public static final byte CATALOG_REMOVE = 33;
+    public static final byte FETCH = 34;
+
+    // "STATS" asks for the server's metrics, the reply has one field per line of the report
+    public static final byte STATS = 35;
+
+    // Command names used by the text protocol
+    private static final String[] NAMES = {
+            null, "LOGIN", "LOGIN-SUCCESS", "LOGIN-FAILED", "CHAT", "UPLOAD_REQUEST", "UPLOAD_READY",
+            "UPLOAD_DENIED", "UPLOAD_START", "UPLOAD_FAILED", "UPLOAD_SUCCESS", "LIST", "FILE_LIST",
+            "DOWNLOAD", "FILE_INFO", "FILE_DATA", "EXIT", "ERROR", "JOIN", "LEAVE", "JOINED", "CHUNK",
+            "SIGNATURES", "DELTA_COPY", "DELTA_DATA", "DELTA_END",
+            "FILE_PAGE", "DEFLATED", "HISTORY", "CHAT_HISTORY",
+            "NODE_HELLO", "RELAY_CHAT", "CATALOG_ENTRY", "CATALOG_REMOVE", "FETCH",
+            "STATS"
+    };
+
+    // LOGIN option asking the server to switch to binary frames
+    public static final String BINARY = "BINARY";
+
+    // LOGIN option asking for compression, only granted together with BINARY (see MessageChannel)
+    public static final String DEFLATE = "DEFLATE";
+
+    // LOGIN option "TOKEN=<token>" with the token of an earlier LOGIN_SUCCESS, which stands in
+    // for the password. LOGIN_SUCCESS carries a fresh one in the same form
+    public static final String TOKEN = "TOKEN";
+
+    // UPLOAD_REQUEST option asking for a resumable, chunked upload (see ChunkedTransfer)
+    public static final String RESUME = "RESUME";
+
+    // UPLOAD_REQUEST option "SHA256=<hex>", lets the server skip the bytes if it has that content
+    public static final String SHA256 = "SHA256";
+
+    // UPLOAD_REQUEST option asking to send only the changes against the server's copy (see DeltaSync)
+    public static final String DELTA = "DELTA";
+
+    // FILE_INFO option "VERSION=<version>" of a chunked download, which changes with the file's
+    // content. A DOWNLOAD that continues a partial copy sends it back, and the server starts
+    // over at offset 0 if the file is not that version any more
+    public static final String VERSION = "VERSION";
+
+    public byte type;
+    public String line;        // the original line, only set for text messages
+
+    private String[] fields = new String[4];
+    private int fieldCount;
+    private byte[] payload = new byte[256];
 
     public Message() {
 
     }
 
-}
\ No newline at end of file
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    public String field(int index) {
+        return index < fieldCount ? fields[index] : null;
+    }
+
+    // Whether one of the fields from fromIndex on equals value, used for options such as BINARY
+    public boolean hasField(String value, int fromIndex) {
+        for (int i = fromIndex; i < fieldCount; i++) {
+            if (fields[i].equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The value of a "name=value" option from fromIndex on, null if it is not there
+    public String option(String name, int fromIndex) {
+        for (int i = fromIndex; i < fieldCount; i++) {
+            String field = fields[i];
+            if (field.length() > name.length() && field.startsWith(name) && field.charAt(name.length()) == '=') {
+                return field.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    public static String name(byte type) {
+        return type > 0 && type < NAMES.length ? NAMES[type] : "UNKNOWN";
+    }
+
+    public static byte typeOf(String name) {
+        for (byte type = 1; type < NAMES.length; type++) {
+            if (NAMES[type].equals(name)) {
+                return type;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    // Types whose last field is free text that may itself contain '|'
+    private static int textFieldLimit(byte type) {
+        return switch (type) {
+            case CHAT, ERROR, UPLOAD_DENIED -> 1;
+            default -> Integer.MAX_VALUE;
+        };
+    }
+
+    // ---- text protocol ----
+
+    /**
+     * Parses a text line such as "UPLOAD_REQUEST|song.mp3|1234" into this message.
+     */
+    public Message parseLine(String input) {
+        line = input;
+        fieldCount = 0;
+
+        int end = input.indexOf('|');
+        type = typeOf(end < 0 ? input : input.substring(0, end));
+
+        int limit = textFieldLimit(type);
+        while (end >= 0) {
+            int start = end + 1;
+            end = fieldCount + 1 < limit ? input.indexOf('|', start) : -1;
+            addField(end < 0 ? input.substring(start) : input.substring(start, end));
+        }
+        return this;
+    }
+
+    /**
+     * Writes "NAME|field|field\n" as UTF-8 into the buffer. A field with a line break would end
+     * the line early and the rest would be read as a message of its own, so it is refused.
+     */
+    public static void encodeLine(ByteBuffer buffer, byte type, String... fields) {
+        for (String field : fields) {
+            if (field.indexOf('\n') >= 0 || field.indexOf('\r') >= 0) {
+                throw new IllegalArgumentException("Line break in a field of " + NAMES[type]);
+            }
+        }
+        putUtf8(buffer, NAMES[type]);
+        for (String field : fields) {
+            buffer.put((byte) '|');
+            putUtf8(buffer, field);
+        }
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * The text with every CR and LF replaced by a space, for free text a client sent that is
+     * passed on to text clients.
+     */
+    public static String singleLine(String text) {
+        return text.replace('\r', ' ').replace('\n', ' ');
+    }
+
+    public static int encodedLineSize(byte type, String... fields) {
+        int size = NAMES[type].length() + 1;
+        for (String field : fields) {
+            size += 1 + utf8Length(field);
+        }
+        return size;
+    }
+
+    // ---- binary protocol ----
+
+    public static void encodeFrame(ByteBuffer buffer, byte type, String... fields) {
+        int payloadLength = 0;
+        for (String field : fields) {
+            payloadLength += 4 + utf8Length(field);
+        }
+
+        buffer.put(type);
+        buffer.putInt(payloadLength);
+        for (String field : fields) {
+            buffer.putInt(utf8Length(field));
+            putUtf8(buffer, field);
+        }
+    }
+
+    public static int encodedFrameSize(String... fields) {
+        int size = HEADER_SIZE;
+        for (String field : fields) {
+            size += 4 + utf8Length(field);
+        }
+        return size;
+    }
+
+    // Header of a frame whose payload is written separately, e.g. FILE_DATA
+    public static void encodeHeader(ByteBuffer buffer, byte type, int payloadLength) {
+        buffer.put(type);
+        buffer.putInt(payloadLength);
+    }
+
+    /**
+     * Reads the payload of a frame whose header has already been read and decodes its fields.
+     */
+    public Message readPayload(ChannelReader reader, byte type, int payloadLength) throws IOException {
+        if (payloadLength < 0 || payloadLength > MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length: " + payloadLength);
+        }
+        if (payload.length < payloadLength) {
+            payload = new byte[Math.max(payloadLength, payload.length * 2)];
+        }
+        reader.readFully(payload, 0, payloadLength);
+        return decodePayload(type, payloadLength);
+    }
+
+    /**
+     * Decodes a frame payload that has already been read into {@code source}, e.g. after it was
+     * decompressed.
+     */
+    public Message readPayload(ByteBuffer source, byte type, int payloadLength) throws IOException {
+        if (payloadLength < 0 || payloadLength > source.remaining()) {
+            throw new IOException("Invalid frame length: " + payloadLength);
+        }
+        if (payload.length < payloadLength) {
+            payload = new byte[Math.max(payloadLength, payload.length * 2)];
+        }
+        source.get(payload, 0, payloadLength);
+        return decodePayload(type, payloadLength);
+    }
+
+    private Message decodePayload(byte type, int payloadLength) throws IOException {
+        this.type = type;
+        this.line = null;
+        fieldCount = 0;
+        int position = 0;
+        while (position + 4 <= payloadLength) {
+            int length = ((payload[position] & 0xFF) << 24) | ((payload[position + 1] & 0xFF) << 16)
+                    | ((payload[position + 2] & 0xFF) << 8) | (payload[position + 3] & 0xFF);
+            position += 4;
+            if (length < 0 || position + length > payloadLength) {
+                throw new IOException("Malformed " + name(type) + " frame");
+            }
+            addField(new String(payload, position, length, StandardCharsets.UTF_8));
+            position += length;
+        }
+        return this;
+    }
+
+    private void addField(String value) {
+        if (fieldCount == fields.length) {
+            String[] grown = new String[fields.length * 2];
+            System.arraycopy(fields, 0, grown, 0, fieldCount);
+            fields = grown;
+        }
+        fields[fieldCount++] = value;
+    }
+
+    // ---- UTF-8 without intermediate byte arrays ----
+
+    public static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return length;
+    }
+
+    public static void putUtf8(ByteBuffer buffer, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else {
+                // Unpaired surrogates are encoded as '?' like String.getBytes does
+                if (Character.isSurrogate(c)) {
+                    buffer.put((byte) '?');
+                    continue;
+                }
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
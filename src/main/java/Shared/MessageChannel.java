@@ -0,0 +1,433 @@
+package Shared;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * One end of a client/server connection, speaking either the text protocol or binary frames.
+ *
+ * Both start out as text. After a LOGIN carrying the BINARY option has been answered with
+ * "LOGIN-SUCCESS|BINARY", each side calls setBinary(true) and switches to the frame format of
+ * Message. Everything above this class (ClientHandler, Client) works with Message types and
+ * fields and does not care which format is on the wire.
+ *
+ * A LOGIN with the DEFLATE option as well turns on compression (setCompressed) once
+ * "LOGIN-SUCCESS|BINARY|DEFLATE" has been answered: from then on every message frame goes out
+ * through one deflate stream per connection, sync-flushed after each message and sent as a
+ * DEFLATED frame. Because the stream keeps its history, repeated user names, commands and words
+ * of earlier chat lines cost only a few bits. FILE_DATA frames are never put into the stream,
+ * file chunks are compressed on their own by ChunkedTransfer. The deflate state costs a few
+ * hundred KB of native memory per compressing connection.
+ *
+ * Writes may come from several threads (e.g. broadcasts), reads only from one.
+ */
+public class MessageChannel {
+    // Binary file data is sent in frames of at most this size
+    private static final int FILE_FRAME_SIZE = 1024 * 1024;
+
+    private final ByteChannel channel;
+    private final ChannelReader reader;
+
+    // Guards the socket's write side and writeBuffer. A ReentrantLock (unlike synchronized)
+    // does not pin a virtual thread while it blocks on I/O
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    private volatile boolean binary;
+    private LongAdder bytesWritten; // counts every byte sent if set
+
+    // Bytes of the current FILE_DATA frame that have not been read yet
+    private long fileFrameRemaining;
+
+    // Compression state, created by setCompressed(true). The deflater and its output are guarded
+    // by writeLock, the inflater and its buffers belong to the reading thread
+    private volatile boolean compressed;
+    private Deflater deflater;
+    private byte[] deflated;
+    private Inflater inflater;
+    private byte[] compressedPayload;
+    private ByteBuffer inflated;
+
+    public MessageChannel(ByteChannel channel) {
+        this.channel = channel;
+        this.reader = new ChannelReader(channel);
+    }
+
+    /**
+     * Adds the bytes this channel reads and writes from now on to the two counters.
+     */
+    public void countBytes(LongAdder read, LongAdder written) {
+        reader.countBytes(read);
+        this.bytesWritten = written;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Switches compression on, only valid in binary mode. Like setBinary, the caller makes sure
+     * no other thread writes at the moment of the switch.
+     */
+    public void setCompressed(boolean compressed) {
+        if (compressed && deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            deflated = new byte[4 * 1024];
+            inflater = new Inflater();
+            compressedPayload = new byte[4 * 1024];
+            inflated = ByteBuffer.allocate(16 * 1024).flip();
+        }
+        this.compressed = compressed;
+    }
+
+    /**
+     * Reads the next message into {@code message}, returns null when the connection was closed.
+     */
+    public Message read(Message message) throws IOException {
+        if (!binary) {
+            String line = reader.readLine();
+            return line == null ? null : message.parseLine(line);
+        }
+
+        // Frames that came out of the last DEFLATED frame come first
+        if (inflated != null && inflated.hasRemaining()) {
+            byte type = inflated.get();
+            int payloadLength = inflated.getInt();
+            if (type == Message.FILE_DATA || type == Message.DEFLATED) {
+                throw new IOException("Unexpected " + Message.name(type) + " inside a compressed frame");
+            }
+            return message.readPayload(inflated, type, payloadLength);
+        }
+
+        int type = reader.read();
+        if (type == -1) {
+            return null;
+        }
+        int payloadLength = reader.readInt();
+        if (type == Message.FILE_DATA) {
+            throw new IOException("Unexpected file data");
+        }
+        if (type == Message.DEFLATED) {
+            inflate(payloadLength);
+            return read(message);
+        }
+        return message.readPayload(reader, (byte) type, payloadLength);
+    }
+
+    // Reads a DEFLATED frame and decompresses it into inflated, it holds whole frames
+    private void inflate(int payloadLength) throws IOException {
+        if (!compressed || payloadLength < 0 || payloadLength > Message.MAX_PAYLOAD) {
+            throw new IOException("Unexpected compressed frame");
+        }
+        if (compressedPayload.length < payloadLength) {
+            compressedPayload = new byte[Math.max(payloadLength, compressedPayload.length * 2)];
+        }
+        reader.readFully(compressedPayload, 0, payloadLength);
+
+        inflater.setInput(compressedPayload, 0, payloadLength);
+        inflated.clear();
+        try {
+            while (true) {
+                inflater.inflate(inflated);
+                if (inflated.hasRemaining()) {
+                    break; // all input used, the sender flushed after whole frames
+                }
+                if (inflated.capacity() > Message.MAX_PAYLOAD) {
+                    throw new IOException("Compressed frame too large");
+                }
+                inflated = ByteBuffer.allocate(inflated.capacity() * 2).put(inflated.flip());
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame: " + e.getMessage());
+        }
+        inflated.flip();
+    }
+
+    public void send(byte type, String... fields) throws IOException {
+        writeLock.lock();
+        try {
+            int size = binary ? Message.encodedFrameSize(fields) : Message.encodedLineSize(type, fields);
+            ByteBuffer buffer = size <= writeBuffer.capacity() ? writeBuffer : ByteBuffer.allocate(size);
+            buffer.clear();
+            if (binary) {
+                Message.encodeFrame(buffer, type, fields);
+            } else {
+                Message.encodeLine(buffer, type, fields);
+            }
+            buffer.flip();
+            if (binary && compressed) {
+                writeDeflated(buffer);
+            } else {
+                writeFully(buffer);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a message that was encoded once for many connections. The shared bytes are copied
+     * into this channel's own direct buffer with an absolute bulk put, so nothing is allocated
+     * per recipient and the shared buffer is never touched.
+     */
+    public void send(EncodedMessage message) throws IOException {
+        writeLock.lock();
+        try {
+            ByteBuffer encoded = message.encoded(binary);
+            int length = encoded.limit();
+            if (binary && compressed) {
+                writeDeflated(encoded.duplicate()); // every connection has its own stream, so this is per recipient
+            } else if (length <= writeBuffer.capacity()) {
+                writeBuffer.clear();
+                writeBuffer.put(0, encoded, 0, length);
+                writeBuffer.limit(length);
+                writeFully(writeBuffer);
+            } else {
+                writeFully(encoded.duplicate());
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Holds the write side so that a group of writes, e.g. FILE_INFO followed by the file
+     * bytes, is not interleaved with messages sent from other threads.
+     */
+    public void lock() {
+        writeLock.lock();
+    }
+
+    public void unlock() {
+        writeLock.unlock();
+    }
+
+    /**
+     * Sends {@code count} bytes of a file, raw in text mode or as FILE_DATA frames in binary mode.
+     * With zeroCopy the bytes are moved by FileChannel.transferTo (sendfile) instead of being
+     * copied through a buffer.
+     */
+    public void sendFileData(FileChannel file, long position, long count, boolean zeroCopy) throws IOException {
+        writeLock.lock();
+        try {
+            long end = position + count;
+            while (position < end) {
+                long chunk = binary ? Math.min(FILE_FRAME_SIZE, end - position) : end - position;
+                if (binary) {
+                    writeBuffer.clear();
+                    Message.encodeHeader(writeBuffer, Message.FILE_DATA, (int) chunk);
+                    writeBuffer.flip();
+                    writeFully(writeBuffer);
+                }
+
+                if (zeroCopy) {
+                    transferFile(file, position, chunk);
+                } else {
+                    copyFile(file, position, chunk);
+                }
+                position += chunk;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Lets the kernel move the bytes from the page cache to the socket without copying them through the heap
+    private void transferFile(FileChannel file, long position, long count) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long sent = file.transferTo(position, end - position, channel);
+            if (bytesWritten != null) {
+                bytesWritten.add(sent);
+            }
+            if (sent <= 0 && file.size() <= position) {
+                throw new IOException("File shrank while it was being sent.");
+            }
+            position += sent;
+        }
+    }
+
+    // Fallback that reads the file through the write buffer
+    private void copyFile(FileChannel file, long position, long count) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            writeBuffer.clear();
+            writeBuffer.limit((int) Math.min(writeBuffer.capacity(), end - position));
+            int bytesRead = file.read(writeBuffer, position);
+            if (bytesRead == -1) {
+                throw new IOException("File shrank while it was being sent.");
+            }
+            writeBuffer.flip();
+            writeFully(writeBuffer);
+            position += bytesRead;
+        }
+    }
+
+    /**
+     * Writes up to {@code count} bytes of incoming file data to {@code target} at {@code position}
+     * and returns how many were written, 0 once the connection is closed.
+     */
+    public long readFileData(FileChannel target, long position, long count) throws IOException {
+        if (!binary) {
+            return reader.readInto(target, position, count);
+        }
+
+        if (fileFrameRemaining == 0) {
+            int type = reader.read();
+            if (type == -1) {
+                return 0;
+            }
+            int payloadLength = reader.readInt();
+            if (type != Message.FILE_DATA || payloadLength < 0) {
+                throw new IOException("Expected file data but got " + Message.name((byte) type));
+            }
+            fileFrameRemaining = payloadLength;
+        }
+
+        long bytesRead = reader.readInto(target, position, Math.min(count, fileFrameRemaining));
+        fileFrameRemaining -= bytesRead;
+        return bytesRead;
+    }
+
+    /**
+     * Reads exactly {@code count} bytes of file data into {@code target}, starting at its current
+     * position. Returns how many bytes arrived, less than count only if the connection was closed.
+     */
+    public long readFileData(FileChannel target, long count) throws IOException {
+        long start = target.position();
+        long totalRead = 0;
+        while (totalRead < count) {
+            long bytesRead = readFileData(target, start + totalRead, count - totalRead);
+            if (bytesRead <= 0) {
+                break;
+            }
+            totalRead += bytesRead;
+        }
+        target.position(start + totalRead);
+        return totalRead;
+    }
+
+    /**
+     * Sends the remaining bytes of {@code data}, raw in text mode or as FILE_DATA frames in binary
+     * mode, like file data. The receiver reads them with readData.
+     */
+    public void sendData(ByteBuffer data) throws IOException {
+        writeLock.lock();
+        try {
+            while (data.hasRemaining()) {
+                int chunk = binary ? Math.min(FILE_FRAME_SIZE, data.remaining()) : data.remaining();
+                if (binary) {
+                    writeBuffer.clear();
+                    Message.encodeHeader(writeBuffer, Message.FILE_DATA, chunk);
+                    writeBuffer.flip();
+                    writeFully(writeBuffer);
+                }
+                ByteBuffer frame = data.slice(data.position(), chunk);
+                writeFully(frame);
+                data.position(data.position() + chunk);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Fills {@code target} with data sent by sendData, throws EOFException if the connection is
+     * closed first.
+     */
+    public void readData(byte[] target) throws IOException {
+        readData(target, target.length);
+    }
+
+    /**
+     * Reads the first {@code count} bytes of {@code target}.
+     */
+    public void readData(byte[] target, int count) throws IOException {
+        int offset = 0;
+        while (offset < count) {
+            int length = count - offset;
+            if (binary) {
+                if (fileFrameRemaining == 0) {
+                    int type = reader.read();
+                    if (type == -1) {
+                        throw new EOFException();
+                    }
+                    int payloadLength = reader.readInt();
+                    if (type != Message.FILE_DATA || payloadLength < 0) {
+                        throw new IOException("Expected data but got " + Message.name((byte) type));
+                    }
+                    fileFrameRemaining = payloadLength;
+                }
+                length = (int) Math.min(length, fileFrameRemaining);
+                fileFrameRemaining -= length;
+            }
+            reader.readFully(target, offset, length);
+            offset += length;
+        }
+    }
+
+    // Puts whole frames through the deflate stream and sends the result as one DEFLATED frame.
+    // Called with writeLock held; frames may be writeBuffer, it is only reused once they are consumed
+    private void writeDeflated(ByteBuffer frames) throws IOException {
+        deflater.setInput(frames);
+        int length = 0;
+        while (true) {
+            length += deflater.deflate(deflated, length, deflated.length - length, Deflater.SYNC_FLUSH);
+            if (length < deflated.length && deflater.needsInput()) {
+                break;
+            }
+            if (length == deflated.length) {
+                deflated = Arrays.copyOf(deflated, deflated.length * 2);
+            }
+        }
+
+        writeBuffer.clear();
+        Message.encodeHeader(writeBuffer, Message.DEFLATED, length);
+        if (length <= writeBuffer.remaining()) {
+            writeBuffer.put(deflated, 0, length).flip();
+            writeFully(writeBuffer);
+        } else {
+            writeFully(writeBuffer.flip());
+            writeFully(ByteBuffer.wrap(deflated, 0, length));
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        if (bytesWritten != null) {
+            bytesWritten.add(buffer.remaining());
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        if (deflater != null) {
+            writeLock.lock();
+            try {
+                deflater.end();
+                inflater.end();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+}
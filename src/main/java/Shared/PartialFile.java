@@ -0,0 +1,142 @@
+package Shared;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file that is received in several attempts, e.g. "song.mp3.part".
+ *
+ * Next to the data lives "song.mp3.part.offset" with the number of leading bytes whose chunk
+ * checksums were verified. Only that prefix is trusted when a transfer resumes: on open the
+ * data is cut back to it, so bytes of a chunk that was cut off or corrupted are sent again.
+ *
+ * The offset file also keeps the version of the content the bytes belong to, e.g. its hash,
+ * when there is one. Opening the file for another version starts it over, so the bytes of a
+ * different file that happens to have the same name are never continued.
+ */
+public class PartialFile implements Closeable {
+    private final Path data;
+    private final Path offsetFile;
+    private final FileChannel channel;
+    private long verified;
+    private String version;
+
+    private PartialFile(Path data, Path offsetFile, FileChannel channel, long verified, String version) {
+        this.data = data;
+        this.offsetFile = offsetFile;
+        this.channel = channel;
+        this.verified = verified;
+        this.version = version;
+    }
+
+    /**
+     * Opens or creates the partial file and cuts it back to its verified length. The version
+     * it was saved with, if any, is kept.
+     */
+    public static PartialFile open(Path data) throws IOException {
+        return open(data, null);
+    }
+
+    /**
+     * Opens or creates the partial file for that version of the content and cuts it back to its
+     * verified length, or to nothing if it holds the start of another version. A null version
+     * accepts whatever is there.
+     */
+    public static PartialFile open(Path data, String version) throws IOException {
+        Path offsetFile = data.resolveSibling(data.getFileName() + ".offset");
+        FileChannel channel = FileChannel.open(data, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        // "verified" or "verified version"
+        long verified = 0;
+        String savedVersion = null;
+        try {
+            if (Files.exists(offsetFile)) {
+                String[] saved = Files.readString(offsetFile, StandardCharsets.US_ASCII).trim().split(" ", 2);
+                verified = Long.parseLong(saved[0]);
+                savedVersion = saved.length > 1 ? saved[1] : null;
+            }
+        } catch (NumberFormatException e) {
+            verified = 0; // unreadable, start over
+        }
+        if (version != null && !version.equals(savedVersion)) {
+            verified = 0;
+        } else {
+            version = savedVersion;
+        }
+        verified = Math.max(0, Math.min(verified, channel.size()));
+        channel.truncate(verified);
+        return new PartialFile(data, offsetFile, channel, verified, version);
+    }
+
+    public FileChannel channel() {
+        return channel;
+    }
+
+    public Path path() {
+        return data;
+    }
+
+    public long verified() {
+        return verified;
+    }
+
+    public void setVerified(long verified) {
+        this.verified = verified;
+    }
+
+    // The version of the content the verified bytes belong to, null if unknown
+    public String version() {
+        return version;
+    }
+
+    /**
+     * Records the version of the content being received. For another version than before the
+     * bytes received so far are dropped.
+     */
+    public void setVersion(String version) throws IOException {
+        if (this.version != null && !this.version.equals(version)) {
+            verified = 0;
+            channel.truncate(0);
+        }
+        this.version = version;
+    }
+
+    /**
+     * Drops unverified bytes and records the verified length, so a later attempt resumes there.
+     * The data is forced to disk first, the offset must never get ahead of it.
+     */
+    public void save() throws IOException {
+        channel.truncate(verified);
+        channel.force(false);
+        Files.writeString(offsetFile, version == null ? Long.toString(verified) : verified + " " + version,
+                StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Closes the data file and forgets the offset, used once every byte is verified. Returns the
+     * data file for the caller to move into place.
+     */
+    public Path finish() throws IOException {
+        channel.truncate(verified);
+        channel.close();
+        Files.deleteIfExists(offsetFile);
+        return data;
+    }
+
+    public void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(data);
+        Files.deleteIfExists(offsetFile);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,131 @@
+package Client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import Shared.ServerProcess;
+
+/**
+ * Requests pipelined while a transfer is in flight are answered, and neither they nor chat from
+ * other users end up in the transferred bytes.
+ */
+class AsyncClientTest {
+    private static final int SIZE = 4 * 1024 * 1024;
+
+    @TempDir
+    Path directory;
+
+    private ServerProcess server;
+
+    @AfterEach
+    void stopServer() throws Exception {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    // The second upload of a changed file is a delta, which nothing else may interrupt
+    @Test
+    void requestsDuringADeltaUploadWaitForIt() throws Exception {
+        server = ServerProcess.start(directory.resolve("server"), ServerProcess.freePort(), "thread");
+        byte[] content = content(1);
+        Path file = Files.write(directory.resolve("notes.bin"), content);
+
+        try (AsyncClient client = connect(); AsyncClient listener = connect()) {
+            AtomicInteger heard = new AtomicInteger();
+            listener.onChat(text -> heard.incrementAndGet());
+            assertTrue(login(listener, "user2"));
+            assertTrue(login(client, "user1"));
+            assertEquals(SIZE, client.upload(file).get(30, TimeUnit.SECONDS).sent());
+
+            content[SIZE / 2] ^= 1;
+            Files.write(file, content);
+            CompletableFuture<AsyncClient.UploadResult> upload = client.upload(file);
+            int chats = pipelineUntilDone(client, upload);
+            AsyncClient.UploadResult result = upload.get(30, TimeUnit.SECONDS);
+            assertTrue(result.sent() < SIZE / 4, "sent " + result.sent());
+
+            awaitCount(heard, chats);
+            Path copy = directory.resolve("copy.bin");
+            assertEquals(SIZE, client.download("notes.bin", copy, 1, null).get(30, TimeUnit.SECONDS));
+            assertEquals(-1, Files.mismatch(file, copy));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"thread", "nio"})
+    void requestsDuringADownloadAreAnswered(String mode) throws Exception {
+        server = ServerProcess.start(directory.resolve("server"), ServerProcess.freePort(), mode);
+        Path original = Files.write(server.files().resolve("track.mp3"), content(2));
+
+        try (AsyncClient client = connect(); AsyncClient chatter = connect()) {
+            assertTrue(login(client, "user1"));
+            assertTrue(login(chatter, "user2"));
+            for (int i = 0; i < 3; i++) {
+                Path target = directory.resolve("track-" + i + ".mp3");
+                CompletableFuture<Long> download = client.download("track.mp3", target, 1, null);
+                // Chat from another user arrives in the middle of the download as well
+                List<CompletableFuture<?>> chat = new ArrayList<>();
+                for (int j = 0; j < 50; j++) {
+                    chat.add(chatter.chat("while downloading " + j));
+                }
+                pipelineUntilDone(client, download);
+                assertEquals(SIZE, download.get(30, TimeUnit.SECONDS));
+                CompletableFuture.allOf(chat.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+                assertEquals(-1, Files.mismatch(original, target));
+            }
+        }
+    }
+
+    // Sends LIST and CHAT until the transfer is done and checks that each was answered or sent
+    private static int pipelineUntilDone(AsyncClient client, CompletableFuture<?> transfer) throws Exception {
+        List<CompletableFuture<AsyncClient.FilePage>> lists = new ArrayList<>();
+        List<CompletableFuture<Void>> chats = new ArrayList<>();
+        while (!transfer.isDone()) {
+            lists.add(client.list("", "", 10));
+            chats.add(client.chat("still here " + chats.size()));
+            Thread.sleep(2);
+        }
+        for (CompletableFuture<AsyncClient.FilePage> list : lists) {
+            assertTrue(list.get(30, TimeUnit.SECONDS).files().size() <= 10);
+        }
+        CompletableFuture.allOf(chats.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        return chats.size();
+    }
+
+    private static void awaitCount(AtomicInteger count, int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (count.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, count.get());
+    }
+
+    private AsyncClient connect() throws Exception {
+        return AsyncClient.connect(new InetSocketAddress("localhost", server.port()), true, false);
+    }
+
+    private static boolean login(AsyncClient client, String username) throws Exception {
+        return client.login(username, "1234").get(10, TimeUnit.SECONDS);
+    }
+
+    private static byte[] content(long seed) {
+        byte[] content = new byte[SIZE];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,111 @@
+package Client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import Shared.ServerProcess;
+
+/**
+ * A short load run of ten users against a server of its own, checking that the report adds up:
+ * every user logged in, chat was delivered to the other members of the rooms, transfers went
+ * through, and the latency percentiles are in order and within the run.
+ *
+ * The generator is configured with system properties read once, so it runs in a JVM of its own too.
+ */
+@Timeout(120)
+class LoadGeneratorTest {
+    private static final int USERS = 10;
+    private static final int ROOMS = 2;
+
+    // "operation count per-s errors p50 p99 p99.9 max"
+    private static final Pattern ROW = Pattern.compile(
+            "(?m)^(LOGIN|CHAT|UPLOAD|DOWNLOAD) +(\\d+) +[\\d.]+ +(\\d+) +([\\d.]+) +([\\d.]+) +([\\d.]+) +([\\d.]+)$");
+    private static final Pattern TOTALS = Pattern.compile("(\\d+) chat messages sent, (\\d+) connections lost");
+
+    @TempDir
+    Path directory;
+
+    private ServerProcess server;
+
+    @AfterEach
+    void stopServer() throws Exception {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void reportAddsUp() throws Exception {
+        server = ServerProcess.start(directory.resolve("server"), ServerProcess.freePort(), "thread");
+        Files.write(server.files().resolve("shared.bin"), new byte[100_000]);
+
+        String report = run("load.server=localhost:" + server.port(), "load.users=" + USERS, "load.rooms=" + ROOMS,
+                "load.rampUp=1", "load.duration=3", "load.chatRate=5", "load.uploadRate=0.5", "load.downloadRate=0.5",
+                "load.fileSizes=64K:1");
+
+        Map<String, Long> counts = new HashMap<>();
+        Matcher row = ROW.matcher(report);
+        while (row.find()) {
+            String operation = row.group(1);
+            long count = Long.parseLong(row.group(2));
+            assertEquals(0, Long.parseLong(row.group(3)), operation + " errors in\n" + report);
+            counts.put(operation, count);
+
+            // Milliseconds, in order, and none longer than the whole run
+            double p50 = Double.parseDouble(row.group(4));
+            double p99 = Double.parseDouble(row.group(5));
+            double p999 = Double.parseDouble(row.group(6));
+            double max = Double.parseDouble(row.group(7));
+            assertTrue(count == 0 || p50 > 0, operation + " p50 in\n" + report);
+            assertTrue(p50 <= p99 && p99 <= p999 && p999 <= max, operation + " percentiles in\n" + report);
+            assertTrue(max < 10_000, operation + " max in\n" + report);
+        }
+        assertEquals(4, counts.size(), report);
+
+        Matcher totals = TOTALS.matcher(report);
+        assertTrue(totals.find(), report);
+        long sent = Long.parseLong(totals.group(1));
+        assertEquals(0, Long.parseLong(totals.group(2)), report);
+
+        assertEquals(USERS, (long) counts.get("LOGIN"), report);
+        // Every message reaches the others in its room, the last ones may still be on the way
+        long delivered = counts.get("CHAT");
+        assertTrue(sent > 0 && delivered >= sent && delivered <= sent * (USERS / ROOMS), report);
+        assertTrue(counts.get("UPLOAD") > 0, report);
+        assertTrue(counts.get("DOWNLOAD") > 0, report);
+    }
+
+    // Runs the generator with these -D options and returns what it printed
+    private String run(String... properties) throws Exception {
+        List<String> command = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "-Duser.language=en", "-Duser.country=US"));
+        for (String property : properties) {
+            command.add("-D" + property);
+        }
+        command.add("Client.LoadGenerator");
+        Path output = directory.resolve("load.log");
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(output.toFile()).start();
+        if (!process.waitFor(60, TimeUnit.SECONDS)) {
+            process.destroyForcibly().waitFor();
+            throw new AssertionError("Load run did not finish:\n" + Files.readString(output, StandardCharsets.UTF_8));
+        }
+        String report = Files.readString(output, StandardCharsets.UTF_8);
+        assertEquals(0, process.exitValue(), report);
+        return report;
+    }
+}
@@ -0,0 +1,256 @@
+package Client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import Shared.ChunkedTransfer;
+import Shared.ServerProcess;
+
+/**
+ * A file fetched over several streams: the ranges are whole chunks and put back together in
+ * place, a stream that asks for a version the server no longer has gets nothing, and a range that
+ * fails leaves the part before it verified for the next attempt to continue from.
+ */
+class ParallelDownloadTest {
+    private static final int CHUNK = ChunkedTransfer.CHUNK_SIZE;
+    private static final int SIZE = 5 * CHUNK + CHUNK / 2;
+
+    @TempDir
+    Path directory;
+
+    private ServerProcess server;
+    private Path original;
+
+    @AfterEach
+    void stopServer() throws Exception {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void rangesAreSplitAndReassembled() throws Exception {
+        startServer("thread");
+        try (RecordingChannel target = open(-1, -1)) {
+            ParallelDownload download = start(target, version(), 0, 3);
+            assertEquals(SIZE, download.await(() -> { }));
+            assertNull(download.failure());
+            assertEquals(SIZE, download.received.get());
+            // Two chunks per stream, the last range takes what is left of the file
+            assertEquals(List.of(0L, 2L * CHUNK, 2L * CHUNK, 4L * CHUNK, 4L * CHUNK, (long) SIZE), target.ranges());
+        }
+        assertEquals(-1, Files.mismatch(original, directory.resolve("target.bin")));
+    }
+
+    // The nio server only sends whole files, the client downloads over its own connection then
+    @Test
+    void serverWithoutRangesLeavesTheRestUnverified() throws Exception {
+        startServer("nio");
+        try (RecordingChannel target = open(-1, -1)) {
+            ParallelDownload download = start(target, version(), CHUNK, 2);
+            assertEquals(CHUNK, download.await(() -> { }));
+            assertTrue(download.failure().contains("Server did not send the range"), download.failure());
+            assertEquals(List.of(), target.ranges());
+        }
+    }
+
+    @Test
+    void rangesOfAnOlderVersionAreRefused() throws Exception {
+        startServer("thread");
+        try (RecordingChannel target = open(-1, -1)) {
+            ParallelDownload download = start(target, String.valueOf(Long.parseLong(version()) - 1000), CHUNK, 2);
+            assertEquals(CHUNK, download.await(() -> { }));
+            assertTrue(download.failure().contains("the file changed on the server"), download.failure());
+            assertEquals(List.of(), target.ranges());
+        }
+    }
+
+    @Test
+    void downloadContinuesAfterTheLastVerifiedRange() throws Exception {
+        startServer("thread");
+        String version = version();
+        // The second of three ranges cannot be written
+        try (RecordingChannel target = open(2 * CHUNK, 4 * CHUNK)) {
+            ParallelDownload download = start(target, version, 0, 3);
+            assertEquals(2L * CHUNK, download.await(() -> { }));
+            assertTrue(download.failure().startsWith("stream for bytes " + 2 * CHUNK + "-" + 4 * CHUNK + " failed"),
+                    download.failure());
+        }
+        try (RecordingChannel target = open(-1, -1)) {
+            ParallelDownload download = start(target, version, 2L * CHUNK, 2);
+            assertEquals(SIZE, download.await(() -> { }));
+            assertNull(download.failure());
+            assertEquals(List.of(2L * CHUNK, 4L * CHUNK, 4L * CHUNK, (long) SIZE), target.ranges());
+        }
+        assertEquals(-1, Files.mismatch(original, directory.resolve("target.bin")));
+    }
+
+    private void startServer(String mode) throws Exception {
+        server = ServerProcess.start(directory.resolve("server"), ServerProcess.freePort(), mode);
+        byte[] content = new byte[SIZE];
+        new Random(7).nextBytes(content);
+        original = Files.write(server.files().resolve("video.bin"), content);
+    }
+
+    // The version the server names in FILE_INFO, the time the file was last modified
+    private String version() throws IOException {
+        return String.valueOf(Files.getLastModifiedTime(original).toMillis());
+    }
+
+    private ParallelDownload start(FileChannel target, String version, long start, int streams) throws IOException {
+        return ParallelDownload.start(new InetSocketAddress("localhost", server.port()), "user1", "1234", null, true,
+                false, "video.bin", version, target, start, SIZE, streams);
+    }
+
+    private RecordingChannel open(long failFrom, long failTo) throws IOException {
+        FileChannel file = FileChannel.open(directory.resolve("target.bin"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ParallelDownload.preallocate(file, SIZE);
+        return new RecordingChannel(file, failFrom, failTo);
+    }
+
+    /**
+     * The target file, remembering which bytes each stream wrote and refusing to write between
+     * failFrom and failTo.
+     */
+    private static class RecordingChannel extends FileChannel {
+        private final FileChannel file;
+        private final long failFrom;
+        private final long failTo;
+        private final Map<Thread, long[]> written = new ConcurrentHashMap<>();
+
+        RecordingChannel(FileChannel file, long failFrom, long failTo) {
+            this.file = file;
+            this.failFrom = failFrom;
+            this.failTo = failTo;
+        }
+
+        // Start and end of what every stream wrote, ordered by start
+        List<Long> ranges() {
+            Map<Long, Long> ranges = new TreeMap<>();
+            for (long[] range : written.values()) {
+                ranges.put(range[0], range[1]);
+            }
+            return ranges.entrySet().stream().flatMap(range -> List.of(range.getKey(), range.getValue()).stream()).toList();
+        }
+
+        private void writing(long position, long count) throws IOException {
+            if (position >= failFrom && position < failTo) {
+                throw new IOException("No space left on device");
+            }
+            written.merge(Thread.currentThread(), new long[]{position, position + count},
+                    (range, write) -> new long[]{Math.min(range[0], write[0]), Math.max(range[1], write[1])});
+        }
+
+        @Override
+        public int write(ByteBuffer source, long position) throws IOException {
+            writing(position, source.remaining());
+            return file.write(source, position);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException {
+            writing(position, 0);
+            long transferred = file.transferFrom(source, position, count);
+            writing(position, transferred);
+            return transferred;
+        }
+
+        @Override
+        public int read(ByteBuffer target, long position) throws IOException {
+            return file.read(target, position);
+        }
+
+        @Override
+        public int read(ByteBuffer target) throws IOException {
+            return file.read(target);
+        }
+
+        @Override
+        public long read(ByteBuffer[] targets, int offset, int length) throws IOException {
+            return file.read(targets, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            return file.write(source);
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+            return file.write(sources, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return file.position();
+        }
+
+        @Override
+        public FileChannel position(long position) throws IOException {
+            file.position(position);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return file.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            file.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            file.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return file.transferTo(position, count, target);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return file.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return file.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return file.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            file.close();
+        }
+    }
+}
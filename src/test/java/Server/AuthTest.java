@@ -0,0 +1,100 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The ways a client is let in: the hashed user file, the cache of verified users and session
+ * tokens.
+ */
+class AuthTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void hashedStoreChecksPasswords() throws IOException {
+        HashedUserStore store = load(HashedUserStore.entry("alice", "correct horse", 1000));
+        assertTrue(store.authenticate("alice", "correct horse"));
+        assertFalse(store.authenticate("alice", "wrong"));
+        assertFalse(store.authenticate("alice", ""));
+        assertFalse(store.authenticate("mallory", "correct horse"));
+    }
+
+    @Test
+    void loadsABigUserFile() throws IOException {
+        Path file = directory.resolve("users.txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("# comments and blank lines are skipped");
+            writer.newLine();
+            writer.newLine();
+            for (int i = 0; i < 10_000; i++) {
+                writer.write(HashedUserStore.entry("user" + i, "secret" + i, 1));
+                writer.newLine();
+            }
+        }
+        HashedUserStore store = HashedUserStore.load(file);
+        assertEquals(10_000, store.size());
+        assertTrue(store.authenticate("user5000", "secret5000"));
+        assertFalse(store.authenticate("user5000", "secret5001"));
+    }
+
+    @Test
+    void malformedLineIsAnError() throws IOException {
+        Path file = Files.writeString(directory.resolve("users.txt"), "alice:1000:not-base64\n");
+        IOException e = assertThrows(IOException.class, () -> HashedUserStore.load(file));
+        assertTrue(e.getMessage().contains("users.txt:1"), e.getMessage());
+    }
+
+    @Test
+    void cacheRemembersVerifiedUsersOnly() throws IOException {
+        HashedUserStore store = load(HashedUserStore.entry("alice", "correct horse", 1000));
+        CachingUserStore cache = new CachingUserStore(store, 10);
+
+        assertFalse(cache.authenticate("alice", "wrong"));
+        assertFalse(cache.authenticate("alice", "wrong"));
+        assertEquals(0, cache.hits());
+
+        assertTrue(cache.authenticate("alice", "correct horse"));
+        assertTrue(cache.authenticate("alice", "correct horse"));
+        assertEquals(1, cache.hits());
+
+        // Another password for a cached user still goes to the store
+        assertFalse(cache.authenticate("alice", "wrong"));
+        assertEquals(1, cache.hits());
+    }
+
+    @Test
+    void tokensNameTheirUserUntilTheyExpire() {
+        SessionTokens tokens = new SessionTokens(new byte[32], SessionTokens.LIFETIME_MILLIS);
+        String token = tokens.issue("alice");
+        assertEquals("alice", tokens.verify(token));
+
+        String forged = token.substring(0, token.lastIndexOf('.') + 1) + "AAAA";
+        assertNull(tokens.verify(forged));
+        assertNull(tokens.verify("not a token"));
+
+        byte[] otherKey = new byte[32];
+        otherKey[0] = 1;
+        assertNull(new SessionTokens(otherKey, SessionTokens.LIFETIME_MILLIS).verify(token));
+
+        SessionTokens expiring = new SessionTokens(new byte[32], -1);
+        assertNull(expiring.verify(expiring.issue("alice")));
+    }
+
+    private HashedUserStore load(String... entries) throws IOException {
+        Path file = Files.write(directory.resolve("users.txt"), List.of(entries), StandardCharsets.UTF_8);
+        return HashedUserStore.load(file);
+    }
+}
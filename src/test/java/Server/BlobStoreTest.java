@@ -0,0 +1,95 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import Shared.ContentHash;
+
+class BlobStoreTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void sameContentIsStoredOnce() throws IOException {
+        BlobStore store = new BlobStore(directory);
+        String hash = ContentHash.sha256(upload("same"));
+        store.store(upload("same"), "a.txt", null);
+        store.store(upload("same"), "b.txt", null);
+
+        assertEquals(hash, store.hashOf("a.txt"));
+        assertEquals(hash, store.hashOf("b.txt"));
+        assertTrue(Files.isSameFile(directory.resolve("a.txt"), directory.resolve("b.txt")));
+        assertEquals(1, blobCount());
+    }
+
+    @Test
+    void manifestIsAppendedToAndCompacted() throws IOException {
+        BlobStore store = new BlobStore(directory);
+        String last = null;
+        for (int i = 0; i < 1500; i++) {
+            Path upload = upload("version " + i);
+            last = ContentHash.sha256(upload);
+            store.store(upload, "song.mp3", last);
+        }
+        store.store(upload("other"), "other.mp3", null);
+
+        long lines;
+        try (Stream<String> manifest = Files.lines(directory.resolve(".blobs").resolve("manifest"))) {
+            lines = manifest.count();
+        }
+        assertTrue(lines <= 1024, lines + " lines");
+        assertEquals(2, blobCount()); // the replaced versions are gone
+
+        BlobStore reopened = new BlobStore(directory);
+        assertEquals(last, reopened.hashOf("song.mp3"));
+        assertEquals(ContentHash.sha256(upload("other")), reopened.hashOf("other.mp3"));
+    }
+
+    @Test
+    void forgottenNameReleasesItsBlob() throws IOException {
+        BlobStore store = new BlobStore(directory);
+        store.store(upload("first"), "a.txt", null);
+
+        // What the nio mode does: a new file is renamed over the name
+        Files.move(upload("second"), directory.resolve("a.txt"), StandardCopyOption.REPLACE_EXISTING);
+        store.forget("a.txt");
+
+        assertNull(store.hashOf("a.txt"));
+        assertEquals(0, blobCount());
+        assertNull(new BlobStore(directory).hashOf("a.txt"));
+    }
+
+    @Test
+    void cutOffLastLineIsDropped() throws IOException {
+        BlobStore store = new BlobStore(directory);
+        String hash = ContentHash.sha256(upload("kept"));
+        store.store(upload("kept"), "a.txt", null);
+        Files.writeString(directory.resolve(".blobs").resolve("manifest"), "b.txt\t12ab",
+                StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        BlobStore reopened = new BlobStore(directory);
+        reopened.store(upload("more"), "c.txt", null);
+        assertEquals(hash, new BlobStore(directory).hashOf("a.txt"));
+        assertEquals(ContentHash.sha256(upload("more")), new BlobStore(directory).hashOf("c.txt"));
+    }
+
+    private Path upload(String content) throws IOException {
+        return Files.writeString(Files.createTempFile(directory, "upload-", ".part"), content);
+    }
+
+    private long blobCount() throws IOException {
+        try (Stream<Path> files = Files.walk(directory.resolve(".blobs"))) {
+            return files.filter(path -> ContentHash.isValid(path.getFileName().toString())).count();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import Shared.Message;
+import Shared.MessageChannel;
+
+class ChatHistoryTest {
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    void useTemporaryDirectory() {
+        System.setProperty("server.files.dir", directory.toString());
+    }
+
+    @Test
+    void anyRoomNameGivesAShortDirectoryName() throws IOException {
+        String room = "聊天室".repeat(RoomRegistry.MAX_NAME_LENGTH / 3);
+        assertTrue(room.getBytes(StandardCharsets.UTF_8).length * 2 > 255);
+        assertEquals(64, ChatHistory.directoryName(room).length());
+
+        ChatHistory.append(room, "user1: 你好");
+        assertEquals(1, ChatHistory.last(room, 20).next());
+    }
+
+    @Test
+    void closesTheLeastRecentlyUsedLogs() throws IOException {
+        int rooms = ChatHistory.OPEN_ROOMS + 10;
+        for (int i = 0; i < rooms; i++) {
+            ChatHistory.append("lru-" + i, "user1: message " + i);
+            assertTrue(Files.isDirectory(directory.resolve(".history").resolve(ChatHistory.directoryName("lru-" + i))));
+        }
+        assertTrue(ChatHistory.openRooms() <= ChatHistory.OPEN_ROOMS);
+
+        // The first room's log was closed, it is opened again with its messages
+        ChatHistory.append("lru-0", "user1: again");
+        ChatLog.Range range = ChatHistory.read("lru-0", 0, 10);
+        assertEquals(0, range.first());
+        assertEquals(2, range.next());
+        assertTrue(ChatHistory.openRooms() <= ChatHistory.OPEN_ROOMS);
+    }
+
+    @Test
+    void unreadableHistoryIsAnErrorReply() throws Exception {
+        Files.createFile(directory.resolve(".history")); // no room log can be created below it
+
+        ServerSocket serverSocket = Server.openServerSocket(0);
+        ExecutorService executor = Server.newHandlerExecutor("thread");
+        Thread acceptor = new Thread(() -> Server.acceptClients(serverSocket, executor));
+        acceptor.start();
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", serverSocket.getLocalPort()))) {
+            MessageChannel connection = new MessageChannel(socket);
+            Message reply = new Message();
+            connection.send(Message.LOGIN, "user1", "1234");
+            assertEquals(Message.LOGIN_SUCCESS, connection.read(reply).type);
+            connection.send(Message.JOIN, "unreadable-history");
+            assertEquals(Message.JOINED, connection.read(reply).type);
+
+            connection.send(Message.HISTORY, "20");
+            assertEquals(Message.ERROR, connection.read(reply).type);
+
+            // Still connected
+            connection.send(Message.JOIN, "unreadable-history-2");
+            assertEquals(Message.JOINED, connection.read(reply).type);
+        } finally {
+            serverSocket.close();
+            acceptor.join();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import Shared.Message;
+import Shared.MessageChannel;
+
+/**
+ * Chat from a binary client may contain line breaks, which must not reach a text client as
+ * lines of their own.
+ */
+class ChatLineBreakTest {
+    @TempDir
+    Path directory;
+
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private Thread acceptor;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        System.setProperty("server.files.dir", directory.toString());
+        serverSocket = Server.openServerSocket(0);
+        executor = Server.newHandlerExecutor("thread");
+        acceptor = new Thread(() -> Server.acceptClients(serverSocket, executor));
+        acceptor.start();
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        serverSocket.close();
+        acceptor.join();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void binaryChatCannotForgeTextLines() throws Exception {
+        try (Socket text = new Socket("localhost", serverSocket.getLocalPort());
+             SocketChannel binary = SocketChannel.open(new InetSocketAddress("localhost", serverSocket.getLocalPort()))) {
+            text.setSoTimeout(10_000);
+            OutputStream out = text.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(text.getInputStream(), StandardCharsets.UTF_8));
+            out.write("LOGIN|user2|1234\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals(Message.name(Message.LOGIN_SUCCESS), in.readLine().split("\\|")[0]);
+
+            MessageChannel connection = new MessageChannel(binary);
+            Message reply = new Message();
+            connection.send(Message.LOGIN, "user1", "1234", Message.BINARY);
+            assertEquals(Message.LOGIN_SUCCESS, connection.read(reply).type);
+            connection.setBinary(true);
+
+            connection.send(Message.CHAT, "hi\nFILE_INFO|evil.bin|10\rDATA");
+            connection.send(Message.CHAT, "done");
+
+            assertEquals("CHAT|user1: hi FILE_INFO|evil.bin|10 DATA", in.readLine());
+            assertEquals("CHAT|user1: done", in.readLine());
+        }
+    }
+}
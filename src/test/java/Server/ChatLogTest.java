@@ -0,0 +1,84 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Small segments, so the log rolls and deletes segments while it is written.
+ */
+class ChatLogTest {
+    private static final int SEGMENT_BYTES = 64 * 1024;
+    private static final long RETAIN_BYTES = 512 * 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsBackEveryRecordAcrossSegments() throws IOException {
+        try (ChatLog log = new ChatLog(directory, SEGMENT_BYTES, Long.MAX_VALUE, Long.MAX_VALUE)) {
+            for (int i = 0; i < 20_000; i++) {
+                assertEquals(i, log.append(System.currentTimeMillis(), "user" + (i % 50) + ": message " + i));
+            }
+            assertTrue(log.segmentCount() > 1);
+            assertEquals(0, log.firstOffset());
+            check(log, 0, 20_000);
+
+            ChatLog.Range last = log.last(20);
+            assertEquals(19_980, last.first());
+            assertEquals(20_000, last.next());
+        }
+    }
+
+    @Test
+    void oldSegmentsAreDeleted() throws IOException {
+        try (ChatLog log = new ChatLog(directory, SEGMENT_BYTES, RETAIN_BYTES, Long.MAX_VALUE)) {
+            for (int i = 0; i < 50_000; i++) {
+                log.append(System.currentTimeMillis(), "user" + (i % 50) + ": message " + i);
+            }
+            assertTrue(log.firstOffset() > 0);
+            assertTrue(log.segmentCount() <= RETAIN_BYTES / SEGMENT_BYTES + 1, log.segmentCount() + " segments");
+            check(log, log.firstOffset(), log.nextOffset());
+        }
+    }
+
+    @Test
+    void continuesAfterARestart() throws IOException {
+        long next;
+        try (ChatLog log = new ChatLog(directory, SEGMENT_BYTES, RETAIN_BYTES, Long.MAX_VALUE)) {
+            for (int i = 0; i < 30_000; i++) {
+                log.append(System.currentTimeMillis(), "user" + (i % 50) + ": message " + i);
+            }
+            next = log.nextOffset();
+        }
+
+        try (ChatLog reopened = new ChatLog(directory, SEGMENT_BYTES, RETAIN_BYTES, Long.MAX_VALUE)) {
+            assertEquals(next, reopened.nextOffset());
+            assertEquals(next, reopened.append(System.currentTimeMillis(), "after the restart"));
+            check(reopened, reopened.firstOffset(), reopened.nextOffset());
+        }
+    }
+
+    // Every record read back must be the one asked for, ranges end where their records do
+    private static void check(ChatLog log, long from, long to) {
+        for (long offset = from; offset < to; ) {
+            ChatLog.Range range = log.read(offset, ChatLog.MAX_MESSAGES);
+            assertEquals(offset, range.first());
+            StringBuilder text = new StringBuilder();
+            for (ByteBuffer data : range.data()) {
+                text.append(StandardCharsets.UTF_8.decode(data.duplicate()));
+            }
+            for (String record : text.toString().split("\n")) {
+                assertEquals(offset, Long.parseLong(record.substring(0, record.indexOf('|'))));
+                offset++;
+            }
+            assertEquals(offset, range.next());
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Chat stays in the sender's room and LEAVE takes a client back to the lobby, in the blocking
+ * and the nio mode.
+ *
+ * Every message is awaited by the members it is meant for before the next one is sent, one that
+ * nobody is meant to get by a request of its sender. At the end each client gets a last message
+ * from its room, and what it heard up to there must be exactly what it was meant to hear;
+ * announcements of the server are left out.
+ */
+class ChatRoomTest {
+    @TempDir
+    Path directory;
+
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private Thread acceptor;
+    private final List<Member> members = new ArrayList<>();
+
+    @AfterEach
+    void stopServer() throws Exception {
+        for (Member member : members) {
+            member.socket.close();
+        }
+        if (serverSocket != null) {
+            serverSocket.close();
+            acceptor.join();
+            executor.shutdownNow();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"thread", "nio"})
+    void chatStaysInItsRoom(String mode) throws Exception {
+        int port = startServer(mode);
+        Member a = login(port, "user1");
+        Member b = login(port, "user2");
+        Member c = login(port, "user3");
+        Member d = login(port, "user4");
+        Member e = login(port, "user5");
+        a.join("alpha-" + mode);
+        b.join("alpha-" + mode);
+        c.join("beta-" + mode);
+        e.join("beta-" + mode);
+
+        a.chat("hello alpha");
+        b.awaitChat("user1: hello alpha");
+        c.chat("hello beta");
+        e.awaitChat("user3: hello beta");
+        d.chat("nobody else in the lobby");
+        d.join("lobby"); // answered once the chat before it went out
+
+        b.send("LEAVE");
+        b.awaitReply("JOINED|lobby|2");
+        d.chat("welcome back");
+        b.awaitChat("user4: welcome back");
+        a.chat("alone in alpha");
+
+        // The last messages, the clients have heard everything once they got them
+        a.join("lobby");
+        d.chat("end of the lobby");
+        a.awaitChat("user4: end of the lobby");
+        b.awaitChat("user4: end of the lobby");
+        b.chat("end of the lobby too");
+        a.awaitChat("user2: end of the lobby too");
+        d.awaitChat("user2: end of the lobby too");
+        e.chat("end of beta");
+        c.awaitChat("user5: end of beta");
+        c.chat("end of beta too");
+        e.awaitChat("user3: end of beta too");
+
+        assertEquals(List.of("user4: end of the lobby", "user2: end of the lobby too"), a.heard);
+        assertEquals(List.of("user1: hello alpha", "user4: welcome back", "user4: end of the lobby"), b.heard);
+        assertEquals(List.of("user5: end of beta"), c.heard);
+        assertEquals(List.of("user2: end of the lobby too"), d.heard);
+        assertEquals(List.of("user3: hello beta", "user3: end of beta too"), e.heard);
+    }
+
+    private int startServer(String mode) throws IOException {
+        System.setProperty("server.files.dir", directory.toString());
+        if (mode.equals("nio")) {
+            int port;
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            NioServer server = new NioServer(port, 1);
+            Thread thread = new Thread(() -> {
+                try {
+                    server.run();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            return port;
+        }
+        serverSocket = Server.openServerSocket(0);
+        executor = Server.newHandlerExecutor(mode);
+        acceptor = new Thread(() -> Server.acceptClients(serverSocket, executor));
+        acceptor.start();
+        return serverSocket.getLocalPort();
+    }
+
+    private Member login(int port, String username) throws Exception {
+        Socket socket = null;
+        for (int attempt = 0; socket == null; attempt++) {
+            try {
+                socket = new Socket("localhost", port);
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100); // the nio server may not be listening yet
+            }
+        }
+        socket.setSoTimeout(10_000);
+        Member member = new Member(socket);
+        members.add(member);
+        member.send("LOGIN|" + username + "|1234");
+        assertTrue(member.readLine().startsWith("LOGIN-SUCCESS"));
+        return member;
+    }
+
+    // One client on the text protocol, keeping the chat of other users it read
+    private static class Member {
+        final Socket socket;
+        final BufferedReader in;
+        final List<String> heard = new ArrayList<>();
+
+        Member(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        void send(String line) throws IOException {
+            socket.getOutputStream().write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        void chat(String text) throws IOException {
+            send("CHAT|" + text);
+        }
+
+        void join(String room) throws IOException {
+            send("JOIN|" + room);
+            awaitReply("JOINED|" + room + "|");
+        }
+
+        void awaitChat(String text) throws IOException {
+            awaitReply("CHAT|" + text);
+        }
+
+        // Reads until a line that starts with the prefix and returns it
+        String awaitReply(String prefix) throws IOException {
+            String line;
+            do {
+                line = readLine();
+            } while (!line.startsWith(prefix));
+            return line;
+        }
+
+        String readLine() throws IOException {
+            String line = in.readLine();
+            if (line == null) {
+                throw new IOException("Connection closed");
+            }
+            if (line.startsWith("CHAT|") && !line.startsWith("CHAT|[server]")) {
+                heard.add(line.substring("CHAT|".length()));
+            }
+            return line;
+        }
+    }
+}
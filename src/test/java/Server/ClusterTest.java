@@ -0,0 +1,165 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HexFormat;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import Shared.Message;
+import Shared.MessageChannel;
+import Shared.ServerProcess;
+
+/**
+ * Two nodes on local ports, each in a JVM of its own since the cluster is configured with system
+ * properties: chat and catalogs are relayed, a file of the other node is fetched and its copy
+ * follows the owner's changes, and the relay port turns away whoever lacks the secret.
+ */
+@Timeout(120)
+class ClusterTest {
+    private static final String SECRET = "shared between the nodes";
+
+    @TempDir
+    Path directory;
+
+    private ServerProcess a;
+    private ServerProcess b;
+
+    @AfterEach
+    void stopNodes() throws Exception {
+        if (a != null) {
+            a.close();
+        }
+        if (b != null) {
+            b.close();
+        }
+    }
+
+    @Test
+    void nodesShareChatAndFiles() throws Exception {
+        int relayA = ServerProcess.freePort();
+        int relayB = ServerProcess.freePort();
+        Path filesA = Files.createDirectories(directory.resolve("a").resolve("files"));
+        Path filesB = Files.createDirectories(directory.resolve("b").resolve("files"));
+        Files.writeString(filesA.resolve("a.txt"), "from node a");
+        Files.writeString(filesB.resolve("b.txt"), "from node b");
+        a = ServerProcess.start(directory.resolve("a"), ServerProcess.freePort(), "thread", "server.cluster.node=a",
+                "server.cluster.port=" + relayA, "server.cluster.peers=localhost:" + relayB, "server.cluster.secret=" + SECRET);
+        b = ServerProcess.start(directory.resolve("b"), ServerProcess.freePort(), "thread", "server.cluster.node=b",
+                "server.cluster.port=" + relayB, "server.cluster.peers=localhost:" + relayA, "server.cluster.secret=" + SECRET);
+
+        try (SocketChannel socketA = SocketChannel.open(new InetSocketAddress("localhost", a.port()));
+             SocketChannel socketB = SocketChannel.open(new InetSocketAddress("localhost", b.port()))) {
+            MessageChannel onA = login(socketA, "user1");
+            MessageChannel onB = login(socketB, "user2");
+            await(() -> size(onA, "b.txt") == 11, "b.txt listed on node a");
+            await(() -> size(onB, "a.txt") == 11, "a.txt listed on node b");
+
+            onA.send(Message.CHAT, "hello from a");
+            Message chat = new Message();
+            do {
+                onB.read(chat);
+            } while (chat.type != Message.CHAT || !chat.field(0).startsWith("user1:"));
+            assertEquals("user1: hello from a", chat.field(0));
+
+            // Fetched from b, then served from the copy on a
+            assertEquals("from node b", download(onA, "b.txt"));
+            Path copy = filesA.resolve(".cluster").resolve(HexFormat.of().formatHex("b".getBytes(StandardCharsets.UTF_8)))
+                    .resolve("b.txt");
+            assertTrue(Files.exists(copy));
+
+            // A new version replaces the copy, a removed file takes it along
+            Files.writeString(filesB.resolve("b.txt"), "changed on node b");
+            await(() -> size(onA, "b.txt") == 17, "the new b.txt listed on node a");
+            assertFalse(Files.exists(copy));
+            assertEquals("changed on node b", download(onA, "b.txt"));
+
+            Files.delete(filesB.resolve("b.txt"));
+            await(() -> size(onA, "b.txt") < 0, "b.txt gone from node a");
+            assertFalse(Files.exists(copy));
+        }
+    }
+
+    @Test
+    void relayPortNeedsTheSecret() throws Exception {
+        int relay = ServerProcess.freePort();
+        Files.createDirectories(directory.resolve("a").resolve("files"));
+        Files.writeString(directory.resolve("a").resolve("files").resolve("a.txt"), "from node a");
+        a = ServerProcess.start(directory.resolve("a"), ServerProcess.freePort(), "thread", "server.cluster.node=a",
+                "server.cluster.port=" + relay, "server.cluster.peers=localhost:" + ServerProcess.freePort(),
+                "server.cluster.secret=" + SECRET);
+
+        assertRefused(relay, Message.NODE_HELLO, "intruder", "1", "not the secret");
+        assertRefused(relay, Message.FETCH, "not the secret", "a.txt");
+        assertRefused(relay, Message.NODE_HELLO, "intruder", "1");
+    }
+
+    private static void assertRefused(int relayPort, byte type, String... fields) throws IOException {
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", relayPort))) {
+            MessageChannel connection = new MessageChannel(socket);
+            connection.setBinary(true);
+            connection.send(type, fields);
+            Message reply = connection.read(new Message());
+            assertEquals(Message.ERROR, reply.type);
+            assertEquals("Not a node of this cluster.", reply.field(0));
+            assertNull(connection.read(reply));
+        }
+    }
+
+    private static MessageChannel login(SocketChannel socket, String username) throws IOException {
+        MessageChannel connection = new MessageChannel(socket);
+        Message reply = new Message();
+        connection.send(Message.LOGIN, username, "1234", Message.BINARY);
+        assertEquals(Message.LOGIN_SUCCESS, connection.read(reply).type);
+        connection.setBinary(true);
+        return connection;
+    }
+
+    // The size the node lists the file with, -1 if it does not list it
+    private static long size(MessageChannel connection, String name) {
+        try {
+            connection.send(Message.LIST, name, "", "1");
+            Message page = connection.read(new Message());
+            assertEquals(Message.FILE_PAGE, page.type);
+            return page.fieldCount() > 2 && page.field(1).equals(name) ? Long.parseLong(page.field(2)) : -1;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String download(MessageChannel connection, String name) throws IOException {
+        connection.send(Message.DOWNLOAD, name);
+        Message info = connection.read(new Message());
+        assertEquals(Message.FILE_INFO, info.type);
+        long size = Long.parseLong(info.field(1));
+        Path target = directory.resolve("downloaded-" + name);
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            assertEquals(size, connection.readFileData(channel, size));
+        }
+        return Files.readString(target);
+    }
+
+    private static void await(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Timed out waiting for " + what);
+            }
+            Thread.sleep(100);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import Shared.ChunkedTransfer;
+import Shared.ContentHash;
+import Shared.DeltaSync;
+import Shared.Message;
+import Shared.MessageChannel;
+
+/**
+ * Uploading a changed file as a delta against the version the server has: the server ends up
+ * with the client's file, and far fewer bytes cross the socket than for the whole file.
+ */
+class DeltaUploadTest {
+    private static final int SIZE = 4 * 1024 * 1024;
+
+    // Counts what goes through the socket in both directions
+    private static class CountingChannel implements ByteChannel {
+        private final SocketChannel channel;
+        long bytes;
+
+        CountingChannel(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int n = channel.read(dst);
+            bytes += Math.max(0, n);
+            return n;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int n = channel.write(src);
+            bytes += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private interface Edit {
+        void apply(Path file) throws IOException;
+    }
+
+    @TempDir
+    Path directory;
+
+    private Path serverFiles;
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private Thread acceptor;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        serverFiles = Files.createDirectories(directory.resolve("server"));
+        System.setProperty("server.files.dir", serverFiles.toString());
+        serverSocket = Server.openServerSocket(0);
+        executor = Server.newHandlerExecutor("thread");
+        acceptor = new Thread(() -> Server.acceptClients(serverSocket, executor));
+        acceptor.start();
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        serverSocket.close();
+        acceptor.join();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void typicalEditsAreSentAsSmallDeltas() throws Exception {
+        Path file = directory.resolve("data.bin");
+        byte[] content = new byte[SIZE];
+        new Random(42).nextBytes(content);
+        Files.write(file, content);
+        assertTrue(DeltaSync.isUsable(SIZE));
+
+        Edit[] edits = {
+                path -> { // overwrite 100 bytes in the middle
+                    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                        channel.write(ByteBuffer.wrap(new byte[100]), Files.size(path) / 2);
+                    }
+                },
+                path -> splice(path, 1000, 0, new byte[10]),
+                path -> splice(path, Files.size(path), 0, new byte[1024]),
+                path -> splice(path, Files.size(path) / 2, 4096, new byte[0])
+        };
+
+        long whole = upload(file, false);
+        for (Edit edit : edits) {
+            edit.apply(file);
+            long delta = upload(file, true);
+            Path stored = serverFiles.resolve("data.bin");
+            assertEquals(ContentHash.sha256(file), ContentHash.sha256(stored));
+            assertTrue(delta * 10 < whole, delta + " bytes for the delta, " + whole + " for the whole file");
+        }
+    }
+
+    // Uploads the file like the client does and returns the bytes that crossed the socket. A delta
+    // upload sends the file's hash, which the server needs to accept it; a whole upload sends none
+    private long upload(Path file, boolean delta) throws Exception {
+        try (CountingChannel channel = new CountingChannel(
+                SocketChannel.open(new InetSocketAddress("localhost", serverSocket.getLocalPort())))) {
+            MessageChannel connection = new MessageChannel(channel);
+            Message message = new Message();
+            connection.send(Message.LOGIN, "user1", "1234");
+            assertEquals(Message.LOGIN_SUCCESS, connection.read(message).type);
+
+            String size = String.valueOf(Files.size(file));
+            channel.bytes = 0;
+            if (delta) {
+                String hashOption = Message.SHA256 + "=" + ContentHash.sha256(file);
+                connection.send(Message.UPLOAD_REQUEST, "data.bin", size, Message.RESUME, hashOption, Message.DELTA);
+            } else {
+                connection.send(Message.UPLOAD_REQUEST, "data.bin", size, Message.RESUME);
+            }
+
+            Message reply = connection.read(message);
+            try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (delta) {
+                    assertEquals(Message.SIGNATURES, reply.type);
+                    DeltaSync.sendDelta(connection, DeltaSync.readSignatures(connection, reply), fileChannel);
+                } else {
+                    assertEquals(Message.UPLOAD_READY, reply.type);
+                    connection.send(Message.UPLOAD_START);
+                    ChunkedTransfer.send(connection, fileChannel, Long.parseLong(reply.field(0)), fileChannel.size(), true);
+                }
+            }
+            assertEquals(Message.UPLOAD_SUCCESS, connection.read(message).type);
+            long bytes = channel.bytes;
+            connection.send(Message.EXIT);
+            return bytes;
+        }
+    }
+
+    // Replaces removed bytes at position with the inserted ones
+    private static void splice(Path path, long position, int removed, byte[] inserted) throws IOException {
+        byte[] data = Files.readAllBytes(path);
+        byte[] result = new byte[data.length - removed + inserted.length];
+        System.arraycopy(data, 0, result, 0, (int) position);
+        System.arraycopy(inserted, 0, result, (int) position, inserted.length);
+        System.arraycopy(data, (int) position + removed, result, (int) position + inserted.length,
+                data.length - (int) position - removed);
+        Files.write(path, result);
+    }
+}
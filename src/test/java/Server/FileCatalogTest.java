@@ -0,0 +1,78 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import Shared.EncodedMessage;
+
+class FileCatalogTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void listsRegularFilesOnly() throws IOException {
+        Files.createFile(directory.resolve("b.mp3"));
+        Files.createFile(directory.resolve("a.mp3"));
+        Files.createDirectory(directory.resolve("albums"));
+        Files.createFile(directory.resolve(".hidden"));
+        try (FileCatalog catalog = new FileCatalog(directory, new BlobStore(directory))) {
+            assertEquals(2, catalog.size());
+            assertEquals("FILE_LIST|a.mp3,b.mp3", text(catalog.list()));
+        }
+    }
+
+    @Test
+    void pagesThroughAPrefix() throws IOException {
+        for (int i = 0; i < 250; i++) {
+            Files.createFile(directory.resolve(String.format("track-%03d.mp3", i)));
+        }
+        Files.createFile(directory.resolve("other.mp3"));
+        try (FileCatalog catalog = new FileCatalog(directory, new BlobStore(directory))) {
+            List<String> names = new ArrayList<>();
+            String after = "";
+            do {
+                String[] fields = text(catalog.page("track-", after, FileCatalog.DEFAULT_PAGE_SIZE)).split("\\|", -1);
+                assertTrue((fields.length - 2) / 4 <= FileCatalog.DEFAULT_PAGE_SIZE);
+                for (int i = 2; i < fields.length; i += 4) {
+                    names.add(fields[i]);
+                }
+                after = fields[1];
+            } while (!after.isEmpty());
+
+            assertEquals(250, names.size());
+            for (int i = 0; i < 250; i++) {
+                assertEquals(String.format("track-%03d.mp3", i), names.get(i));
+            }
+        }
+    }
+
+    // Changes made directly on disk show up through the WatchService
+    @Test
+    void followsChangesBehindItsBack() throws Exception {
+        Files.createFile(directory.resolve("old-track.mp3"));
+        try (FileCatalog catalog = new FileCatalog(directory, new BlobStore(directory))) {
+            Files.createFile(directory.resolve("new-track.mp3"));
+            Files.delete(directory.resolve("old-track.mp3"));
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (System.nanoTime() < deadline && !"FILE_LIST|new-track.mp3".equals(text(catalog.list()))) {
+                Thread.sleep(10);
+            }
+            assertEquals("FILE_LIST|new-track.mp3", text(catalog.list()));
+            assertEquals(1, catalog.size());
+        }
+    }
+
+    private static String text(EncodedMessage message) {
+        return StandardCharsets.UTF_8.decode(message.encoded(false).duplicate()).toString().strip();
+    }
+}
@@ -0,0 +1,72 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import Shared.Message;
+import Shared.MessageChannel;
+
+/**
+ * A plain DOWNLOAD delivers the file unchanged, sent with zero-copy or through the buffer.
+ */
+class FileTransferTest {
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void restoreZeroCopy() {
+        ClientHandler.zeroCopy = true;
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void downloadArrivesIntact(boolean zeroCopy) throws Exception {
+        Path files = Files.createDirectories(directory.resolve("files"));
+        System.setProperty("server.files.dir", files.toString());
+        byte[] content = new byte[5 * 1024 * 1024 + 123];
+        new Random(42).nextBytes(content);
+        Path original = Files.write(files.resolve("download.bin"), content);
+        ClientHandler.zeroCopy = zeroCopy;
+
+        ServerSocket serverSocket = Server.openServerSocket(0);
+        ExecutorService executor = Server.newHandlerExecutor("thread");
+        Thread acceptor = new Thread(() -> Server.acceptClients(serverSocket, executor));
+        acceptor.start();
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", serverSocket.getLocalPort()))) {
+            MessageChannel connection = new MessageChannel(socket);
+            Message reply = new Message();
+            connection.send(Message.LOGIN, "user1", "1234", Message.BINARY);
+            assertEquals(Message.LOGIN_SUCCESS, connection.read(reply).type);
+            connection.setBinary(true);
+
+            Path target = directory.resolve("received.bin");
+            for (int i = 0; i < 2; i++) {
+                connection.send(Message.DOWNLOAD, "download.bin");
+                assertEquals(Message.FILE_INFO, connection.read(reply).type);
+                long length = Long.parseLong(reply.field(1));
+                assertEquals(content.length, length);
+                try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    assertEquals(length, connection.readFileData(channel, length));
+                }
+                assertEquals(-1, Files.mismatch(original, target));
+            }
+        } finally {
+            serverSocket.close();
+            acceptor.join();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import Shared.ChunkedTransfer;
+import Shared.Message;
+import Shared.MessageChannel;
+
+class HotFileCacheTest {
+    private static final int SIZE = 1024 * 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void mapsAFileOnItsSecondDownload() throws IOException {
+        HotFileCache cache = new HotFileCache(8L * SIZE, 2);
+        byte[] content = content(1, SIZE);
+        File file = Files.write(directory.resolve("track.mp3"), content).toFile();
+
+        assertNull(cache.get(file));
+        HotFileCache.Region region = cache.get(file);
+        assertNotNull(region);
+        assertSame(region, cache.get(file));
+        assertEquals(1, cache.hits());
+
+        byte[] cached = new byte[SIZE];
+        region.slice(0, SIZE).get(cached);
+        assertArrayEquals(content, cached);
+    }
+
+    @Test
+    void staysWithinItsBudget() throws IOException {
+        HotFileCache cache = new HotFileCache(4L * SIZE, 1);
+        for (int i = 0; i < 10; i++) {
+            File file = Files.write(directory.resolve("track-" + i + ".mp3"), content(i, SIZE)).toFile();
+            assertNotNull(cache.get(file));
+            assertTrue(cache.cachedBytes() <= 4L * SIZE);
+        }
+        assertEquals(4, cache.cachedFiles());
+        assertEquals(6, cache.evictions());
+
+        // A file bigger than a quarter of the budget is never mapped
+        File big = Files.write(directory.resolve("big.mp3"), content(11, SIZE + 1)).toFile();
+        assertNull(cache.get(big));
+        assertNull(cache.get(big));
+    }
+
+    @Test
+    void replacedFileIsMappedAgain() throws IOException {
+        HotFileCache cache = new HotFileCache(8L * SIZE, 1);
+        Path path = Files.write(directory.resolve("track.mp3"), content(1, SIZE));
+        HotFileCache.Region old = cache.get(path.toFile());
+
+        byte[] replaced = content(2, SIZE / 2);
+        Files.write(path, replaced);
+        HotFileCache.Region region = cache.get(path.toFile());
+        assertTrue(region != old);
+        assertEquals(SIZE / 2, region.size());
+        assertEquals(SIZE / 2, cache.cachedBytes());
+    }
+
+    // Chunked downloads sent from the mapping carry the file's bytes and checksums
+    @Test
+    void downloadsFromTheCacheArriveIntact() throws Exception {
+        Path files = Files.createDirectories(directory.resolve("files"));
+        System.setProperty("server.files.dir", files.toString());
+        Path original = Files.write(files.resolve("track.mp3"), content(3, 3 * ChunkedTransfer.CHUNK_SIZE + 100));
+        HotFileCache cache = new HotFileCache(64L * SIZE, 2);
+        HotFileCache previous = HotFileCache.shared();
+        HotFileCache.setShared(cache);
+
+        ServerSocket serverSocket = Server.openServerSocket(0);
+        ExecutorService executor = Server.newHandlerExecutor("thread");
+        Thread acceptor = new Thread(() -> Server.acceptClients(serverSocket, executor));
+        acceptor.start();
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", serverSocket.getLocalPort()))) {
+            MessageChannel connection = new MessageChannel(socket);
+            Message reply = new Message();
+            connection.send(Message.LOGIN, "user1", "1234", Message.BINARY);
+            assertEquals(Message.LOGIN_SUCCESS, connection.read(reply).type);
+            connection.setBinary(true);
+
+            Path target = directory.resolve("received.mp3");
+            for (int i = 0; i < 3; i++) {
+                connection.send(Message.DOWNLOAD, "track.mp3", "0");
+                assertEquals(Message.FILE_INFO, connection.read(reply).type);
+                long size = Long.parseLong(reply.field(1));
+                try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    assertEquals(size, ChunkedTransfer.receiveRange(connection, reply, channel, 0, size, null));
+                }
+                assertEquals(-1, Files.mismatch(original, target));
+            }
+            assertEquals(1, cache.cachedFiles());
+            assertEquals(1, cache.hits());
+        } finally {
+            HotFileCache.setShared(previous);
+            serverSocket.close();
+            acceptor.join();
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] content(long seed, int size) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+}
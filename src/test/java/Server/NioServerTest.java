@@ -0,0 +1,209 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The nio mode speaks the text protocol like the blocking modes and behaves like them.
+ */
+class NioServerTest {
+    @TempDir
+    Path directory;
+
+    private int port;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        System.setProperty("server.files.dir", directory.toString());
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        NioServer server = new NioServer(port, 1);
+        Thread thread = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Passwords are checked off the event loop, the commands behind a LOGIN still wait for it
+    @Test
+    void commandsBehindALoginWaitForIt() throws Exception {
+        try (Socket socket = connect()) {
+            BufferedReader in = reader(socket);
+            // All in one write, the JOIN arrives while the password is still being checked
+            socket.getOutputStream().write("LOGIN|user1|1234\nJOIN|nio-login\nLOGIN|user2|wrong\nJOIN|other\n"
+                    .getBytes(StandardCharsets.UTF_8));
+
+            assertEquals("LOGIN-SUCCESS", in.readLine());
+            assertTrue(in.readLine().startsWith("JOINED|nio-login|"));
+            assertEquals("LOGIN-FAILED", in.readLine());
+            assertTrue(in.readLine().startsWith("JOINED|other|"));
+        }
+    }
+
+    @Test
+    void uploadReplacesAFileOfTheSameName() throws Exception {
+        Files.writeString(directory.resolve("notes.txt"), "old");
+        try (Socket socket = connect()) {
+            BufferedReader in = reader(socket);
+            OutputStream out = socket.getOutputStream();
+            out.write("LOGIN|user1|1234\nUPLOAD_REQUEST|notes.txt|3\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals("LOGIN-SUCCESS", in.readLine());
+            assertEquals("UPLOAD_READY", in.readLine());
+
+            out.write("UPLOAD_START\nnew".getBytes(StandardCharsets.UTF_8));
+            assertEquals("UPLOAD_SUCCESS|notes.txt", in.readLine());
+        }
+        assertEquals("new", Files.readString(directory.resolve("notes.txt")));
+    }
+
+    @Test
+    void negativeUploadLengthIsRefused() throws Exception {
+        try (Socket socket = connect()) {
+            BufferedReader in = reader(socket);
+            socket.getOutputStream().write("LOGIN|user1|1234\nUPLOAD_REQUEST|notes.txt|-5\nUPLOAD_START\nLIST\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            assertEquals("LOGIN-SUCCESS", in.readLine());
+            assertEquals("ERROR|Invalid file length.", in.readLine());
+            assertEquals("ERROR|No upload requested.", in.readLine());
+            assertTrue(in.readLine().startsWith("FILE_LIST"));
+        }
+        assertFalse(Files.exists(directory.resolve("notes.txt")));
+    }
+
+    // Commands sent without reading the answers are read one response at a time, and all answered
+    @Test
+    void pipelinedDownloadsAreAnsweredInOrder() throws Exception {
+        byte[] content = new byte[256 * 1024];
+        new Random(3).nextBytes(content);
+        Files.write(directory.resolve("track.mp3"), content);
+
+        try (Socket socket = connect()) {
+            socket.setSoTimeout(10_000);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            StringBuilder commands = new StringBuilder("LOGIN|user1|1234\n");
+            for (int i = 0; i < 200; i++) {
+                commands.append("DOWNLOAD|track.mp3\n");
+            }
+            commands.append("EXIT\n");
+            socket.getOutputStream().write(commands.toString().getBytes(StandardCharsets.UTF_8));
+            Thread.sleep(200); // let the server fill the socket
+
+            assertEquals("LOGIN-SUCCESS", readLine(in));
+            byte[] received = new byte[content.length];
+            for (int i = 0; i < 200; i++) {
+                assertEquals("FILE_INFO|track.mp3|" + content.length, readLine(in));
+                in.readFully(received);
+                assertArrayEquals(content, received);
+            }
+            assertEquals(-1, in.read());
+        }
+    }
+
+    // Chat from another client may arrive before or after a response, never inside it
+    @Test
+    void chatDuringADownloadStaysOutOfTheFile() throws Exception {
+        byte[] content = new byte[1024 * 1024];
+        new Random(7).nextBytes(content);
+        Files.write(directory.resolve("big.bin"), content);
+
+        try (Socket downloader = connect(); Socket chatter = connect()) {
+            downloader.setSoTimeout(10_000);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(downloader.getInputStream()));
+            OutputStream out = downloader.getOutputStream();
+            out.write("LOGIN|user1|1234\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals("LOGIN-SUCCESS", readLine(in));
+
+            BufferedReader chatterIn = reader(chatter);
+            chatter.getOutputStream().write("LOGIN|user2|1234\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals("LOGIN-SUCCESS", chatterIn.readLine());
+            Thread chat = new Thread(() -> {
+                try {
+                    OutputStream chatOut = chatter.getOutputStream();
+                    while (!Thread.currentThread().isInterrupted()) {
+                        chatOut.write("CHAT|in the middle\n".getBytes(StandardCharsets.UTF_8));
+                    }
+                } catch (IOException e) {
+                    // closed at the end of the test
+                }
+            });
+            chat.start();
+            try {
+                for (int i = 0; i < 10; i++) {
+                    // Make room for the chat that piled up and ask for the file right away, so
+                    // the server has chat waiting when it answers
+                    for (int line = 0; line < 500; line++) {
+                        assertTrue(readLine(in).startsWith("CHAT|"));
+                    }
+                    out.write("DOWNLOAD|big.bin\n".getBytes(StandardCharsets.UTF_8));
+                    String line;
+                    while ((line = readLine(in)).startsWith("CHAT|")) {
+                        // chat sent before the response
+                    }
+                    assertEquals("FILE_INFO|big.bin|" + content.length, line);
+                    byte[] received = new byte[content.length];
+                    in.readFully(received);
+                    assertArrayEquals(content, received);
+                }
+            } finally {
+                chat.interrupt();
+                chatter.close();
+                chat.join();
+            }
+        }
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("Connection closed");
+            }
+            line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        socket.setSoTimeout(10_000);
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    // The loop thread may not be listening yet
+    private Socket connect() throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+}
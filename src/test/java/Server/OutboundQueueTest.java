@@ -0,0 +1,146 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import Shared.EncodedMessage;
+import Shared.Message;
+
+/**
+ * What each slow consumer policy does once a client's queue is full. The client is a sink that
+ * does not take its first message until the test lets it.
+ */
+class OutboundQueueTest {
+    private static final int CAPACITY = 4;
+
+    private final SlowSink sink = new SlowSink();
+
+    @AfterEach
+    void restoreProperties() {
+        System.clearProperty("server.slowConsumerPolicy");
+        System.clearProperty("server.outboundQueueSize");
+        OutboundQueue.configure();
+    }
+
+    @Test
+    void dropOldestKeepsTheNewestMessages() throws Exception {
+        OutboundQueue queue = fill(OutboundQueue.Policy.DROP_OLDEST, 10);
+        assertEquals(CAPACITY, queue.depth());
+        assertEquals(6, queue.dropped());
+
+        sink.release();
+        assertEquals(List.of("0", "7", "8", "9", "10"), sink.take(5));
+        assertFalse(sink.disconnected);
+    }
+
+    @Test
+    void coalesceTellsTheClientHowManyItMissed() throws Exception {
+        OutboundQueue queue = fill(OutboundQueue.Policy.COALESCE, 10);
+        assertEquals(8, queue.dropped());
+
+        sink.release();
+        assertEquals(List.of("0", "[server] 8 messages skipped because you fell behind", "9", "10"), sink.take(4));
+        assertFalse(sink.disconnected);
+    }
+
+    @Test
+    void disconnectClosesTheSlowClient() throws Exception {
+        OutboundQueue queue = fill(OutboundQueue.Policy.DISCONNECT, CAPACITY);
+        assertFalse(queue.offer(message("overflow")));
+        assertTrue(sink.disconnected);
+        assertFalse(queue.offer(message("after")));
+
+        sink.release();
+        assertEquals(List.of("0"), sink.take(1));
+    }
+
+    @Test
+    void policyAndSizeAreCheckedAtStartup() {
+        System.setProperty("server.slowConsumerPolicy", "Coalesce");
+        System.setProperty("server.outboundQueueSize", "16");
+        OutboundQueue.configure();
+        assertEquals(OutboundQueue.Policy.COALESCE, OutboundQueue.policy());
+        assertEquals(16, OutboundQueue.capacity());
+
+        System.setProperty("server.slowConsumerPolicy", "drop-newest");
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, OutboundQueue::configure);
+        assertTrue(e.getMessage().contains("server.slowConsumerPolicy"), e.getMessage());
+
+        System.setProperty("server.slowConsumerPolicy", "disconnect");
+        System.setProperty("server.outboundQueueSize", "0");
+        e = assertThrows(IllegalArgumentException.class, OutboundQueue::configure);
+        assertTrue(e.getMessage().contains("server.outboundQueueSize"), e.getMessage());
+        assertEquals(OutboundQueue.Policy.COALESCE, OutboundQueue.policy());
+    }
+
+    // Message "0" is taken by the writer, which then blocks; messages 1 to count are queued behind it
+    private OutboundQueue fill(OutboundQueue.Policy policy, int count) throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(sink, task -> new Thread(task).start(), policy, CAPACITY);
+        assertTrue(queue.offer(message("0")));
+        assertTrue(sink.writing.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i <= count; i++) {
+            assertTrue(queue.offer(message(String.valueOf(i))));
+        }
+        return queue;
+    }
+
+    private static EncodedMessage message(String text) {
+        return new EncodedMessage(Message.CHAT, text);
+    }
+
+    private static class SlowSink implements OutboundQueue.Sink {
+        final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final BlockingQueue<String> written = new LinkedBlockingQueue<>();
+        volatile boolean disconnected;
+
+        @Override
+        public void write(EncodedMessage message) {
+            writing.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            ByteBuffer line = message.encoded(false);
+            String text = StandardCharsets.UTF_8.decode(line.duplicate()).toString().trim();
+            written.add(text.substring(text.indexOf('|') + 1));
+        }
+
+        @Override
+        public void disconnect() {
+            disconnected = true;
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        // The next messages the client got, then checks that nothing else follows
+        List<String> take(int count) throws InterruptedException {
+            List<String> messages = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String message = written.poll(10, TimeUnit.SECONDS);
+                if (message == null) {
+                    break;
+                }
+                messages.add(message);
+            }
+            assertNull(written.poll(100, TimeUnit.MILLISECONDS));
+            return messages;
+        }
+    }
+}
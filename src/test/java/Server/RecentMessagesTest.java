@@ -0,0 +1,111 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RecentMessagesTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void replayIsTheSameAsFromTheLog() throws IOException {
+        try (ChatLog log = new ChatLog(directory)) {
+            RecentMessages recent = new RecentMessages(RecentMessages.CAPACITY);
+            for (int i = 0; i < 3 * RecentMessages.CAPACITY; i++) {
+                long time = System.currentTimeMillis();
+                String text = "alice: message " + i;
+                recent.add(log.append(time, text), time, text);
+            }
+            assertEquals(content(log.last(20)), content(recent.last(20)));
+            assertEquals(content(log.last(RecentMessages.CAPACITY)), content(recent.last(RecentMessages.CAPACITY)));
+        }
+    }
+
+    // The log answers what the ring does not hold
+    @Test
+    void missingMessagesAreNoReplay() {
+        RecentMessages recent = new RecentMessages(8);
+        for (int i = 0; i < 20; i++) {
+            recent.add(i, i, "alice: message " + i);
+        }
+        assertEquals(8, recent.last(8).next() - recent.last(8).first());
+        assertNull(recent.last(9));
+
+        recent.add(20, 20, "alice: " + "long ".repeat(RecentMessages.SLOT_SIZE));
+        assertNull(recent.last(1));
+    }
+
+    // Senders take offsets like the log hands them out, readers check every replay they get
+    @Test
+    void concurrentSendersNeverTearARecord() throws InterruptedException {
+        RecentMessages recent = new RecentMessages(RecentMessages.CAPACITY);
+        AtomicLong offsets = new AtomicLong();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong replays = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread(() -> {
+                while (running.get()) {
+                    long offset = offsets.getAndIncrement();
+                    recent.add(offset, offset * 3, "user: message " + offset + (offset % 7 == 0 ? " padding".repeat(20) : ""));
+                }
+            }));
+        }
+        for (int i = 0; i < 2; i++) {
+            threads.add(new Thread(() -> {
+                while (running.get()) {
+                    ChatLog.Range range = recent.last(20);
+                    if (range == null) {
+                        continue;
+                    }
+                    replays.incrementAndGet();
+                    long expected = range.first();
+                    for (String record : content(range).split("\n")) {
+                        if (record.isEmpty()) {
+                            continue;
+                        }
+                        String[] parts = record.split("\\|", 3);
+                        long offset = Long.parseLong(parts[0]);
+                        if (offset != expected++ || Long.parseLong(parts[1]) != offset * 3
+                                || !parts[2].startsWith("user: message " + offset)) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(1000);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, errors.get());
+        assertTrue(replays.get() > 0);
+    }
+
+    private static String content(ChatLog.Range range) {
+        StringBuilder text = new StringBuilder();
+        for (ByteBuffer data : range.data()) {
+            text.append(StandardCharsets.UTF_8.decode(data.duplicate()));
+        }
+        return text.toString();
+    }
+}
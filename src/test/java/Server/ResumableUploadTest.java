@@ -0,0 +1,143 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import Shared.ChunkedTransfer;
+import Shared.ContentHash;
+import Shared.Message;
+import Shared.MessageChannel;
+
+/**
+ * A resumable upload only continues the partial file of the same content, and the finished file
+ * must have the hash the client announced.
+ */
+class ResumableUploadTest {
+    private static final long SIZE = 3L * ChunkedTransfer.CHUNK_SIZE;
+
+    @TempDir
+    Path directory;
+
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private Thread acceptor;
+    private Path first;
+    private Path second;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        Path files = Files.createDirectories(directory.resolve("files"));
+        System.setProperty("server.files.dir", files.toString());
+        serverSocket = Server.openServerSocket(0);
+        executor = Server.newHandlerExecutor("thread");
+        acceptor = new Thread(() -> Server.acceptClients(serverSocket, executor));
+        acceptor.start();
+
+        first = createFile("first.bin", 1);
+        second = createFile("second.bin", 2);
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        serverSocket.close();
+        acceptor.join();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void otherContentOfTheSameNameAndSizeStartsOver() throws Exception {
+        // Interrupted after two of three chunks
+        try (SocketChannel socket = connect()) {
+            MessageChannel connection = login(socket);
+            assertEquals("0", requestUpload(connection, first));
+            sendChunks(connection, first, 0, 2L * ChunkedTransfer.CHUNK_SIZE);
+        }
+
+        // The same content continues where it stopped
+        try (SocketChannel socket = connect()) {
+            assertEquals(String.valueOf(2L * ChunkedTransfer.CHUNK_SIZE), requestUpload(login(socket), first));
+        }
+
+        // Other content with the same name and size is sent from the start and stored as it is
+        try (SocketChannel socket = connect()) {
+            MessageChannel connection = login(socket);
+            assertEquals("0", requestUpload(connection, second));
+            sendChunks(connection, second, 0, SIZE);
+            assertEquals(Message.UPLOAD_SUCCESS, connection.read(new Message()).type);
+        }
+        assertEquals(ContentHash.sha256(second), ContentHash.sha256(FileStore.resolve("data.bin").toPath()));
+    }
+
+    @Test
+    void uploadThatDoesNotMatchItsHashIsDropped() throws Exception {
+        try (SocketChannel socket = connect()) {
+            MessageChannel connection = login(socket);
+            assertEquals("0", requestUpload(connection, first, ContentHash.sha256(first)));
+            sendChunks(connection, second, 0, SIZE);
+
+            Message reply = connection.read(new Message());
+            assertEquals(Message.UPLOAD_FAILED, reply.type);
+            assertEquals("0", reply.field(0));
+        }
+        assertFalse(FileStore.exists("data.bin"));
+    }
+
+    private Path createFile(String name, long seed) throws IOException {
+        byte[] content = new byte[(int) SIZE];
+        new Random(seed).nextBytes(content);
+        return Files.write(directory.resolve(name), content);
+    }
+
+    private SocketChannel connect() throws IOException {
+        return SocketChannel.open(new InetSocketAddress("localhost", serverSocket.getLocalPort()));
+    }
+
+    private static MessageChannel login(SocketChannel socket) throws IOException {
+        MessageChannel connection = new MessageChannel(socket);
+        connection.send(Message.LOGIN, "user1", "1234");
+        assertEquals(Message.LOGIN_SUCCESS, connection.read(new Message()).type);
+        return connection;
+    }
+
+    private static String requestUpload(MessageChannel connection, Path file) throws Exception {
+        return requestUpload(connection, file, ContentHash.sha256(file));
+    }
+
+    // Asks to upload the file as "data.bin" and returns the offset the server continues from. The
+    // server lets go of an interrupted upload of the name only once it has seen the socket close
+    private static String requestUpload(MessageChannel connection, Path file, String hash) throws Exception {
+        Message reply = new Message();
+        for (int attempt = 0; attempt < 100; attempt++) {
+            connection.send(Message.UPLOAD_REQUEST, "data.bin", String.valueOf(Files.size(file)), Message.RESUME,
+                    Message.SHA256 + "=" + hash);
+            connection.read(reply);
+            if (reply.type != Message.UPLOAD_DENIED) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        assertEquals(Message.UPLOAD_READY, reply.type);
+        return reply.field(0);
+    }
+
+    private static void sendChunks(MessageChannel connection, Path file, long from, long to) throws IOException {
+        connection.send(Message.UPLOAD_START);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ChunkedTransfer.send(connection, channel, from, to, false);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import Shared.Message;
+
+/**
+ * Both execution modes of the blocking server log clients in and fan chat out to everybody.
+ */
+class ServerModeTest {
+    @TempDir
+    Path directory;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"thread", "virtual"})
+    void chatReachesEveryOtherClient(String mode) throws Exception {
+        System.setProperty("server.files.dir", directory.toString());
+        ServerSocket serverSocket = Server.openServerSocket(0);
+        ExecutorService executor = Server.newHandlerExecutor(mode);
+        Thread acceptor = new Thread(() -> Server.acceptClients(serverSocket, executor));
+        acceptor.start();
+
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            List<BufferedReader> readers = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                Socket socket = new Socket("localhost", serverSocket.getLocalPort());
+                sockets.add(socket);
+                socket.setSoTimeout(10_000);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                readers.add(in);
+                socket.getOutputStream().write(("LOGIN|user" + (1 + i % 5) + "|1234\nJOIN|mode-" + mode + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                assertTrue(in.readLine().startsWith(Message.name(Message.LOGIN_SUCCESS)));
+                String joined;
+                do {
+                    joined = in.readLine();
+                } while (!joined.startsWith("JOINED|"));
+            }
+
+            StringBuilder chat = new StringBuilder();
+            for (int i = 0; i < 50; i++) {
+                chat.append("CHAT|message ").append(i).append('\n');
+            }
+            sockets.get(0).getOutputStream().write(chat.toString().getBytes(StandardCharsets.UTF_8));
+
+            for (BufferedReader in : readers.subList(1, readers.size())) {
+                int received = 0;
+                while (received < 50) {
+                    String line = in.readLine();
+                    if (line.startsWith("CHAT|user1: message ")) {
+                        assertEquals("CHAT|user1: message " + received, line);
+                        received++;
+                    }
+                }
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            serverSocket.close();
+            acceptor.join();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import Shared.Message;
+
+/**
+ * The client registry under churn: sessions added, broadcast to and removed from many threads at
+ * once, in memory and through a server with clients connecting and leaving concurrently.
+ */
+class SessionRegistryTest {
+    @TempDir
+    Path directory;
+
+    // Like ClientHandler, two sessions of the same user are different sessions
+    private static final class TestSession implements Session {
+        private final String username;
+
+        TestSession(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+    }
+
+    @Test
+    void concurrentChurnLeavesNothingBehind() throws Exception {
+        SessionRegistry<TestSession> sessions = new SessionRegistry<>();
+        AtomicLong failures = new AtomicLong();
+
+        // Every thread adds a few sessions, walks over everybody and removes its sessions again
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 16; t++) {
+            int id = t;
+            Thread thread = new Thread(() -> {
+                TestSession[] own = new TestSession[8];
+                for (int round = 0; round < 2000; round++) {
+                    try {
+                        for (int i = 0; i < own.length; i++) {
+                            own[i] = new TestSession("user-" + id + "-" + (round * own.length + i));
+                            sessions.add(own[i]);
+                            sessions.bindUsername(own[i], null, own[i].getUsername());
+                        }
+                        int seen = 0;
+                        for (TestSession session : sessions) {
+                            if (session.getUsername().startsWith("user-" + id + "-")) {
+                                seen++;
+                            }
+                        }
+                        if (seen != own.length || sessions.find(own[0].getUsername()) != own[0]) {
+                            failures.incrementAndGet();
+                        }
+                        for (TestSession session : own) {
+                            if (!sessions.remove(session)) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+        assertEquals(0, sessions.size());
+        assertNull(sessions.find("user-0-0"));
+    }
+
+    @Test
+    void newerLoginOfTheSameUserStaysFindable() {
+        SessionRegistry<TestSession> sessions = new SessionRegistry<>();
+        TestSession first = new TestSession("alice");
+        TestSession second = new TestSession("alice");
+        sessions.add(first);
+        sessions.bindUsername(first, null, "alice");
+        sessions.add(second);
+        sessions.bindUsername(second, null, "alice");
+
+        sessions.remove(first);
+        assertEquals(second, sessions.find("alice"));
+        sessions.remove(second);
+        assertNull(sessions.find("alice"));
+    }
+
+    // Clients connect, log in, chat and disconnect concurrently, half of them with EXIT
+    @Test
+    void socketChurnEmptiesTheServerRegistry() throws Exception {
+        System.setProperty("server.files.dir", directory.toString());
+        ServerSocket serverSocket = Server.openServerSocket(0);
+        ExecutorService executor = Server.newHandlerExecutor("virtual");
+        Thread acceptor = new Thread(() -> Server.acceptClients(serverSocket, executor));
+        acceptor.start();
+        try {
+            AtomicLong failures = new AtomicLong();
+            List<Thread> clients = new ArrayList<>();
+            for (int c = 0; c < 50; c++) {
+                int id = c;
+                Thread client = new Thread(() -> {
+                    for (int i = 0; i < 10; i++) {
+                        try (Socket socket = new Socket("localhost", serverSocket.getLocalPort())) {
+                            socket.setSoTimeout(10_000);
+                            OutputStream out = socket.getOutputStream();
+                            BufferedReader in = new BufferedReader(
+                                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                            out.write(("LOGIN|user" + (1 + id % 5) + "|1234\nCHAT|churn " + id + "-" + i + "\n")
+                                    .getBytes(StandardCharsets.UTF_8));
+                            // Chat of the other clients may arrive before the reply
+                            String reply;
+                            do {
+                                reply = in.readLine();
+                            } while (reply != null && reply.startsWith("CHAT|"));
+                            if (reply == null || !reply.startsWith(Message.name(Message.LOGIN_SUCCESS))) {
+                                failures.incrementAndGet();
+                            }
+                            if (i % 2 == 0) {
+                                out.write("EXIT\n".getBytes(StandardCharsets.UTF_8));
+                            }
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                });
+                clients.add(client);
+                client.start();
+            }
+            for (Thread client : clients) {
+                client.join();
+            }
+            assertEquals(0, failures.get());
+
+            // Handlers notice the closed sockets asynchronously
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!Server.clients.isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            assertTrue(Server.clients.isEmpty(), Server.clients.size() + " clients left");
+            for (int u = 1; u <= 5; u++) {
+                assertNull(Server.clients.find("user" + u));
+            }
+        } finally {
+            serverSocket.close();
+            acceptor.join();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * An UPLOAD_REQUEST whose length no file can have is refused, and the connection stays usable.
+ */
+class UploadRequestTest {
+    @TempDir
+    Path directory;
+
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private Thread acceptor;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        System.setProperty("server.files.dir", directory.toString());
+        serverSocket = Server.openServerSocket(0);
+        executor = Server.newHandlerExecutor("thread");
+        acceptor = new Thread(() -> Server.acceptClients(serverSocket, executor));
+        acceptor.start();
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        serverSocket.close();
+        acceptor.join();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void invalidLengthIsRefused() throws Exception {
+        try (Socket socket = new Socket("localhost", serverSocket.getLocalPort())) {
+            socket.setSoTimeout(10_000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = socket.getOutputStream();
+            out.write("LOGIN|user1|1234\n".getBytes(StandardCharsets.UTF_8));
+            assertTrue(in.readLine().startsWith("LOGIN-SUCCESS"));
+
+            out.write("UPLOAD_REQUEST|notes.txt|-5\nUPLOAD_START\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals("ERROR|Invalid file length.", in.readLine());
+            assertEquals("ERROR|No upload requested.", in.readLine());
+
+            out.write("UPLOAD_REQUEST|notes.txt|many\nUPLOAD_REQUEST|notes.txt\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals("ERROR|Invalid file length.", in.readLine());
+            assertEquals("ERROR|Invalid file length.", in.readLine());
+            assertFalse(Files.exists(directory.resolve("notes.txt")));
+
+            out.write("UPLOAD_REQUEST|notes.txt|3\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals("UPLOAD_READY", in.readLine());
+            out.write("UPLOAD_START\nnew".getBytes(StandardCharsets.UTF_8));
+            assertEquals("UPLOAD_SUCCESS|notes.txt", in.readLine());
+        }
+        assertEquals("new", Files.readString(directory.resolve("notes.txt")));
+    }
+}
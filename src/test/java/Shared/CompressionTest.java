@@ -0,0 +1,120 @@
+package Shared;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Compressed binary connections: chat and file chunks arrive intact, and text takes fewer bytes
+ * on the wire than without compression.
+ */
+class CompressionTest {
+    private static final String[] USERS = {"alice", "bob", "carol", "dave", "erin", "frank"};
+    private static final String[] WORDS = ("the a to and is it you that of in for on this with are be have not "
+            + "what just so was do get can like but no we if all download file upload room lobby").split(" ");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void chatArrivesIntactAndSmaller() throws IOException {
+        int plain = sendChat(false);
+        int deflated = sendChat(true);
+        assertTrue(deflated * 4 < plain * 3, deflated + " bytes compressed, " + plain + " uncompressed");
+    }
+
+    @Test
+    void textFileArrivesIntactAndSmaller() throws IOException {
+        Path log = directory.resolve("server.log");
+        Random random = new Random(7);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 3 * ChunkedTransfer.CHUNK_SIZE) {
+            text.append(1_700_000_000_000L + text.length()).append(" INFO  User logged in: ")
+                    .append(USERS[random.nextInt(USERS.length)]).append(random.nextInt(100)).append('\n');
+        }
+        Files.writeString(log, text, StandardCharsets.UTF_8);
+
+        int plain = transfer(log, false);
+        int deflated = transfer(log, true);
+        assertTrue(deflated * 2 < plain, deflated + " bytes compressed, " + plain + " uncompressed");
+    }
+
+    @Test
+    void randomFileArrivesIntact() throws IOException {
+        byte[] content = new byte[2 * ChunkedTransfer.CHUNK_SIZE + 1000];
+        new Random(11).nextBytes(content);
+        Path random = Files.write(directory.resolve("random.bin"), content);
+
+        int plain = transfer(random, false);
+        int deflated = transfer(random, true);
+        // Chunks that do not shrink are sent as they are
+        assertTrue(deflated < plain + plain / 100, deflated + " bytes compressed, " + plain + " uncompressed");
+    }
+
+    // Sends chat lines like the server broadcasts them, reads them back and returns the wire bytes
+    private static int sendChat(boolean compressed) throws IOException {
+        MemoryChannel wire = new MemoryChannel();
+        MessageChannel sender = connection(wire, compressed);
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            sender.send(Message.CHAT, chatLine(random));
+        }
+        sender.close();
+
+        MessageChannel receiver = connection(wire, compressed);
+        Message message = new Message();
+        random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(Message.CHAT, receiver.read(message).type);
+            assertEquals(chatLine(random), message.field(0));
+        }
+        receiver.close();
+        return wire.length();
+    }
+
+    // Sends the file as chunks, receives it and compares the two, returns the wire bytes
+    private int transfer(Path file, boolean compressed) throws IOException {
+        MemoryChannel wire = new MemoryChannel();
+        long size = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MessageChannel sender = connection(wire, compressed);
+            ChunkedTransfer.send(sender, channel, 0, size, false, true);
+            sender.close();
+        }
+
+        Path target = directory.resolve("received");
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MessageChannel receiver = connection(wire, compressed);
+            assertEquals(size, ChunkedTransfer.receiveRange(receiver, new Message(), channel, 0, size, null));
+            receiver.close();
+        }
+        assertEquals(-1, Files.mismatch(file, target));
+        return wire.length();
+    }
+
+    private static MessageChannel connection(MemoryChannel wire, boolean compressed) {
+        MessageChannel connection = new MessageChannel(wire);
+        connection.setBinary(true);
+        connection.setCompressed(compressed);
+        return connection;
+    }
+
+    private static String chatLine(Random random) {
+        StringBuilder line = new StringBuilder(USERS[random.nextInt(USERS.length)]).append(':');
+        int words = 3 + random.nextInt(12);
+        for (int i = 0; i < words; i++) {
+            line.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,57 @@
+package Shared;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+    // Log-normal latencies around 200 us, with a long tail
+    @Test
+    void percentilesAreWithinThreePercent() {
+        int values = 1_000_000;
+        Random random = new Random(42);
+        long[] latencies = new long[values];
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < values; i++) {
+            latencies[i] = (long) Math.exp(12.2 + random.nextGaussian());
+            histogram.record(latencies[i]);
+        }
+
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        for (double percentile : new double[]{50, 90, 99, 99.9, 99.99}) {
+            long exact = sorted[(int) Math.ceil(percentile / 100 * values) - 1];
+            long estimate = histogram.percentile(percentile);
+            assertTrue(Math.abs(estimate - exact) <= exact * 0.03,
+                    "p" + percentile + ": " + estimate + " for " + exact);
+        }
+        assertEquals(sorted[values - 1], histogram.max());
+    }
+
+    @Test
+    void concurrentRecordingCountsEveryValue() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(1000 + i);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800_000, histogram.count());
+        assertEquals(100_999, histogram.max());
+    }
+}
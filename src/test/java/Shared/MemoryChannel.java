@@ -0,0 +1,51 @@
+package Shared;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.Arrays;
+
+// Keeps what is written and hands it out again to readers
+class MemoryChannel implements ByteChannel {
+    private byte[] data = new byte[64 * 1024];
+    private int length;
+    private int readPosition;
+
+    @Override
+    public int write(ByteBuffer src) {
+        int count = src.remaining();
+        if (length + count > data.length) {
+            data = Arrays.copyOf(data, Math.max(length + count, data.length * 2));
+        }
+        src.get(data, length, count);
+        length += count;
+        return count;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        if (readPosition == length) {
+            return -1;
+        }
+        int count = Math.min(dst.remaining(), length - readPosition);
+        dst.put(data, readPosition, count);
+        readPosition += count;
+        return count;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    int length() {
+        return length;
+    }
+
+    byte[] bytes() {
+        return Arrays.copyOf(data, length);
+    }
+}
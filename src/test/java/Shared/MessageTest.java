@@ -0,0 +1,57 @@
+package Shared;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class MessageTest {
+
+    @Test
+    void encodesTextLine() {
+        ByteBuffer buffer = ByteBuffer.allocate(Message.encodedLineSize(Message.CHAT, "a|b"));
+        Message.encodeLine(buffer, Message.CHAT, "a|b");
+        assertEquals("CHAT|a|b\n", new String(buffer.array(), StandardCharsets.UTF_8));
+
+        Message message = new Message().parseLine("CHAT|a|b");
+        assertEquals(Message.CHAT, message.type);
+        assertEquals("a|b", message.field(0));
+    }
+
+    @Test
+    void refusesLineBreaksInTextFields() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        assertThrows(IllegalArgumentException.class, () -> Message.encodeLine(buffer, Message.CHAT, "a\nb"));
+        assertThrows(IllegalArgumentException.class, () -> new EncodedMessage(Message.CHAT, "a\rb"));
+        assertEquals(0, buffer.position());
+    }
+
+    // Chat fan-out encodes once for every recipient, they must get what a send of their own gives
+    @Test
+    void encodedMessageIsWrittenLikeAnEncodingOfItsOwn() throws Exception {
+        EncodedMessage shared = new EncodedMessage(Message.CHAT, "alice: grüße");
+        for (boolean binary : new boolean[]{false, true}) {
+            MemoryChannel once = new MemoryChannel();
+            MessageChannel recipient = new MessageChannel(once);
+            recipient.setBinary(binary);
+            recipient.send(shared);
+            recipient.send(shared);
+
+            MemoryChannel own = new MemoryChannel();
+            MessageChannel sender = new MessageChannel(own);
+            sender.setBinary(binary);
+            sender.send(Message.CHAT, "alice: grüße");
+            sender.send(Message.CHAT, "alice: grüße");
+
+            assertArrayEquals(own.bytes(), once.bytes());
+        }
+    }
+
+    @Test
+    void singleLineReplacesLineBreaks() {
+        assertEquals("a b c", Message.singleLine("a\nb\rc"));
+    }
+}
@@ -0,0 +1,53 @@
+package Shared;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PartialFileTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void resumesTheSameVersionOnly() throws Exception {
+        Path data = directory.resolve("song.mp3.part");
+        try (PartialFile part = PartialFile.open(data, "v1")) {
+            part.channel().write(ByteBuffer.wrap(new byte[100]), 0);
+            part.setVerified(60);
+            part.save();
+        }
+
+        try (PartialFile part = PartialFile.open(data, "v1")) {
+            assertEquals(60, part.verified());
+            assertEquals(60, part.channel().size());
+        }
+        try (PartialFile part = PartialFile.open(data)) {
+            assertEquals(60, part.verified());
+            assertEquals("v1", part.version());
+        }
+        try (PartialFile part = PartialFile.open(data, "v2")) {
+            assertEquals(0, part.verified());
+            assertEquals(0, part.channel().size());
+        }
+    }
+
+    @Test
+    void anotherVersionDropsTheReceivedBytes() throws Exception {
+        try (PartialFile part = PartialFile.open(directory.resolve("a.part"))) {
+            assertNull(part.version());
+            part.setVersion("v1");
+            part.channel().write(ByteBuffer.wrap(new byte[100]), 0);
+            part.setVerified(100);
+
+            part.setVersion("v1");
+            assertEquals(100, part.verified());
+            part.setVersion("v2");
+            assertEquals(0, part.verified());
+            assertEquals(0, part.channel().size());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package Shared;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server running in a JVM of its own, started from the classes the tests run with. For tests
+ * of the Client package, which does not link to the server, and for servers that need system
+ * properties of their own, like the nodes of a cluster.
+ *
+ * The server works in the given directory: its files are in "files" and its output goes to
+ * "server.log", which is part of the error if it does not come up.
+ */
+public final class ServerProcess implements AutoCloseable {
+    private final Process process;
+    private final int port;
+    private final Path directory;
+
+    private ServerProcess(Process process, int port, Path directory) {
+        this.process = process;
+        this.port = port;
+        this.directory = directory;
+    }
+
+    /**
+     * Starts "Server.Server port --mode=mode" and returns once it accepts connections.
+     * properties are passed as -D options, "name=value".
+     */
+    public static ServerProcess start(Path directory, int port, String mode, String... properties)
+            throws IOException, InterruptedException {
+        Files.createDirectories(directory.resolve("files"));
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dserver.files.dir=" + directory.resolve("files"));
+        command.add("-Dserver.metrics.file=" + directory.resolve("server.metrics"));
+        command.add("-Dserver.auth.keyFile=" + directory.resolve("server.tokenKey"));
+        for (String property : properties) {
+            command.add("-D" + property);
+        }
+        command.add("Server.Server");
+        command.add(String.valueOf(port));
+        command.add("--mode=" + mode);
+
+        // Run from the directory, so the defaults under user.dir are not the project's resources
+        Process process = new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(directory.resolve("server.log").toFile())
+                .start();
+        ServerProcess server = new ServerProcess(process, port, directory);
+        server.awaitListening();
+        return server;
+    }
+
+    /**
+     * A port nothing listens on right now.
+     */
+    public static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    public int port() {
+        return port;
+    }
+
+    public Path files() {
+        return directory.resolve("files");
+    }
+
+    public String log() throws IOException {
+        return Files.readString(directory.resolve("server.log"), StandardCharsets.UTF_8);
+    }
+
+    private void awaitListening() throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (true) {
+            if (!process.isAlive()) {
+                throw new IOException("Server exited with " + process.exitValue() + ":\n" + log());
+            }
+            try (Socket socket = new Socket("localhost", port)) {
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    close();
+                    throw new IOException("Server did not listen on port " + port + ":\n" + log(), e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        process.destroy();
+        if (!process.waitFor(10, TimeUnit.SECONDS)) {
+            process.destroyForcibly().waitFor();
+        }
+    }
+}